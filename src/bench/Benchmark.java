@@ -0,0 +1,77 @@
+/*
+ * A small timing harness for the benchmarks in src/bench
+ * Each operation is run repeatedly for a warm up period (so the JIT compiler has
+ * compiled it) and then for a number of timed iterations, and the average time per
+ * call across the iterations is printed along with its spread
+ */
+
+public class Benchmark {
+
+    /*
+     * An operation to be timed
+     * Whatever it returns is folded into a field that is read at the end of the run,
+     * so the JIT compiler can't remove the work as unused
+     */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    private static volatile int sink;
+
+    private long warmupMillis;
+    private int iterations;
+    private long iterationMillis;
+
+    /*
+     * Constructor for Benchmark
+     */
+    public Benchmark(long warmupMillis, int iterations, long iterationMillis) {
+        this.warmupMillis = warmupMillis;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    /*
+     * Warms up and times the operation, then prints its results under the name passed as a parameter
+     */
+    public void run(String name, Operation operation) throws Exception {
+        int hash = 0;
+        long warmupEnd = System.nanoTime() + warmupMillis * 1000000L;
+        while (System.nanoTime() < warmupEnd) {
+            hash += hash(operation.run());
+        }
+
+        double[] nanosPerCall = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long calls = 0;
+            long start = System.nanoTime();
+            long end = start + iterationMillis * 1000000L;
+            long now;
+            // Every iteration runs the operation at least once, however slow it is
+            do {
+                hash += hash(operation.run());
+                calls++;
+                now = System.nanoTime();
+            } while (now < end);
+            nanosPerCall[i] = (double) (now - start) / calls;
+        }
+        sink += hash;
+
+        double total = 0;
+        for (double nanos : nanosPerCall) {
+            total += nanos;
+        }
+        double mean = total / iterations;
+        double squares = 0;
+        for (double nanos : nanosPerCall) {
+            squares += (nanos - mean) * (nanos - mean);
+        }
+        double deviation = iterations > 1 ? Math.sqrt(squares / (iterations - 1)) : 0;
+        System.out.println(String.format("%-40s %14.3f us/op  +- %10.3f  %12.1f ops/s",
+                name, mean / 1000, deviation / 1000, 1000000000.0 / mean));
+    }
+
+    private static int hash(Object result) {
+        return result == null ? 0 : System.identityHashCode(result);
+    }
+}
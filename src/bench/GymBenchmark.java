@@ -0,0 +1,325 @@
+/*
+ * Throughput benchmarks for GymAPI's searches and reports, store and load,
+ * and the GymUtility calculations the reports use
+ * The gym is generated by GymData, so runs with the same settings can be compared
+ *
+ * Compile src/main and src/bench together and run with settings as name=value arguments, eg
+ *     java -cp <classes>:lib/xstream-1.4.10.jar GymBenchmark members=100000 assessments=10 filter=search
+ * Settings (and their defaults):
+ *     members=10000      number of members in the generated gym
+ *     assessments=10     assessments per member
+ *     warmup=2000        warm up time for each benchmark (milliseconds)
+ *     iterations=5       timed iterations for each benchmark
+ *     time=1000          length of each timed iteration (milliseconds)
+ *     filter=            only run benchmarks whose name contains this text
+ */
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+
+public class GymBenchmark {
+
+    // A different member is used on each call, so lookups don't keep hitting the same entry
+    private static final int QUERIES = 1024;
+
+    private HashMap<String, String> settings;
+    private Benchmark benchmark;
+    private String filter;
+
+    private GymAPI gymAPI;
+    private Member[] memberArray;
+    private Assessment[] latestAssessments;
+    private String[] emails;
+    private String[] names;
+    private int next;
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> settings = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Settings must be name=value: " + arg);
+            }
+            settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new GymBenchmark(settings).runAll();
+    }
+
+    /*
+     * Constructor for GymBenchmark
+     */
+    public GymBenchmark(HashMap<String, String> settings) {
+        this.settings = settings;
+        benchmark = new Benchmark(setting("warmup", 2000), (int) setting("iterations", 5), setting("time", 1000));
+        filter = settings.containsKey("filter") ? settings.get("filter") : "";
+    }
+
+    private long setting(String name, long defaultValue) {
+        return settings.containsKey(name) ? Long.parseLong(settings.get(name)) : defaultValue;
+    }
+
+    public void runAll() throws Exception {
+        int members = (int) setting("members", 10000);
+        int assessments = (int) setting("assessments", 10);
+        System.out.println("Generating " + members + " members with " + assessments + " assessments each");
+        gymAPI = GymData.generate(members, assessments, Math.max(1, members / 100), 42);
+
+        memberArray = gymAPI.getMembers().toArray(new Member[0]);
+        latestAssessments = new Assessment[memberArray.length];
+        for (int i = 0; i < memberArray.length; i++) {
+            latestAssessments[i] = memberArray[i].latestAssessment();
+        }
+        emails = new String[QUERIES];
+        names = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            int index = (int) ((i * 2654435761L) % members);
+            emails[i] = GymData.memberEmail(index);
+            // Search by part of the member's name (eg "Walsh 12")
+            String name = memberArray[index].getName();
+            names[i] = name.substring(name.indexOf(' ') + 1);
+        }
+
+        run("searchMembersByEmail", new Benchmark.Operation() {
+            public Object run() {
+                return gymAPI.searchMembersByEmail(emails[nextQuery()]);
+            }
+        });
+        run("searchMembersByName", new Benchmark.Operation() {
+            public Object run() {
+                return gymAPI.searchMembersByName(names[nextQuery()]);
+            }
+        });
+        run("listMembersWithIdealWeight", new Benchmark.Operation() {
+            public Object run() {
+                return gymAPI.listMembersWithIdealWeight();
+            }
+        });
+        run("statistics", new Benchmark.Operation() {
+            public Object run() {
+                return gymAPI.statistics();
+            }
+        });
+        run("listMembersBySpecificBMICategory", new Benchmark.Operation() {
+            public Object run() {
+                return gymAPI.listMembersBySpecificBMICategory("OBESE");
+            }
+        });
+        run("listMemberDetailsImperialAndMetric", new Benchmark.Operation() {
+            public Object run() {
+                return gymAPI.listMemberDetailsImperialAndMetric();
+            }
+        });
+        run("assessmentProgressByWeight", new Benchmark.Operation() {
+            public Object run() {
+                return gymAPI.assessmentProgressByWeight(memberArray[nextQuery() % memberArray.length]);
+            }
+        });
+        run("assessmentProgressByWaist", new Benchmark.Operation() {
+            public Object run() {
+                return gymAPI.assessmentProgressByWaist(memberArray[nextQuery() % memberArray.length]);
+            }
+        });
+        run("assessmentProgressByWeight (Writer)", new Benchmark.Operation() {
+            public Object run() throws Exception {
+                StringWriter writer = new StringWriter();
+                gymAPI.assessmentProgressByWeight(memberArray[nextQuery() % memberArray.length], writer);
+                return writer;
+            }
+        });
+
+        run("GymUtility.calculateBMI (all members)", new Benchmark.Operation() {
+            public Object run() {
+                double total = 0;
+                for (int i = 0; i < memberArray.length; i++) {
+                    total += GymUtility.calculateBMI(memberArray[i], latestAssessments[i]);
+                }
+                return total;
+            }
+        });
+        // The same BMIs and categories worked out from arrays of the members' heights and latest weights
+        final float[] heights = new float[memberArray.length];
+        final float[] weights = new float[memberArray.length];
+        for (int i = 0; i < memberArray.length; i++) {
+            heights[i] = memberArray[i].getHeight();
+            weights[i] = latestAssessments[i].getWeight();
+        }
+        final double[] bmi = new double[memberArray.length];
+        final byte[] categories = new byte[memberArray.length];
+        run("GymUtility.calculateBMI (arrays, with categories)", new Benchmark.Operation() {
+            public Object run() {
+                GymUtility.calculateBMI(heights, weights, bmi, categories);
+                return categories;
+            }
+        });
+        run("GymUtility.determineBMICategory (all)", new Benchmark.Operation() {
+            public Object run() {
+                int length = 0;
+                for (int i = 0; i < memberArray.length; i++) {
+                    length += GymUtility.determineBMICategory(
+                            GymUtility.calculateBMI(memberArray[i], latestAssessments[i])).length();
+                }
+                return length;
+            }
+        });
+        run("GymUtility.isIdealBodyWeight (all)", new Benchmark.Operation() {
+            public Object run() {
+                int ideal = 0;
+                for (int i = 0; i < memberArray.length; i++) {
+                    if (GymUtility.isIdealBodyWeight(memberArray[i], latestAssessments[i])) {
+                        ideal++;
+                    }
+                }
+                return ideal;
+            }
+        });
+
+        // store and load use their own file so the gym's persons.xml isn't touched
+        final File personsFile = File.createTempFile("persons", ".xml");
+        try {
+            gymAPI.store(personsFile.getPath());
+            run("store", new Benchmark.Operation() {
+                public Object run() throws Exception {
+                    gymAPI.store(personsFile.getPath());
+                    return personsFile;
+                }
+            });
+            run("load", new Benchmark.Operation() {
+                public Object run() throws Exception {
+                    GymAPI loaded = new GymAPI();
+                    loaded.load(personsFile.getPath());
+                    return loaded;
+                }
+            });
+        }
+        finally {
+            personsFile.delete();
+        }
+
+        // The separate members and trainers files are read by XStream rather than PersonXmlReader
+        final File membersFile = File.createTempFile("members", ".xml");
+        final File trainersFile = File.createTempFile("trainers", ".xml");
+        try {
+            gymAPI.store(membersFile.getPath(), trainersFile.getPath());
+            run("load (members and trainers files)", new Benchmark.Operation() {
+                public Object run() throws Exception {
+                    GymAPI loaded = new GymAPI();
+                    loaded.load(membersFile.getPath(), trainersFile.getPath());
+                    return loaded;
+                }
+            });
+        }
+        finally {
+            membersFile.delete();
+            trainersFile.delete();
+        }
+
+        // storeSegments after editing one comment only rewrites that member's segment
+        final File segmentDirectory = File.createTempFile("segments", "");
+        segmentDirectory.delete();
+        try {
+            gymAPI.openSegments(segmentDirectory.getPath());
+            gymAPI.storeSegments();
+            run("storeSegments (one comment edited)", new Benchmark.Operation() {
+                public Object run() throws Exception {
+                    Member member = memberArray[nextQuery() % memberArray.length];
+                    // Every generated member has an assessment on the first date
+                    gymAPI.editAssessmentComment(member, "18/01/01", "edited " + next);
+                    return gymAPI.storeSegments();
+                }
+            });
+        }
+        finally {
+            File[] files = segmentDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            segmentDirectory.delete();
+        }
+
+        // The exports write to a channel that throws the bytes away, so only producing the rows is timed
+        final WritableByteChannel discard = Channels.newChannel(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        run("exportAssessments (csv)", new Benchmark.Operation() {
+            public Object run() throws Exception {
+                return gymAPI.exportAssessments(discard, new GymExport(GymExport.Format.CSV));
+            }
+        });
+        run("exportMembers (jsonl, OBESE)", new Benchmark.Operation() {
+            public Object run() throws Exception {
+                GymExport export = new GymExport(GymExport.Format.JSON_LINES);
+                export.setBMICategory("OBESE");
+                return gymAPI.exportMembers(discard, export);
+            }
+        });
+
+        // importCsv of a roster of the gym's members, into an empty gym each time
+        StringBuilder roster = new StringBuilder("type,email,name,address,gender,height,weight,package\n");
+        for (Member member : memberArray) {
+            roster.append("member,").append(member.getEmail()).append(",\"").append(member.getName())
+                    .append("\",\"").append(member.getAddress()).append("\",").append(member.getGender())
+                    .append(',').append(member.getHeight()).append(',').append(member.getStartWeight())
+                    .append(',').append(member.getChosenPackage()).append('\n');
+        }
+        final String csv = roster.toString();
+        run("importCsv (all members)", new Benchmark.Operation() {
+            public Object run() throws Exception {
+                GymAPI imported = new GymAPI();
+                imported.importCsv(new StringReader(csv), new StringWriter());
+                return imported;
+            }
+        });
+
+        // These read the assessments from a memory-mapped archive rather than the heap,
+        // so they run last (the earlier ones would copy edited members back into the heap)
+        final File archiveFile = File.createTempFile("gym", ".archive");
+        try {
+            gymAPI.archiveAssessments(archiveFile.getPath());
+            run("assessmentProgressByWeight (archived)", new Benchmark.Operation() {
+                public Object run() {
+                    return gymAPI.assessmentProgressByWeight(memberArray[nextQuery() % memberArray.length]);
+                }
+            });
+            run("listMembersWithIdealWeight (archived)", new Benchmark.Operation() {
+                public Object run() {
+                    return gymAPI.listMembersWithIdealWeight();
+                }
+            });
+            run("exportAssessments (csv, archived)", new Benchmark.Operation() {
+                public Object run() throws Exception {
+                    return gymAPI.exportAssessments(discard, new GymExport(GymExport.Format.CSV));
+                }
+            });
+        }
+        finally {
+            // The archive was written to a numbered file next to the temporary one
+            File written = AssessmentArchive.newestFile(archiveFile.getPath());
+            if (written != null) {
+                written.delete();
+            }
+            archiveFile.delete();
+        }
+    }
+
+    private void run(String name, Benchmark.Operation operation) throws Exception {
+        if (name.contains(filter)) {
+            benchmark.run(name, operation);
+        }
+    }
+
+    private int nextQuery() {
+        next = (next + 1) % QUERIES;
+        return next;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Generates a synthetic gym for the benchmarks
+ * Every third member is a PremiumMember and every third a StudentMember (the rest are Members),
+ * and each member gets the same number of weekly assessments with a drifting weight and waist
+ * The same seed always gives the same gym, so benchmark runs can be compared
+ */
+
+import java.util.Random;
+
+public class GymData {
+
+    private static final String[] FIRST_NAMES = {
+            "Aoife", "Brian", "Ciara", "Declan", "Eimear", "Fionn", "Grainne", "Hugh",
+            "Isabel", "John", "Kate", "Liam", "Maeve", "Niall", "Orla", "Padraig"
+    };
+    private static final String[] LAST_NAMES = {
+            "Murphy", "Kelly", "Walsh", "Byrne", "Ryan", "O'Brien", "Doyle", "Power",
+            "Whelan", "Kavanagh", "Nolan", "Fitzgerald", "Brennan", "Quinn", "Keane", "Dunne"
+    };
+    private static final String[] COLLEGES = {"WIT", "UCC", "DCU"};
+    // 18/01/01, the date of every member's first assessment
+    private static final int FIRST_ASSESSMENT = AssessmentDate.parse("18/01/01");
+
+    /*
+     * Returns a gym with the number of members, assessments per member and trainers passed as parameters
+     */
+    public static GymAPI generate(int members, int assessments, int trainers, long seed) {
+        Random random = new Random(seed);
+        GymAPI gymAPI = new GymAPI();
+        for (int i = 0; i < members; i++) {
+            Member member = member(i, random);
+            gymAPI.addMember(member);
+            float weight = member.getStartWeight();
+            float waist = 60 + random.nextInt(50);
+            for (int j = 0; j < assessments; j++) {
+                // Weight and waist move up or down a little each week
+                weight += random.nextInt(5) - 2;
+                waist += random.nextInt(3) - 1;
+                member.getAssessments().put(AssessmentDate.format(FIRST_ASSESSMENT + j * 7),
+                        new Assessment(weight, 40 + random.nextInt(30), waist, "Week " + (j + 1)));
+            }
+        }
+        for (int i = 0; i < trainers; i++) {
+            gymAPI.addTrainer(new Trainer(trainerEmail(i), name(i, random), "Trainer address " + i,
+                    random.nextBoolean() ? "M" : "F", "Speciality " + (i % 5)));
+        }
+        return gymAPI;
+    }
+
+    /*
+     * Returns the email of the member at the index passed as a parameter
+     */
+    public static String memberEmail(int index) {
+        return "member" + index + "@gym.ie";
+    }
+
+    /*
+     * Returns the email of the trainer at the index passed as a parameter
+     */
+    public static String trainerEmail(int index) {
+        return "trainer" + index + "@gym.ie";
+    }
+
+    private static Member member(int index, Random random) {
+        String name = name(index, random);
+        String gender = random.nextBoolean() ? "M" : "F";
+        float height = 1.5f + random.nextInt(50) / 100.0f;
+        float startWeight = 50 + random.nextInt(70);
+        switch (index % 3) {
+            case 0:
+                return new PremiumMember(memberEmail(index), name, "Address " + index, gender,
+                        height, startWeight, "Package " + (1 + random.nextInt(3)));
+            case 1:
+                return new StudentMember(memberEmail(index), name, "Address " + index, gender,
+                        height, startWeight, "Package 3", "S" + index, COLLEGES[random.nextInt(COLLEGES.length)]);
+            default:
+                return new Member(memberEmail(index), name, "Address " + index, gender,
+                        height, startWeight, "Package " + (1 + random.nextInt(3)));
+        }
+    }
+
+    private static String name(int index, Random random) {
+        return FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                + LAST_NAMES[random.nextInt(LAST_NAMES.length)] + " " + index;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Load test for GymServer
+ * A number of client threads send a mix of requests as fast as they can for a set time,
+ * then the requests per second and the latency percentiles are printed
+ *
+ * Unless a url is given, a GymServer is started in this process on a generated gym
+ * Settings are name=value arguments, eg
+ *     java -cp <classes>:lib/xstream-1.4.10.jar GymLoadTest clients=64 duration=30 writes=5
+ * Settings (and their defaults):
+ *     url=                 server to test, eg http://localhost:8080 (the server's gym must be a GymData gym)
+ *     members=10000        number of members in the generated gym
+ *     assessments=10       assessments per member in the generated gym
+ *     threads=             server worker threads (GymServer's default if not set)
+ *     clients=32           client threads sending requests
+ *     warmup=5             seconds of requests before measuring starts
+ *     duration=20          seconds of measured requests
+ *     writes=5             percentage of requests that add an assessment
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+public class GymLoadTest {
+
+    private static final String[] CATEGORIES = {"NORMAL", "OVERWEIGHT", "OBESE", "UNDERWEIGHT"};
+
+    private String url;
+    private int members;
+    private int writePercentage;
+    private volatile boolean measuring;
+    private volatile boolean running;
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> settings = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Settings must be name=value: " + arg);
+            }
+            settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        int members = setting(settings, "members", 10000);
+        GymServer server = null;
+        File journalDirectory = null;
+        String url = settings.get("url");
+        if (url == null) {
+            GymAPI gymAPI = GymData.generate(members, setting(settings, "assessments", 10), Math.max(1, members / 100), 42);
+            // Journal to a temporary directory so assessment writes pay for the fsync as they would for real
+            journalDirectory = File.createTempFile("gym-load", "");
+            journalDirectory.delete();
+            journalDirectory.mkdir();
+            gymAPI.openJournal(new File(journalDirectory, "gym.dat").getPath(),
+                    new File(journalDirectory, "gym.journal").getPath());
+            server = new GymServer(gymAPI, 0, setting(settings, "threads", GymServer.defaultThreads()));
+            server.start();
+            url = "http://localhost:" + server.getPort();
+            System.out.println("Started a server on " + url + " with " + members + " members");
+        }
+
+        GymLoadTest loadTest = new GymLoadTest(url, members, setting(settings, "writes", 5));
+        try {
+            loadTest.run(setting(settings, "clients", 32), setting(settings, "warmup", 5), setting(settings, "duration", 20));
+        }
+        finally {
+            if (server != null) {
+                server.stop();
+                for (File file : journalDirectory.listFiles()) {
+                    file.delete();
+                }
+                journalDirectory.delete();
+            }
+        }
+    }
+
+    private static int setting(HashMap<String, String> settings, String name, int defaultValue) {
+        return settings.containsKey(name) ? Integer.parseInt(settings.get(name)) : defaultValue;
+    }
+
+    /*
+     * Constructor for GymLoadTest
+     */
+    public GymLoadTest(String url, int members, int writePercentage) {
+        this.url = url;
+        this.members = members;
+        this.writePercentage = writePercentage;
+    }
+
+    public void run(int clients, int warmupSeconds, int durationSeconds) throws Exception {
+        Client[] clientArray = new Client[clients];
+        Thread[] threads = new Thread[clients];
+        running = true;
+        for (int i = 0; i < clients; i++) {
+            clientArray[i] = new Client(i);
+            threads[i] = new Thread(clientArray[i], "load-client-" + i);
+            threads[i].start();
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationSeconds * 1000L);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Merge every client's latencies and sort them to find the percentiles
+        int total = 0;
+        int errors = 0;
+        for (Client client : clientArray) {
+            total += client.count;
+            errors += client.errors;
+        }
+        long[] latencies = new long[total];
+        int position = 0;
+        for (Client client : clientArray) {
+            System.arraycopy(client.latencies, 0, latencies, position, client.count);
+            position += client.count;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println(String.format("%d clients, %d requests in %.1f s (%d errors)",
+                clients, total, elapsed / 1e9, errors));
+        System.out.println(String.format("%.1f requests/s", total / (elapsed / 1e9)));
+        if (total > 0) {
+            System.out.println(String.format("latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+                    percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                    percentile(latencies, 99.9), latencies[total - 1] / 1e6));
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /*
+     * Sends requests in a loop, recording the latency of each one made while measuring
+     * Most requests are lookups and searches, with some reports and (writePercentage) assessments
+     */
+    private class Client implements Runnable {
+        private Random random;
+        private long[] latencies = new long[1 << 16];
+        private int count;
+        private int errors;
+        private int nextDay;
+
+        Client(int number) {
+            random = new Random(number);
+        }
+
+        public void run() {
+            while (running) {
+                long start = System.nanoTime();
+                boolean ok;
+                try {
+                    ok = sendRequest();
+                }
+                catch (IOException e) {
+                    ok = false;
+                }
+                long latency = System.nanoTime() - start;
+                if (measuring) {
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = latency;
+                    if (!ok) {
+                        errors++;
+                    }
+                }
+            }
+        }
+
+        private boolean sendRequest() throws IOException {
+            String email = encode(GymData.memberEmail(random.nextInt(members)));
+            int choice = random.nextInt(100);
+            if (choice < writePercentage) {
+                // Each client uses its own dates so clients don't overwrite each other's assessments
+                String date = AssessmentDate.format(AssessmentDate.parse("19/01/01") + nextDay++);
+                return post("/members/assessments", "email=" + email + "&date=" + encode(date)
+                        + "&weight=" + (50 + random.nextInt(70)) + "&thigh=50&waist=80&comment=load+test");
+            }
+            choice = random.nextInt(100);
+            if (choice < 50) {
+                return get("/members?email=" + email);
+            }
+            else if (choice < 75) {
+                return get("/members/search?name=" + encode(" " + random.nextInt(members)));
+            }
+            else if (choice < 90) {
+                return get("/members/progress?email=" + email + "&by=" + (random.nextBoolean() ? "weight" : "waist"));
+            }
+            else if (choice < 98) {
+                return get("/trainers?email=" + encode(GymData.trainerEmail(random.nextInt(Math.max(1, members / 100)))));
+            }
+            else {
+                return get("/members/bmi?category=" + CATEGORIES[random.nextInt(CATEGORIES.length)]);
+            }
+        }
+    }
+
+    private boolean get(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+        return finish(connection);
+    }
+
+    private boolean post(String path, String form) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        OutputStream out = connection.getOutputStream();
+        out.write(form.getBytes(StandardCharsets.UTF_8));
+        out.close();
+        return finish(connection);
+    }
+
+    /*
+     * Reads the whole response, so the connection can be reused by the next request
+     */
+    private static boolean finish(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) > 0) {
+                // Discard the body
+            }
+            in.close();
+        }
+        return status < 400;
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Finds the gym size at which splitting listMembersWithIdealWeight between threads
+ * starts to pay off, to choose GymAPI's parallel scan threshold
+ * For each gym size the scan is timed once always sequential and once always parallel
+ *
+ * Settings are name=value arguments (see GymBenchmark), eg
+ *     java -cp <classes>:lib/xstream-1.4.10.jar ScanCrossover sizes=1000,10000,100000
+ * Settings (and their defaults):
+ *     sizes=256,1024,4096,16384,65536,262144   gym sizes to try
+ *     warmup=1000, iterations=5, time=500       as for GymBenchmark
+ */
+
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+public class ScanCrossover {
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> settings = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Settings must be name=value: " + arg);
+            }
+            settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        String sizes = settings.containsKey("sizes") ? settings.get("sizes") : "256,1024,4096,16384,65536,262144";
+        Benchmark benchmark = new Benchmark(setting(settings, "warmup", 1000), (int) setting(settings, "iterations", 5),
+                setting(settings, "time", 500));
+        System.out.println("Parallelism " + ForkJoinPool.commonPool().getParallelism());
+
+        for (String size : sizes.split(",")) {
+            final GymAPI gymAPI = GymData.generate(Integer.parseInt(size.trim()), 3, 0, 42);
+            Benchmark.Operation scan = new Benchmark.Operation() {
+                public Object run() {
+                    return gymAPI.listMembersWithIdealWeight();
+                }
+            };
+            gymAPI.setParallelScanThreshold(Integer.MAX_VALUE);
+            benchmark.run("sequential " + size.trim(), scan);
+            gymAPI.setParallelScanThreshold(0);
+            benchmark.run("parallel   " + size.trim(), scan);
+        }
+    }
+
+    private static long setting(HashMap<String, String> settings, String name, long defaultValue) {
+        return settings.containsKey(name) ? Long.parseLong(settings.get(name)) : defaultValue;
+    }
+}
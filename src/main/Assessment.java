@@ -3,6 +3,14 @@
  * Stores measurements for a member's weight,
  * thigh and waist. Also stores a comment made by a
  * trainer
+ *
+ * An assessment returned by a member's assessments is a view of them: it reads its measurements
+ * and comment from the member's AssessmentMap, which stores every assessment in arrays rather
+ * than as separate objects, and changes made through it are written back there. The values
+ * are kept in the fields and only read again once the map has changed. If the assessment is
+ * removed or replaced in the map, the view stops being one and keeps the values it last had
+ * An assessment created with the constructor only ever uses its own fields, putting it in a
+ * member's assessments copies its values in
  */
 
 public class Assessment {
@@ -12,6 +20,18 @@ public class Assessment {
     private float waist;
     private String comment;
     //private Trainer trainer;
+    // The member's assessments this is a view of (null if it isn't one, or no longer is).
+    // Volatile as a lazily loaded member's latest assessment becomes a view when the rest
+    // are loaded, which may happen while other threads are reading it
+    private volatile AssessmentMap assessments;
+    // The epoch day of the assessment in the map, and its generation there, so an assessment
+    // put on the same day later isn't mistaken for this one
+    private int epochDay;
+    private int generation;
+    // Where the assessment was in the map the last time, checked before searching for it again
+    private int index;
+    // The map's change count when the fields were last read from it
+    private int seenChanges;
 
     /*
      * Constructor for Assessment
@@ -24,19 +44,74 @@ public class Assessment {
         //this.trainer = trainer;
     }
 
+    /*
+     * Creates a view of the assessment at the index in the map
+     */
+    Assessment(AssessmentMap assessments, int index) {
+        attach(assessments, index);
+    }
+
+    /*
+     * Makes this assessment a view of the one at the index in the map
+     * Only used for views the map hands out, and for a lazily loaded member's latest
+     * assessment once the rest are loaded (see AssessmentHistory)
+     */
+    void attach(AssessmentMap assessments, int index) {
+        epochDay = assessments.epochDayAt(index);
+        generation = assessments.generationAt(index);
+        read(assessments, index);
+        // The map is set last, so a thread that sees it also sees the values
+        this.assessments = assessments;
+    }
+
+    /*
+     * Copies the values of the assessment at the index in the map into the fields
+     */
+    private void read(AssessmentMap assessments, int position) {
+        index = position;
+        // Read before the values, so a change made while reading them is picked up next time
+        seenChanges = assessments.changes();
+        weight = assessments.weightAt(position);
+        thigh = assessments.thighAt(position);
+        waist = assessments.waistAt(position);
+        comment = assessments.commentAt(position);
+    }
+
+    /*
+     * Brings the fields up to date if the map this is a view of has changed, returning the map
+     * Returns null if this isn't a view, or the assessment has been removed or replaced in the map
+     * (the fields then keep the values it last had)
+     */
+    private AssessmentMap current() {
+        AssessmentMap assessments = this.assessments;
+        if (assessments != null && assessments.changes() != seenChanges) {
+            int position = assessments.indexOf(epochDay, generation, index);
+            if (position < 0) {
+                this.assessments = null;
+                return null;
+            }
+            read(assessments, position);
+        }
+        return assessments;
+    }
+
     public float getWeight() {
+        current();
         return weight;
     }
 
     public float getThigh() {
+        current();
         return thigh;
     }
 
     public float getWaist() {
+        current();
         return waist;
     }
 
     public String getComment() {
+        current();
         return comment;
     }
 
@@ -45,18 +120,35 @@ public class Assessment {
     }*/
 
     public void setWeight(float weight) {
+        AssessmentMap assessments = current();
+        // The map is changed first, as the change may be refused (see AssessmentListener)
+        if (assessments != null) {
+            assessments.setWeightAt(index, weight);
+        }
         this.weight = weight;
     }
 
     public void setThigh(float thigh) {
+        AssessmentMap assessments = current();
+        if (assessments != null) {
+            assessments.setThighAt(index, thigh);
+        }
         this.thigh = thigh;
     }
 
     public void setWaist(float waist) {
+        AssessmentMap assessments = current();
+        if (assessments != null) {
+            assessments.setWaistAt(index, waist);
+        }
         this.waist = waist;
     }
 
     public void setComment(String comment) {
+        AssessmentMap assessments = current();
+        if (assessments != null) {
+            assessments.setCommentAt(index, comment);
+        }
         this.comment = comment;
     }
 
@@ -0,0 +1,436 @@
+/*
+ * An archive of the members' assessments in a file that is memory-mapped rather than
+ * read into the heap (see GymAPI.archiveAssessments)
+ *
+ * An archived member's AssessmentMap reads its columns straight from the mapped file,
+ * so years of weekly assessments take up no heap space and don't slow down garbage
+ * collection. The first change to a member's assessments copies them back into the heap
+ *
+ * File layout (all numbers big endian):
+ *   int    magic ("GYMA")
+ *   short  version
+ *   short  unused
+ *   long   position of the comments
+ *   long   position of the members table
+ *   long   generation of the snapshot the gym was loaded from (see GymSnapshot.generation),
+ *          and long length of its journal when the archive was written (-1 if there were none)
+ *   then for each member with assessments:
+ *     int      number of assessments (n)
+ *     n ints   epoch days, oldest first
+ *     n floats weights, then n thighs, then n waists
+ *     n ints   position of each comment in the comments (NO_COMMENT for a null comment)
+ *   then the comments: each distinct comment once, as an int length followed by UTF-8 bytes
+ *   then the members table: int number of members, then for each member with assessments
+ *     their email as an int length followed by UTF-8 bytes, and long position of their columns
+ * A single mapping can't be larger than 2GB, so the members' columns are mapped in windows
+ * of WINDOW_SIZE bytes, and a member's columns never cross from one window into the next
+ *
+ * The file must not be changed while it is mapped, and Windows doesn't allow a mapped file
+ * to be replaced or deleted, so an archive is never written over. Each new archive is written
+ * to the file name followed by a number one higher than the newest (see nextFile), and the
+ * older ones are deleted once they aren't mapped any more (see deleteOlder)
+ *
+ * The snapshot's generation and the journal's length let GymAPI.openArchive reuse the archive
+ * when the gym is loaded again from the same snapshot, rather than writing it all again at each
+ * startup. Version 2 stored the snapshot's length and last modified time instead, which a
+ * snapshot written again in the same second could match, so it is written again
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+
+public class AssessmentArchive {
+
+    public static final int MAGIC = 0x47594D41;
+    public static final short VERSION = 3;
+
+    // Size of each mapping of the members' columns (the last one may be smaller)
+    static final int WINDOW_SIZE = 1 << 30;
+    private static final int HEADER_SIZE = 40;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Written instead of the position of a comment for a null comment, or a null assessment
+    private static final int NO_COMMENT = -1;
+    private static final int NULL_ASSESSMENT = -2;
+
+    // The members' columns, and the comments they refer to
+    private MappedByteBuffer[] windows;
+    private MappedByteBuffer comments;
+    // The email and position of each member's columns
+    private MappedByteBuffer memberTable;
+    // What the gym was loaded from when the archive was written (see write)
+    private long snapshotGeneration;
+    private long journalLength;
+
+    private AssessmentArchive(MappedByteBuffer[] windows, MappedByteBuffer comments, MappedByteBuffer memberTable,
+                              ByteBuffer header) {
+        this.windows = windows;
+        this.comments = comments;
+        this.memberTable = memberTable;
+        snapshotGeneration = header.getLong(24);
+        journalLength = header.getLong(32);
+    }
+
+    /*
+     * One member's assessments in the archive, read from the mapped file without copying them
+     * Reading only uses absolute positions, so any number of threads can read at once
+     */
+    static class Columns {
+        private AssessmentArchive archive;
+        private ByteBuffer window;
+        // Where the epoch days start in the window
+        private int start;
+        private int count;
+
+        private Columns(AssessmentArchive archive, ByteBuffer window, int start, int count) {
+            this.archive = archive;
+            this.window = window;
+            this.start = start;
+            this.count = count;
+        }
+
+        int size() {
+            return count;
+        }
+
+        int epochDayAt(int index) {
+            return window.getInt(start + index * 4);
+        }
+
+        float weightAt(int index) {
+            return window.getFloat(start + (count + index) * 4);
+        }
+
+        float thighAt(int index) {
+            return window.getFloat(start + (2 * count + index) * 4);
+        }
+
+        float waistAt(int index) {
+            return window.getFloat(start + (3 * count + index) * 4);
+        }
+
+        /*
+         * Returns the comment, or null for a null comment or a null assessment
+         * The comment is decoded each time, so it isn't kept in the heap
+         */
+        String commentAt(int index) {
+            int position = commentPositionAt(index);
+            return position < 0 ? null : archive.comment(position);
+        }
+
+        /*
+         * Returns a boolean indicating if a null assessment was put at the index
+         */
+        boolean isNullAt(int index) {
+            return commentPositionAt(index) == NULL_ASSESSMENT;
+        }
+
+        private int commentPositionAt(int index) {
+            return window.getInt(start + (4 * count + index) * 4);
+        }
+    }
+
+    /*
+     * Writes the assessments of each member to a new archive file
+     * Returns where each member's columns start in the file, in the same order as the
+     * members, or -1 for a member who has no assessments
+     * Members loaded lazily have their assessments read without keeping them (see Member.readAssessments)
+     * The snapshot's generation and the journal's length are only stored, to be compared by GymAPI.openArchive
+     */
+    static long[] write(String fileName, List<Member> members, long snapshotGeneration, long journalLength)
+            throws IOException {
+        long[] positions = new long[members.size()];
+        // Each distinct comment and its position in the comments
+        HashMap<String, Integer> commentPositions = new HashMap<String, Integer>();
+        ByteArrayOutputStream commentBytes = new ByteArrayOutputStream();
+        DataOutputStream commentsOut = new DataOutputStream(commentBytes);
+
+        long position;
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(fileName), BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            // Filled in once the columns and comments have been written
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeLong(snapshotGeneration);
+            out.writeLong(journalLength);
+            position = HEADER_SIZE;
+
+            for (int i = 0; i < members.size(); i++) {
+                Member member = members.get(i);
+                AssessmentMap assessments = member.readAssessments();
+                int count = assessments.size();
+                if (count == 0) {
+                    positions[i] = -1;
+                    continue;
+                }
+                long size = 4 + 20L * count;
+                if (size > WINDOW_SIZE) {
+                    throw new IOException("Too many assessments to archive for " + member.getEmail());
+                }
+                // Start the next window rather than have the columns cross into it
+                long windowEnd = (position / WINDOW_SIZE + 1) * WINDOW_SIZE;
+                if (position + size > windowEnd) {
+                    while (position < windowEnd) {
+                        out.writeByte(0);
+                        position++;
+                    }
+                }
+                positions[i] = position;
+
+                out.writeInt(count);
+                for (int j = 0; j < count; j++) {
+                    out.writeInt(assessments.epochDayAt(j));
+                }
+                for (int j = 0; j < count; j++) {
+                    out.writeFloat(assessments.weightAt(j));
+                }
+                for (int j = 0; j < count; j++) {
+                    out.writeFloat(assessments.thighAt(j));
+                }
+                for (int j = 0; j < count; j++) {
+                    out.writeFloat(assessments.waistAt(j));
+                }
+                for (int j = 0; j < count; j++) {
+                    String comment = assessments.commentAt(j);
+                    if (comment == null) {
+                        out.writeInt(assessments.isNullAt(j) ? NULL_ASSESSMENT : NO_COMMENT);
+                    }
+                    else {
+                        Integer commentPosition = commentPositions.get(comment);
+                        if (commentPosition == null) {
+                            commentPosition = commentsOut.size();
+                            byte[] utf8 = comment.getBytes(StandardCharsets.UTF_8);
+                            commentsOut.writeInt(utf8.length);
+                            commentsOut.write(utf8);
+                            if (commentsOut.size() > WINDOW_SIZE) {
+                                throw new IOException("Too many different comments to archive");
+                            }
+                            commentPositions.put(comment, commentPosition);
+                        }
+                        out.writeInt(commentPosition);
+                    }
+                }
+                position += size;
+            }
+            commentBytes.writeTo(out);
+
+            int count = 0;
+            for (long memberPosition : positions) {
+                if (memberPosition >= 0) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (int i = 0; i < members.size(); i++) {
+                if (positions[i] >= 0) {
+                    byte[] utf8 = members.get(i).getEmail().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(utf8.length);
+                    out.write(utf8);
+                    out.writeLong(positions[i]);
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        try {
+            file.seek(8);
+            file.writeLong(position);
+            file.writeLong(position + commentBytes.size());
+        }
+        finally {
+            file.close();
+        }
+        return positions;
+    }
+
+    /*
+     * Maps the archive file written by write
+     * The file is closed once it is mapped, the mappings last until the archive isn't used
+     */
+    static AssessmentArchive open(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new EOFException(fileName + " is not an assessment archive");
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(fileName + " is not an assessment archive");
+            }
+            short version = header.getShort(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported assessment archive version: " + version);
+            }
+            long commentsPosition = header.getLong(8);
+            long membersPosition = header.getLong(16);
+            if (commentsPosition < HEADER_SIZE || membersPosition < commentsPosition
+                    || membersPosition - commentsPosition > WINDOW_SIZE || membersPosition > channel.size()
+                    || channel.size() - membersPosition > Integer.MAX_VALUE) {
+                throw new IOException(fileName + " is damaged");
+            }
+
+            MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((commentsPosition - 1) / WINDOW_SIZE + 1)];
+            for (int i = 0; i < windows.length; i++) {
+                long start = (long) i * WINDOW_SIZE;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(WINDOW_SIZE, commentsPosition - start));
+            }
+            MappedByteBuffer comments = channel.map(FileChannel.MapMode.READ_ONLY, commentsPosition,
+                    membersPosition - commentsPosition);
+            MappedByteBuffer memberTable = channel.map(FileChannel.MapMode.READ_ONLY, membersPosition,
+                    channel.size() - membersPosition);
+            return new AssessmentArchive(windows, comments, memberTable, header);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /*
+     * Returns the columns of the member whose position write returned
+     */
+    Columns columnsAt(long position) {
+        ByteBuffer window = windows[(int) (position / WINDOW_SIZE)];
+        int start = (int) (position % WINDOW_SIZE);
+        return new Columns(this, window, start + 4, window.getInt(start));
+    }
+
+    /*
+     * Returns where each member's columns start in the file, by email
+     * Read from the members table each time, so the map isn't kept once it has been used
+     */
+    HashMap<String, Long> positions() throws IOException {
+        ByteBuffer table = memberTable.duplicate();
+        try {
+            int count = table.getInt();
+            HashMap<String, Long> positions = new HashMap<String, Long>(count * 2);
+            for (int i = 0; i < count; i++) {
+                byte[] utf8 = new byte[table.getInt()];
+                table.get(utf8);
+                positions.put(new String(utf8, StandardCharsets.UTF_8), table.getLong());
+            }
+            return positions;
+        }
+        catch (RuntimeException e) {
+            // A length in the table runs past the end of the file
+            throw new IOException("The assessment archive's members table is damaged", e);
+        }
+    }
+
+    long snapshotGeneration() {
+        return snapshotGeneration;
+    }
+
+    long journalLength() {
+        return journalLength;
+    }
+
+    /*
+     * Returns the newest archive written for the file name, or null if there is none
+     * The file name itself (as written before archives were numbered) counts as number 0
+     */
+    static File newestFile(String fileName) {
+        long newest = newestNumber(fileName);
+        if (newest < 0) {
+            return null;
+        }
+        return newest == 0 ? new File(fileName) : new File(fileName + "." + newest);
+    }
+
+    /*
+     * Returns the file the next archive for the file name is written to
+     */
+    static File nextFile(String fileName) {
+        // Numbered from 1, as 0 is the file name itself
+        return new File(fileName + "." + (Math.max(newestNumber(fileName), 0) + 1));
+    }
+
+    /*
+     * Deletes every archive for the file name older than the one passed as a parameter
+     * An archive that is still mapped can't be deleted on Windows, so it is left to be
+     * deleted by a later call
+     */
+    static void deleteOlder(String fileName, File keep) {
+        long kept = number(fileName, keep.getName());
+        for (File file : archiveFiles(fileName)) {
+            if (number(fileName, file.getName()) < kept) {
+                file.delete();
+            }
+        }
+    }
+
+    private static long newestNumber(String fileName) {
+        long newest = -1;
+        for (File file : archiveFiles(fileName)) {
+            newest = Math.max(newest, number(fileName, file.getName()));
+        }
+        return newest;
+    }
+
+    /*
+     * Returns the archives for the file name that are in its directory
+     */
+    private static File[] archiveFiles(final String fileName) {
+        File directory = new File(fileName).getAbsoluteFile().getParentFile();
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && number(fileName, file.getName()) >= 0;
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    /*
+     * Returns the number of the archive with the name passed as a parameter,
+     * or -1 if it isn't an archive for the file name
+     */
+    private static long number(String fileName, String name) {
+        String base = new File(fileName).getName();
+        if (name.equals(base)) {
+            return 0;
+        }
+        if (!name.startsWith(base + ".") || name.length() == base.length() + 1
+                || name.length() > base.length() + 19) {
+            return -1;
+        }
+        for (int i = base.length() + 1; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(name.substring(base.length() + 1));
+    }
+
+    private String comment(int position) {
+        byte[] utf8 = new byte[comments.getInt(position)];
+        // A duplicate has its own position, so other threads reading the comments aren't disturbed
+        ByteBuffer bytes = comments.duplicate();
+        bytes.position(position + 4);
+        bytes.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Converts assessments to and from XML without using reflection
+ * Writes the same elements XStream's reflection converter did (see PersonConverter)
+ */
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+public class AssessmentConverter implements Converter {
+
+    /*
+     * Converter declares the parameter as a raw Class, so that warning is suppressed here only
+     */
+    @SuppressWarnings("rawtypes")
+    public boolean canConvert(Class type) {
+        return type == Assessment.class;
+    }
+
+    public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+        Assessment assessment = (Assessment) source;
+        PersonConverter.writeField(writer, "weight", Float.toString(assessment.getWeight()));
+        PersonConverter.writeField(writer, "thigh", Float.toString(assessment.getThigh()));
+        PersonConverter.writeField(writer, "waist", Float.toString(assessment.getWaist()));
+        PersonConverter.writeField(writer, "comment", assessment.getComment());
+    }
+
+    public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        float weight = 0.0f;
+        float thigh = 0.0f;
+        float waist = 0.0f;
+        String comment = null;
+        while (reader.hasMoreChildren()) {
+            reader.moveDown();
+            String field = reader.getNodeName();
+            if (field.equals("weight")) {
+                weight = Float.parseFloat(reader.getValue());
+            }
+            else if (field.equals("thigh")) {
+                thigh = Float.parseFloat(reader.getValue());
+            }
+            else if (field.equals("waist")) {
+                waist = Float.parseFloat(reader.getValue());
+            }
+            else if (field.equals("comment")) {
+                comment = reader.getValue();
+            }
+            reader.moveUp();
+        }
+        return new Assessment(weight, thigh, waist, comment);
+    }
+}
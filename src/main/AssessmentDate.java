@@ -0,0 +1,199 @@
+/*
+ * Parses and formats assessment dates
+ * Dates are entered and displayed as YY/MM/DD (years 2000 to 2099) but are stored
+ * and compared as an epoch day (the number of days since 1970/01/01), so that
+ * sorting and date ranges only need integer comparisons
+ *
+ * The files store dates as YY/MM/DD, so a two digit year is always taken to be 20YY
+ * and only years 2000 to 2099 can be stored (a four digit year outside them is rejected
+ * rather than written back as a different year). When a file is loaded, an assessment
+ * whose date can't be parsed is skipped and reported rather than stopping the load
+ * (see GymAPI.skippedAssessments)
+ */
+
+import java.time.LocalDate;
+
+public class AssessmentDate {
+
+    // Returned by tryParse for a date that can't be parsed (no real date is this far from 1970)
+    public static final int INVALID = Integer.MIN_VALUE;
+
+    private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+    // Epoch days of the first and last dates that can be entered (00/01/01 and 99/12/31)
+    private static final int FIRST_DAY = 10957;
+    private static final int LAST_DAY = 47481;
+    // The YY/MM/DD String of each day, made the first time it is needed (see shared)
+    private static final String[] SHARED_DATES = new String[LAST_DAY - FIRST_DAY + 1];
+
+    /*
+     * Returns the epoch day of the date passed as a parameter
+     * Accepts YY/MM/DD, and also single digit months/days, four digit years
+     * and '-' or '.' as separators (eg 2018-5-16), which some older data uses
+     * Throws an IllegalArgumentException if the date is not a real date in one of these formats
+     */
+    public static int parse(String date) {
+        if (date == null) {
+            throw new IllegalArgumentException("Assessment date is missing");
+        }
+        int epochDay = tryParse(date);
+        if (epochDay == INVALID) {
+            throw new IllegalArgumentException("Assessment date must be a valid date in the format YY/MM/DD: " + date);
+        }
+        return epochDay;
+    }
+
+    /*
+     * Returns the epoch day of the date passed as a parameter, or INVALID if it can't be
+     * parsed (or is null), for callers that expect bad dates and shouldn't pay for an exception
+     */
+    public static int tryParse(String date) {
+        if (date == null) {
+            return INVALID;
+        }
+        // Fast path for the usual YY/MM/DD format
+        if (isCanonical(date)) {
+            return epochDay(2000 + twoDigits(date, 0), twoDigits(date, 3), twoDigits(date, 6));
+        }
+
+        int[] parts = new int[3];
+        int part = 0;
+        int digits = 0;
+        int[] partDigits = new int[3];
+        char separator = 0;
+        for (int i = 0; i < date.length(); i++) {
+            char c = date.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits == 4) {
+                    return INVALID;
+                }
+                parts[part] = parts[part] * 10 + (c - '0');
+                digits++;
+            }
+            else if ((c == '/' || c == '-' || c == '.') && digits > 0 && part < 2
+                    && (separator == 0 || separator == c)) {
+                separator = c;
+                partDigits[part] = digits;
+                part++;
+                digits = 0;
+            }
+            else {
+                return INVALID;
+            }
+        }
+        partDigits[part] = digits;
+        if (part != 2 || digits == 0) {
+            return INVALID;
+        }
+        int year;
+        if (partDigits[0] == 2) {
+            year = 2000 + parts[0];
+        }
+        else if (partDigits[0] == 4 && parts[0] >= 2000 && parts[0] <= 2099) {
+            year = parts[0];
+        }
+        else {
+            return INVALID;
+        }
+        if (partDigits[1] > 2 || partDigits[2] > 2) {
+            return INVALID;
+        }
+        return epochDay(year, parts[1], parts[2]);
+    }
+
+    /*
+     * Returns a boolean indicating if the date can be parsed
+     */
+    public static boolean isValid(String date) {
+        return tryParse(date) != INVALID;
+    }
+
+    /*
+     * Returns the epoch day as a YY/MM/DD String
+     */
+    public static String format(int epochDay) {
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        int year = date.getYear() - 2000;
+        int month = date.getMonthValue();
+        int day = date.getDayOfMonth();
+        char[] chars = {
+                (char) ('0' + year / 10), (char) ('0' + year % 10), '/',
+                (char) ('0' + month / 10), (char) ('0' + month % 10), '/',
+                (char) ('0' + day / 10), (char) ('0' + day % 10)
+        };
+        return new String(chars);
+    }
+
+    /*
+     * Returns the epoch day as a YY/MM/DD String, the same String each time for the same day,
+     * so the members' assessments share their dates rather than each storing their own
+     */
+    public static String shared(int epochDay) {
+        if (epochDay < FIRST_DAY || epochDay > LAST_DAY) {
+            return format(epochDay);
+        }
+        String date = SHARED_DATES[epochDay - FIRST_DAY];
+        if (date == null) {
+            // Interned, so it is also the same String as the date written in the code (eg "18/01/01")
+            // Two threads may both make the String the first time, either one can be kept
+            date = format(epochDay).intern();
+            SHARED_DATES[epochDay - FIRST_DAY] = date;
+        }
+        return date;
+    }
+
+    /*
+     * Returns the date in the YY/MM/DD format
+     * A date that is already in that format is returned as is
+     */
+    public static String normalise(String date) {
+        int epochDay = parse(date);
+        if (isCanonical(date)) {
+            return date;
+        }
+        return format(epochDay);
+    }
+
+    /*
+     * Returns a boolean indicating if the String has the shape NN/NN/NN
+     * (it may still not be a real date, eg 18/02/30)
+     */
+    public static boolean isCanonical(String date) {
+        if (date.length() != 8 || date.charAt(2) != '/' || date.charAt(5) != '/') {
+            return false;
+        }
+        for (int i = 0; i < 8; i++) {
+            char c = date.charAt(i);
+            if (i != 2 && i != 5 && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int twoDigits(String date, int start) {
+        return (date.charAt(start) - '0') * 10 + (date.charAt(start + 1) - '0');
+    }
+
+    /*
+     * Checks the month and day are valid and returns the number of days since 1970/01/01
+     * (or INVALID if they aren't)
+     */
+    private static int epochDay(int year, int month, int day) {
+        if (month < 1 || month > 12 || day < 1) {
+            return INVALID;
+        }
+        boolean leapYear = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        int daysInMonth = (month == 2 && leapYear) ? 29 : DAYS_IN_MONTH[month - 1];
+        if (day > daysInMonth) {
+            return INVALID;
+        }
+        // Count days from 0000/03/01 (so the leap day is at the end of the year)
+        // then shift to 1970/01/01
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Where a member's assessments are stored in a snapshot file that was loaded lazily
+ * (see GymSnapshot.readLazily), so they can be read the first time they are needed
+ * Only the latest assessment is kept in memory until then, which is all the
+ * BMI index and the ideal weight listing need
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class AssessmentHistory {
+
+    /*
+     * The snapshot file the assessments are read from, shared by every member loaded from it
+     * The file stays open (and readable after it is replaced by a newer snapshot) until closed
+     */
+    public static class Source implements Closeable {
+        private String fileName;
+        private FileChannel channel;
+        // Each distinct comment read from the file, shared by the members' assessments
+        private ConcurrentHashMap<String, String> comments = new ConcurrentHashMap<String, String>();
+
+        Source(String fileName) throws IOException {
+            this.fileName = fileName;
+            // Unlike RandomAccessFile, a FileChannel doesn't stop the file being replaced on Windows
+            this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        }
+
+        /*
+         * Reads the bytes at the position passed as a parameter
+         * Safe to call from several threads at once, as the channel's position isn't used
+         */
+        byte[] read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException(fileName + " is shorter than when it was loaded");
+                }
+            }
+            return buffer.array();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private Source source;
+    private long position;
+    private int length;
+    private short version;
+    private Assessment latest;
+    // The latest assessment's values as they are in the file, to tell if it has been changed since
+    private float storedWeight;
+    private float storedThigh;
+    private float storedWaist;
+    private String storedComment;
+
+    AssessmentHistory(Source source, long position, int length, short version, Assessment latest) {
+        this.source = source;
+        this.position = position;
+        this.length = length;
+        this.version = version;
+        this.latest = latest;
+        if (latest != null) {
+            storedWeight = latest.getWeight();
+            storedThigh = latest.getThigh();
+            storedWaist = latest.getWaist();
+            storedComment = latest.getComment();
+        }
+    }
+
+    /*
+     * Returns the latest assessment, or null if the member has none
+     * Callers may change it, so the stored bytes are only used as they are while it is unchanged
+     * (see isLatestChanged)
+     */
+    public Assessment latest() {
+        return latest;
+    }
+
+    /*
+     * Returns a boolean indicating if the latest assessment has been changed since it was read,
+     * in which case the stored bytes (see readBytes) are out of date
+     */
+    boolean isLatestChanged() {
+        if (latest == null) {
+            return false;
+        }
+        String comment = latest.getComment();
+        return Float.floatToIntBits(latest.getWeight()) != Float.floatToIntBits(storedWeight)
+                || Float.floatToIntBits(latest.getThigh()) != Float.floatToIntBits(storedThigh)
+                || Float.floatToIntBits(latest.getWaist()) != Float.floatToIntBits(storedWaist)
+                || (comment == null ? storedComment != null : !comment.equals(storedComment));
+    }
+
+    /*
+     * Returns the version of the snapshot encoding the assessments are stored in
+     */
+    public short getVersion() {
+        return version;
+    }
+
+    /*
+     * Returns the stored assessments exactly as they are in the snapshot file
+     * (the number of assessments followed by each one), without any change made to the latest one
+     */
+    byte[] readBytes() throws IOException {
+        return source.read(position, length);
+    }
+
+    /*
+     * Reads every assessment from the snapshot file for the member to keep
+     * The latest assessment callers may already have becomes a view of the loaded
+     * assessments, so changes made through it aren't lost
+     */
+    public AssessmentMap load() throws IOException {
+        AssessmentMap assessments = read();
+        if (latest != null) {
+            latest.attach(assessments, assessments.size() - 1);
+        }
+        return assessments;
+    }
+
+    /*
+     * Reads every assessment from the snapshot file without changing the latest assessment
+     * (for a caller that only needs them for a moment, see Member.readAssessments)
+     */
+    public AssessmentMap read() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(readBytes()));
+        AssessmentMap assessments = GymSnapshot.readAssessments(in, version, source.comments);
+        if (latest != null) {
+            // The latest assessment may have been changed since it was read
+            assessments.putValues(assessments.epochDayAt(assessments.size() - 1), latest.getWeight(),
+                    latest.getThigh(), latest.getWaist(), latest.getComment());
+        }
+        return assessments;
+    }
+}
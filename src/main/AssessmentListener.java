@@ -0,0 +1,21 @@
+/*
+ * Told about every change to a member's assessments, however it is made (through GymAPI,
+ * a put into Member.getAssessments or a setter of one of its Assessments)
+ * GymAPI uses this to journal the changes made to its members (see Member.addAssessmentListener)
+ */
+
+interface AssessmentListener {
+
+    /*
+     * Called before an assessment is put, changed or removed, with the date (YY/MM/DD) and the
+     * assessment it will then have (null for a null assessment), or removed set to true
+     * A null date with removed set to true means every assessment is being removed
+     * Throwing an exception stops the change from being made
+     */
+    void assessmentChanging(Member member, String date, Assessment assessment, boolean removed);
+
+    /*
+     * Called once the change has been made
+     */
+    void assessmentChanged(Member member);
+}
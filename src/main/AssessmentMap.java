@@ -0,0 +1,716 @@
+/*
+ * A member's assessments keyed by date (YY/MM/DD), kept in chronological order
+ * so the latest assessment and an ordered list of assessments are available
+ * without sorting the dates each time
+ *
+ * The assessments are stored in columns rather than as separate objects: parallel
+ * arrays of the epoch day, weight, thigh, waist and comment of each assessment,
+ * sorted by day. That takes around 20 bytes an assessment, where a HashMap entry,
+ * an Assessment and a date String took over 150, and a scan of a member's weights
+ * only reads one array
+ * The Assessments returned are views of the columns (see Assessment), so changing one
+ * changes the stored assessment. Putting an assessment copies its values into the columns,
+ * the assessment passed in is left as it was. The dates returned are shared by every member
+ * (see AssessmentDate.shared) rather than stored
+ *
+ * Iterating the map goes through the assessments in chronological order
+ *
+ * The columns may instead be read from a memory-mapped archive file (see AssessmentArchive),
+ * in which case they are copied into arrays the first time the assessments change
+ */
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+public class AssessmentMap extends AbstractMap<String, Assessment> implements Cloneable {
+
+    // Put in the comments column for a date whose assessment is null (which a map allows)
+    private static final String NULL_ASSESSMENT = new String("null assessment");
+
+    // The columns, each holding count assessments in chronological order
+    private int[] days;
+    private float[] weights;
+    private float[] thighs;
+    private float[] waists;
+    private String[] comments;
+    private int count;
+    // The archived columns read instead of the arrays above, or null if the assessments
+    // are in the arrays (the arrays are null while the assessments are archived)
+    private AssessmentArchive.Columns archived;
+    // Changed each time an assessment is added or removed, so iterators can tell
+    private int modifications;
+    // Changed each time anything changes, so the views can tell when to read their values again
+    private int changes;
+    // Generation of each day whose assessment has been replaced or removed (days not in it are 0),
+    // so the views of the old assessment don't become views of the one put in its place
+    // Null until an assessment is first replaced or removed
+    private HashMap<Integer, Integer> generations;
+    private int lastGeneration;
+    // The member these assessments belong to, told before and after the assessments change
+    private Member owner;
+
+    /*
+     * Constructor for AssessmentMap
+     */
+    public AssessmentMap() {
+        this(4);
+    }
+
+    /*
+     * Creates an empty AssessmentMap with room for the number of assessments passed as a parameter
+     */
+    public AssessmentMap(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    /*
+     * Creates an AssessmentMap that reads the archived assessments passed as a parameter
+     */
+    AssessmentMap(AssessmentArchive.Columns archived) {
+        this.archived = archived;
+        this.count = archived.size();
+    }
+
+    /*
+     * Creates an AssessmentMap holding the same assessments as the map passed as a parameter
+     */
+    public AssessmentMap(Map<String, Assessment> assessments) {
+        this(assessments.size());
+        putAll(assessments);
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /*
+     * Adds (or replaces) the assessment for the date
+     * Dates in other formats that AssessmentDate accepts (eg 2018-5-16) are stored as YY/MM/DD
+     * The assessment's values are copied in, the assessment passed in doesn't change or become a view
+     * Returns the assessment that was replaced (not a view) or null if there wasn't one
+     * Throws an IllegalArgumentException if the date is not a valid date
+     */
+    @Override
+    public Assessment put(String date, Assessment assessment) {
+        int day = AssessmentDate.parse(date);
+        changing(AssessmentDate.shared(day), assessment, false);
+        int position = firstIndexOnOrAfter(day);
+        Assessment previous = null;
+        if (position < count && dayAt(position) == day) {
+            previous = copyOf(position);
+            retire(day);
+        }
+        if (assessment == null) {
+            putValues(day, 0.0f, 0.0f, 0.0f, NULL_ASSESSMENT);
+        }
+        else {
+            putValues(day, assessment.getWeight(), assessment.getThigh(), assessment.getWaist(),
+                    assessment.getComment());
+        }
+        changed(true);
+        return previous;
+    }
+
+    /*
+     * Adds (or replaces) the assessment for the epoch day without creating an Assessment
+     * Used when loading, so the owner isn't told. Returns the index it was put at
+     */
+    int putValues(int day, float weight, float thigh, float waist, String comment) {
+        unarchive();
+        int position;
+        if (count == 0 || days[count - 1] < day) {
+            // Assessments are usually added in order, so this just appends
+            position = count;
+        }
+        else {
+            position = firstIndexOnOrAfter(day);
+        }
+        if (position == count || days[position] != day) {
+            insertAt(position);
+            days[position] = day;
+        }
+        weights[position] = weight;
+        thighs[position] = thigh;
+        waists[position] = waist;
+        comments[position] = comment;
+        changes++;
+        return position;
+    }
+
+    @Override
+    public Assessment get(Object date) {
+        int position = indexOf(date);
+        if (position < 0) {
+            return null;
+        }
+        return view(position);
+    }
+
+    @Override
+    public boolean containsKey(Object date) {
+        return indexOf(date) >= 0;
+    }
+
+    /*
+     * Removes the assessment for the date
+     * Returns the removed assessment (no longer a view) or null if there wasn't one
+     */
+    @Override
+    public Assessment remove(Object date) {
+        int position = indexOf(date);
+        if (position < 0) {
+            return null;
+        }
+        changing(AssessmentDate.shared(dayAt(position)), null, true);
+        Assessment removed = copyOf(position);
+        retire(dayAt(position));
+        removeAt(position);
+        changed(true);
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        changing(null, null, true);
+        for (int i = 0; i < count; i++) {
+            retire(dayAt(i));
+        }
+        if (archived != null) {
+            // Nothing to copy out of the archive
+            allocate(4);
+            archived = null;
+        }
+        else {
+            Arrays.fill(comments, 0, count, null);
+        }
+        count = 0;
+        modifications++;
+        changes++;
+        changed(true);
+    }
+
+    @Override
+    public Object clone() {
+        AssessmentMap copy;
+        try {
+            copy = (AssessmentMap) super.clone();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        // Archived columns can't change, so a copy can share them
+        if (archived == null) {
+            copy.days = days.clone();
+            copy.weights = weights.clone();
+            copy.thighs = thighs.clone();
+            copy.waists = waists.clone();
+            copy.comments = comments.clone();
+        }
+        if (generations != null) {
+            copy.generations = new HashMap<Integer, Integer>(generations);
+        }
+        copy.owner = null;
+        return copy;
+    }
+
+    /*
+     * Returns the assessments in chronological order as map entries
+     * Setting an entry's value replaces the assessment, and the iterator can remove them
+     */
+    @Override
+    public Set<Map.Entry<String, Assessment>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Assessment>>() {
+            public int size() {
+                return count;
+            }
+
+            public Iterator<Map.Entry<String, Assessment>> iterator() {
+                return new Iterator<Map.Entry<String, Assessment>>() {
+                    private int next;
+                    private int last = -1;
+                    private int expectedModifications = modifications;
+
+                    public boolean hasNext() {
+                        return next < count;
+                    }
+
+                    public Map.Entry<String, Assessment> next() {
+                        if (modifications != expectedModifications) {
+                            throw new ConcurrentModificationException();
+                        }
+                        if (next >= count) {
+                            throw new NoSuchElementException();
+                        }
+                        last = next++;
+                        return new DateEntry(AssessmentMap.this, AssessmentDate.shared(dayAt(last)), view(last));
+                    }
+
+                    public void remove() {
+                        if (last < 0) {
+                            throw new IllegalStateException();
+                        }
+                        if (modifications != expectedModifications) {
+                            throw new ConcurrentModificationException();
+                        }
+                        changing(AssessmentDate.shared(dayAt(last)), null, true);
+                        retire(dayAt(last));
+                        removeAt(last);
+                        changed(true);
+                        next = last;
+                        last = -1;
+                        expectedModifications = modifications;
+                    }
+                };
+            }
+        };
+    }
+
+    /*
+     * An entry returned by the entry set's iterator, setting its value puts the assessment in the map
+     */
+    private static class DateEntry extends AbstractMap.SimpleEntry<String, Assessment> {
+        // Entries are never serialized, but SimpleEntry is Serializable so it is declared anyway
+        private static final long serialVersionUID = 1L;
+
+        private transient AssessmentMap map;
+
+        private DateEntry(AssessmentMap map, String date, Assessment assessment) {
+            super(date, assessment);
+            this.map = map;
+        }
+
+        @Override
+        public Assessment setValue(Assessment assessment) {
+            super.setValue(assessment);
+            return map.put(getKey(), assessment);
+        }
+    }
+
+    /*
+     * Called by Member so that it is told when the assessments change
+     */
+    void setOwner(Member owner) {
+        this.owner = owner;
+    }
+
+    /*
+     * Tells the owner about a change before it is made, so it can be journaled first
+     * (see AssessmentListener). If the owner throws an exception nothing has changed
+     */
+    private void changing(String date, Assessment assessment, boolean removed) {
+        if (owner != null) {
+            owner.assessmentChanging(date, assessment, removed);
+        }
+    }
+
+    /*
+     * Tells the owner about a change once it has been made
+     */
+    private void changed(boolean bmiMayHaveChanged) {
+        if (owner != null) {
+            owner.assessmentChanged(bmiMayHaveChanged);
+        }
+    }
+
+    /*
+     * Returns the assessment with the latest date, or null if there are none
+     */
+    public Assessment latest() {
+        if (count == 0) {
+            return null;
+        }
+        return view(count - 1);
+    }
+
+    /*
+     * Returns the assessment with the earliest date, or null if there are none
+     */
+    public Assessment earliest() {
+        if (count == 0) {
+            return null;
+        }
+        return view(0);
+    }
+
+    /*
+     * Returns a read only list of the dates from oldest to latest
+     */
+    public List<String> chronologicalDates() {
+        return new AbstractList<String>() {
+            public String get(int index) {
+                return AssessmentDate.shared(epochDayAt(index));
+            }
+
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    /*
+     * Returns a read only list of the assessments from oldest to latest
+     */
+    public List<Assessment> chronologicalAssessments() {
+        return new AbstractList<Assessment>() {
+            public Assessment get(int index) {
+                checkIndex(index);
+                return view(index);
+            }
+
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    /*
+     * Returns a read only list of the assessments dated between the two epoch days (inclusive)
+     * in chronological order
+     */
+    public List<Assessment> assessmentsBetween(int fromDay, int toDay) {
+        List<Assessment> ordered = chronologicalAssessments();
+        int from = firstIndexOnOrAfter(fromDay);
+        int to = firstIndexOnOrAfter(toDay + 1);
+        if (to <= from) {
+            return ordered.subList(0, 0);
+        }
+        return ordered.subList(from, to);
+    }
+
+    /*
+     * Returns a read only list of the dates between the two epoch days (inclusive)
+     */
+    public List<String> datesBetween(int fromDay, int toDay) {
+        List<String> ordered = chronologicalDates();
+        int from = firstIndexOnOrAfter(fromDay);
+        int to = firstIndexOnOrAfter(toDay + 1);
+        if (to <= from) {
+            return ordered.subList(0, 0);
+        }
+        return ordered.subList(from, to);
+    }
+
+    /*
+     * Returns the epoch day of the date at the index in chronological order
+     */
+    public int epochDayAt(int index) {
+        checkIndex(index);
+        return dayAt(index);
+    }
+
+    /*
+     * The measurements and comment of the assessment at the index in chronological order
+     * Scans that read every assessment use these rather than creating an Assessment for each one
+     */
+    public float weightAt(int index) {
+        checkIndex(index);
+        return archived != null ? archived.weightAt(index) : weights[index];
+    }
+
+    public float thighAt(int index) {
+        checkIndex(index);
+        return archived != null ? archived.thighAt(index) : thighs[index];
+    }
+
+    public float waistAt(int index) {
+        checkIndex(index);
+        return archived != null ? archived.waistAt(index) : waists[index];
+    }
+
+    public String commentAt(int index) {
+        checkIndex(index);
+        if (archived != null) {
+            return archived.commentAt(index);
+        }
+        return comments[index] == NULL_ASSESSMENT ? null : comments[index];
+    }
+
+    /*
+     * Returns a boolean indicating if a null assessment was put at the index
+     */
+    boolean isNullAt(int index) {
+        checkIndex(index);
+        return archived != null ? archived.isNullAt(index) : comments[index] == NULL_ASSESSMENT;
+    }
+
+    /*
+     * Changes the assessment at the index (used by the Assessment views)
+     * The owner is told about the assessment as it will be, so the change can be journaled
+     * A new weight may change the member's BMI
+     */
+    void setWeightAt(int index, float weight) {
+        checkIndex(index);
+        if (owner != null) {
+            Assessment changedTo = copyOf(index);
+            changedTo.setWeight(weight);
+            changing(AssessmentDate.shared(dayAt(index)), changedTo, false);
+        }
+        unarchive();
+        weights[index] = weight;
+        changes++;
+        changed(true);
+    }
+
+    void setThighAt(int index, float thigh) {
+        checkIndex(index);
+        if (owner != null) {
+            Assessment changedTo = copyOf(index);
+            changedTo.setThigh(thigh);
+            changing(AssessmentDate.shared(dayAt(index)), changedTo, false);
+        }
+        unarchive();
+        thighs[index] = thigh;
+        changes++;
+        changed(false);
+    }
+
+    void setWaistAt(int index, float waist) {
+        checkIndex(index);
+        if (owner != null) {
+            Assessment changedTo = copyOf(index);
+            changedTo.setWaist(waist);
+            changing(AssessmentDate.shared(dayAt(index)), changedTo, false);
+        }
+        unarchive();
+        waists[index] = waist;
+        changes++;
+        changed(false);
+    }
+
+    void setCommentAt(int index, String comment) {
+        checkIndex(index);
+        if (owner != null) {
+            Assessment changedTo = copyOf(index);
+            changedTo.setComment(comment);
+            changing(AssessmentDate.shared(dayAt(index)), changedTo, false);
+        }
+        unarchive();
+        comments[index] = comment;
+        changes++;
+        changed(false);
+    }
+
+    /*
+     * Returns the index of the assessment on the epoch day, looking at the index it was last at
+     * first. Returns -1 if there is no assessment on that day of the generation passed as a
+     * parameter (it has been removed, or replaced by another one)
+     */
+    int indexOf(int day, int generation, int lastIndex) {
+        int position = lastIndex;
+        if (position >= count || dayAt(position) != day) {
+            position = firstIndexOnOrAfter(day);
+            if (position == count || dayAt(position) != day) {
+                return -1;
+            }
+        }
+        if (generationAt(position) != generation) {
+            return -1;
+        }
+        return position;
+    }
+
+    /*
+     * Returns the generation of the assessment at the index (see Assessment)
+     */
+    int generationAt(int index) {
+        if (generations == null) {
+            return 0;
+        }
+        Integer generation = generations.get(dayAt(index));
+        return generation == null ? 0 : generation;
+    }
+
+    /*
+     * Returns the number of changes made to the assessments so far
+     */
+    int changes() {
+        return changes;
+    }
+
+    /*
+     * Gives the day a new generation before its assessment is replaced or removed,
+     * so views of the old assessment stop being views
+     */
+    private void retire(int day) {
+        if (generations == null) {
+            generations = new HashMap<Integer, Integer>();
+        }
+        generations.put(day, ++lastGeneration);
+    }
+
+    /*
+     * Returns the position of the first date on or after the epoch day
+     */
+    int firstIndexOnOrAfter(int epochDay) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (dayAt(middle) < epochDay) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Returns the index of the date, or -1 if there is no assessment for it
+     * Dates that aren't in the YY/MM/DD format are looked up by the day they are
+     */
+    private int indexOf(Object date) {
+        if (!(date instanceof String)) {
+            return -1;
+        }
+        int day = AssessmentDate.tryParse((String) date);
+        if (day == AssessmentDate.INVALID) {
+            return -1;
+        }
+        int position = firstIndexOnOrAfter(day);
+        if (position == count || dayAt(position) != day) {
+            return -1;
+        }
+        return position;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+    }
+
+    /*
+     * Returns a view of the assessment at the index, or null if a null assessment was put there
+     */
+    private Assessment view(int index) {
+        if (isNullAt(index)) {
+            return null;
+        }
+        return new Assessment(this, index);
+    }
+
+    /*
+     * Returns a copy of the assessment at the index that isn't a view
+     */
+    private Assessment copyOf(int index) {
+        if (isNullAt(index)) {
+            return null;
+        }
+        return new Assessment(weightAt(index), thighAt(index), waistAt(index), commentAt(index));
+    }
+
+    /*
+     * Makes room for an assessment at the position, moving the later ones along
+     */
+    private void insertAt(int position) {
+        if (count == days.length) {
+            int capacity = count * 2;
+            days = Arrays.copyOf(days, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+            thighs = Arrays.copyOf(thighs, capacity);
+            waists = Arrays.copyOf(waists, capacity);
+            comments = Arrays.copyOf(comments, capacity);
+        }
+        int moved = count - position;
+        if (moved > 0) {
+            System.arraycopy(days, position, days, position + 1, moved);
+            System.arraycopy(weights, position, weights, position + 1, moved);
+            System.arraycopy(thighs, position, thighs, position + 1, moved);
+            System.arraycopy(waists, position, waists, position + 1, moved);
+            System.arraycopy(comments, position, comments, position + 1, moved);
+        }
+        count++;
+        modifications++;
+    }
+
+    private void removeAt(int position) {
+        unarchive();
+        int moved = count - position - 1;
+        System.arraycopy(days, position + 1, days, position, moved);
+        System.arraycopy(weights, position + 1, weights, position, moved);
+        System.arraycopy(thighs, position + 1, thighs, position, moved);
+        System.arraycopy(waists, position + 1, waists, position, moved);
+        System.arraycopy(comments, position + 1, comments, position, moved);
+        count--;
+        comments[count] = null;
+        modifications++;
+        changes++;
+    }
+
+    /*
+     * Reads the assessments from the archived columns passed as a parameter instead of the arrays,
+     * which are freed. Called by Member once the assessments have been written to the archive
+     */
+    void archive(AssessmentArchive.Columns columns) {
+        archived = columns;
+        count = columns.size();
+        days = null;
+        weights = null;
+        thighs = null;
+        waists = null;
+        comments = null;
+    }
+
+    /*
+     * Returns a boolean indicating if the assessments are read from an archive file
+     */
+    boolean isArchived() {
+        return archived != null;
+    }
+
+    /*
+     * Copies archived assessments into the arrays so they can be changed
+     */
+    private void unarchive() {
+        if (archived == null) {
+            return;
+        }
+        // Room for a few more, as assessments are usually added after the archive is written
+        allocate(count + 4);
+        for (int i = 0; i < count; i++) {
+            days[i] = archived.epochDayAt(i);
+            weights[i] = archived.weightAt(i);
+            thighs[i] = archived.thighAt(i);
+            waists[i] = archived.waistAt(i);
+            comments[i] = archived.isNullAt(i) ? NULL_ASSESSMENT : archived.commentAt(i);
+        }
+        archived = null;
+    }
+
+    private int dayAt(int index) {
+        return archived != null ? archived.epochDayAt(index) : days[index];
+    }
+
+    private void allocate(int capacity) {
+        days = new int[capacity];
+        weights = new float[capacity];
+        thighs = new float[capacity];
+        waists = new float[capacity];
+        comments = new String[capacity];
+    }
+
+    /*
+     * Returns the String in the dictionary equal to the value passed as a parameter, adding it
+     * if there isn't one, so loaders can share each distinct comment between assessments
+     * A null dictionary returns the value as it is
+     */
+    static String shared(Map<String, String> dictionary, String value) {
+        if (dictionary == null || value == null) {
+            return value;
+        }
+        String shared = dictionary.putIfAbsent(value, value);
+        return shared != null ? shared : value;
+    }
+}
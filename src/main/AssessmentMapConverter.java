@@ -0,0 +1,74 @@
+/*
+ * Converts a member's assessments to and from XML the same way XStream's MapConverter does,
+ * except that when loading, an assessment whose date can't be parsed is skipped and
+ * reported (see GymAPI.skippedAssessments) rather than stopping the whole file loading
+ * Only skips when the load asked for a report (by putting a list under SKIPPED in the
+ * DataHolder), otherwise a bad date fails the load as it did before
+ */
+
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.converters.collections.MapConverter;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class AssessmentMapConverter extends MapConverter {
+
+    // Key of the list of report lines in the DataHolder passed when loading
+    static final String SKIPPED = "skippedAssessments";
+    // Key of the dates skipped for the member currently being read, reported once their email is known
+    private static final String BAD_DATES = "badAssessmentDates";
+
+    /*
+     * Constructor for AssessmentMapConverter
+     */
+    public AssessmentMapConverter(Mapper mapper) {
+        super(mapper, AssessmentMap.class);
+    }
+
+    /*
+     * Reads one <entry> (a date <string> then an <Assessment>) into the map
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected void putCurrentEntryIntoMap(HierarchicalStreamReader reader, UnmarshallingContext context,
+                                          Map map, Map target) {
+        reader.moveDown();
+        Object key = readItem(reader, context, map);
+        reader.moveUp();
+        reader.moveDown();
+        Object value = readItem(reader, context, map);
+        reader.moveUp();
+
+        if (key instanceof String && !AssessmentDate.isValid((String) key) && context.get(SKIPPED) != null) {
+            List<String> badDates = (List<String>) context.get(BAD_DATES);
+            if (badDates == null) {
+                badDates = new ArrayList<String>();
+                context.put(BAD_DATES, badDates);
+            }
+            badDates.add((String) key);
+            return;
+        }
+        target.put(key, value);
+    }
+
+    /*
+     * Called by PersonConverter once a member has been read, to report the dates
+     * skipped while reading their assessments
+     */
+    @SuppressWarnings("unchecked")
+    static void reportSkipped(UnmarshallingContext context, String email) {
+        List<String> badDates = (List<String>) context.get(BAD_DATES);
+        if (badDates == null || badDates.isEmpty()) {
+            return;
+        }
+        List<String> skipped = (List<String>) context.get(SKIPPED);
+        for (String date : badDates) {
+            skipped.add(PersonXmlReader.skippedAssessment(email, date));
+        }
+        badDates.clear();
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * The BMI categories a member can be in, from the lowest BMI to the highest
+ * (see GymUtility.bmiCategory)
+ * Scans and indexes compare and store categories rather than their names
+ */
+
+public enum BMICategory {
+    SEVERELY_UNDERWEIGHT("SEVERELY UNDERWEIGHT"),
+    UNDERWEIGHT("UNDERWEIGHT"),
+    NORMAL("NORMAL"),
+    OVERWEIGHT("OVERWEIGHT"),
+    MODERATELY_OBESE("MODERATELY OBESE"),
+    SEVERELY_OBESE("SEVERELY OBESE");
+
+    // The name shown to users and returned by GymUtility's determineBMICategory method
+    private final String label;
+
+    BMICategory(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
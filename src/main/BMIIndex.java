@@ -0,0 +1,211 @@
+/*
+ * Secondary index from BMI category to the members in it
+ * Each member's category (based on their latest assessment) is worked out when
+ * they are added and again whenever their height or latest assessment changes,
+ * so listing a category doesn't need to calculate every member's BMI
+ *
+ * A member's id is their position in the members list, and each category keeps
+ * a sorted list of ids, so results come back in the same order as the members list
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class BMIIndex {
+
+    // The names of the categories returned by GymUtility's determineBMICategory method,
+    // in the same order as BMICategory (a member's category is stored as its position)
+    public static final String[] CATEGORIES = new String[BMICategory.values().length];
+    static {
+        for (BMICategory category : BMICategory.values()) {
+            CATEGORIES[category.ordinal()] = category.getLabel();
+        }
+    }
+    // Category of a member with no assessments (they are in no category)
+    private static final int NONE = -1;
+
+    // Indexed members, in the order they were added (the id of a member is their position)
+    private ArrayList<Member> members;
+    private IdentityHashMap<Member, Integer> ids;
+    // Current category of each member, by id
+    private int[] memberCategories;
+    // Sorted ids of the members in each category
+    private IdList[] categoryIds;
+    // Listing shares the read lock, adding and updating need the write lock
+    // (updates come from members, which may be changed on several threads at once)
+    private ReentrantReadWriteLock lock;
+
+    /*
+     * Constructor for BMIIndex
+     */
+    public BMIIndex() {
+        members = new ArrayList<Member>();
+        ids = new IdentityHashMap<Member, Integer>();
+        memberCategories = new int[16];
+        categoryIds = new IdList[CATEGORIES.length];
+        for (int i = 0; i < categoryIds.length; i++) {
+            categoryIds[i] = new IdList();
+        }
+        lock = new ReentrantReadWriteLock();
+    }
+
+    /*
+     * Adds a member to the end of the index
+     * The member will let the index know when their height or latest assessment changes
+     */
+    public void add(Member member) {
+        lock.writeLock().lock();
+        try {
+            int id = members.size();
+            members.add(member);
+            ids.put(member, id);
+            if (id == memberCategories.length) {
+                memberCategories = Arrays.copyOf(memberCategories, id * 2);
+            }
+            int category = categoryOf(member);
+            memberCategories[id] = category;
+            if (category != NONE) {
+                // Ids are handed out in increasing order, so this keeps the list sorted
+                categoryIds[category].append(id);
+            }
+            member.addBMIIndex(this);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Removes every member from the index
+     * Members stay in any other index they were added to
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            for (Member member : members) {
+                member.removeBMIIndex(this);
+            }
+            members.clear();
+            ids.clear();
+            for (IdList list : categoryIds) {
+                list.clear();
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Called by a member when their height or latest assessment may have changed
+     * Moves the member to their new category if it has changed
+     */
+    void update(Member member) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(member);
+            if (id == null) {
+                return;
+            }
+            int oldCategory = memberCategories[id];
+            int newCategory = categoryOf(member);
+            if (oldCategory == newCategory) {
+                return;
+            }
+            if (oldCategory != NONE) {
+                categoryIds[oldCategory].remove(id);
+            }
+            if (newCategory != NONE) {
+                categoryIds[newCategory].insert(id);
+            }
+            memberCategories[id] = newCategory;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Returns the members whose category partially or entirely matches the entered category
+     * (ignoring case), in the order they were added to the index
+     */
+    public ArrayList<Member> membersInCategory(String category) {
+        lock.readLock().lock();
+        try {
+            boolean[] matching = matchingCategories(category);
+            // Merge the sorted id lists of every matching category
+            int[] positions = new int[CATEGORIES.length];
+            int total = 0;
+            for (int i = 0; i < CATEGORIES.length; i++) {
+                if (matching[i]) {
+                    total += categoryIds[i].size;
+                }
+            }
+            ArrayList<Member> result = new ArrayList<Member>(total);
+            while (result.size() < total) {
+                int next = -1;
+                int nextId = Integer.MAX_VALUE;
+                for (int i = 0; i < CATEGORIES.length; i++) {
+                    if (matching[i] && positions[i] < categoryIds[i].size && categoryIds[i].ids[positions[i]] < nextId) {
+                        next = i;
+                        nextId = categoryIds[i].ids[positions[i]];
+                    }
+                }
+                positions[next]++;
+                result.add(members.get(nextId));
+            }
+            return result;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Returns the number of members whose category partially or entirely matches
+     * the entered category (ignoring case)
+     */
+    public int countInCategory(String category) {
+        lock.readLock().lock();
+        try {
+            boolean[] matching = matchingCategories(category);
+            int count = 0;
+            for (int i = 0; i < CATEGORIES.length; i++) {
+                if (matching[i]) {
+                    count += categoryIds[i].size;
+                }
+            }
+            return count;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Works out which categories contain the entered text (eg "OBESE" matches
+     * both MODERATELY OBESE and SEVERELY OBESE)
+     */
+    private static boolean[] matchingCategories(String category) {
+        String upperCase = category.toUpperCase();
+        boolean[] matching = new boolean[CATEGORIES.length];
+        for (int i = 0; i < CATEGORIES.length; i++) {
+            matching[i] = CATEGORIES[i].contains(upperCase);
+        }
+        return matching;
+    }
+
+    /*
+     * Returns the position in CATEGORIES of the member's category based on their latest assessment
+     * or NONE if they have no assessments
+     */
+    private static int categoryOf(Member member) {
+        Assessment latestAssessment = member.latestAssessment();
+        if (latestAssessment == null) {
+            return NONE;
+        }
+        return GymUtility.bmiCategory(GymUtility.calculateBMI(member, latestAssessment)).ordinal();
+    }
+}
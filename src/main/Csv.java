@@ -0,0 +1,87 @@
+/*
+ * Splits and writes lines of comma separated values
+ * A field may be wrapped in double quotes so it can contain commas, with a double
+ * quote inside a quoted field written twice (""), as spreadsheets write them
+ * Quoted fields can't span more than one line
+ */
+
+import java.util.ArrayList;
+
+public class Csv {
+
+    /*
+     * Returns the fields in the line
+     * Throws an IllegalArgumentException if a quoted field isn't closed
+     */
+    public static ArrayList<String> split(String line) {
+        ArrayList<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        int i = 0;
+        while (true) {
+            field.setLength(0);
+            if (i < line.length() && line.charAt(i) == '"') {
+                // Quoted field, ends at a quote that isn't doubled
+                i++;
+                while (true) {
+                    if (i >= line.length()) {
+                        throw new IllegalArgumentException("Quoted field is not closed");
+                    }
+                    char c = line.charAt(i++);
+                    if (c == '"') {
+                        if (i < line.length() && line.charAt(i) == '"') {
+                            field.append('"');
+                            i++;
+                        }
+                        else {
+                            break;
+                        }
+                    }
+                    else {
+                        field.append(c);
+                    }
+                }
+                // Anything between the closing quote and the next comma is kept
+                while (i < line.length() && line.charAt(i) != ',') {
+                    field.append(line.charAt(i++));
+                }
+            }
+            else {
+                while (i < line.length() && line.charAt(i) != ',') {
+                    field.append(line.charAt(i++));
+                }
+            }
+            fields.add(field.toString());
+            if (i >= line.length()) {
+                return fields;
+            }
+            // Skip the comma
+            i++;
+        }
+    }
+
+    /*
+     * Appends the value as a field, quoted if it contains a comma, a quote, a line break
+     * or spaces at either end (which split would otherwise keep but RosterImport trims)
+     */
+    public static void appendField(StringBuilder out, String value) {
+        boolean quote = !value.isEmpty() && (value.charAt(0) == ' ' || value.charAt(value.length() - 1) == ' ');
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                // A quote inside a quoted field is written twice
+                out.append('"');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+}
@@ -1,24 +1,110 @@
 /*
  * Operates between the model classes and the menu driver class
  * Contains a series of methods that allow a user to interact with the database
+ *
+ * A GymAPI can be shared by several threads (eg a number of front desk terminals)
+ * The members and trainers lists and the indexes are guarded by a read/write lock:
+ * searches and reports share the read lock and run in parallel, and only adding
+ * persons or replacing the lists (loading) needs the write lock
+ * Each person's own details and assessments are guarded by one of a set of striped
+ * read/write locks, so changes to different persons don't wait for each other
+ * Changes should be made through GymAPI's methods (eg addAssessment) for this to work
  */
 
 import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.DomDriver;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
+import com.thoughtworks.xstream.io.xml.StaxDriver;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.SortedSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class GymAPI {
+    // Number of striped locks (a power of two so a stripe can be picked with a mask)
+    private static final int STRIPES = 64;
+    // Configuring an XStream is slow, so one is shared (it is thread safe once configured)
+    static final XStream XSTREAM = createXStream();
+    // File that store writes every member and trainer to
+    public static final String PERSONS_FILE = "persons.xml";
+    // Files members and trainers were stored in separately before the persons file, still read if it doesn't exist
+    public static final String LEGACY_MEMBERS_FILE = "members.xml";
+    public static final String LEGACY_TRAINERS_FILE = "trainers.xml";
+
     // Store a list of all registered members
     private ArrayList<Member> members;
     // Store a list of all registered trainers
     private ArrayList<Trainer> trainers;
+    // Every member and trainer keyed by their lower case email
+    // Members and trainers share one set of emails, so an email can only be registered once
+    private HashMap<String, Person> emailIndex;
+    // Trigram indexes used for partial name searches
+    private NameIndex memberNames;
+    private NameIndex trainerNames;
+    // Members grouped by the BMI category of their latest assessment
+    private BMIIndex bmiIndex;
+    // Records each change so it is durable without rewriting every file (null until opened)
+    private GymJournal journal;
+    // The snapshot that the journal's changes are applied on top of
+    private String snapshotFile;
+    // Where the last journal record about each person started when the journal was opened, by email,
+    // and the journal's length then (kept for openArchive, null once it has run or the journal is compacted)
+    private HashMap<String, Long> journalChangedAt;
+    private long journalOpenedLength;
+    // Once the journal grows past this many bytes it is folded into a new snapshot
+    private long journalCompactionThreshold = 4 * 1024 * 1024;
+    // Segment files that only the changed persons' segments are rewritten in (null until opened)
+    private GymSegmentStore segments;
+    // Only one storeSegments at a time, so an older copy of a segment can't be written over a newer one
+    private ReentrantLock segmentsSaving;
+    // The snapshot file lazily loaded members' assessments are read from (null if loaded eagerly)
+    private AssessmentHistory.Source assessmentSource;
+    // Number of changes made, and the listener run after each one (see GymAutosave)
+    private AtomicLong changes;
+    private volatile Runnable changeListener;
+    // The copy copyPersons is taking (null when it isn't), and only one copy is taken at a time
+    private volatile PersonsCopy copying;
+    private ReentrantLock copyingPersons;
+    // Added to every member of the gym, so a change made straight to their assessments
+    // (eg getAssessments().put) is journaled and counted the same as addAssessment
+    private AssessmentListener assessmentJournal;
+    // Number of roster lines read and checked at a time by importCsv
+    private static final int IMPORT_CHUNK = 16 * 1024;
+    // Number of members whose rows are gathered at a time by the exports
+    private static final int EXPORT_CHUNK = 256;
+    // Gym-wide scans of more members than this are split between threads (see MemberScan)
+    private int parallelScanThreshold = 4096;
+    // A line for each assessment the last load of the XML files skipped because its date couldn't be parsed
+    private volatile List<String> skippedAssessments = new ArrayList<String>();
+    // Guards the members and trainers lists, the indexes and the journal
+    private ReentrantReadWriteLock lock;
+    // Guard each person's details and assessments, a person's stripe is picked by their identity hash
+    private ReentrantReadWriteLock[] stripes;
 
     /*
      * Constructor for GymAPI
@@ -27,42 +113,530 @@ public class GymAPI {
         // Initialise both lists
         this.members = new ArrayList<Member>();
         this.trainers = new ArrayList<Trainer>();
+        this.emailIndex = new HashMap<String, Person>();
+        this.memberNames = new NameIndex();
+        this.trainerNames = new NameIndex();
+        this.bmiIndex = new BMIIndex();
+        this.lock = new ReentrantReadWriteLock();
+        this.segmentsSaving = new ReentrantLock();
+        this.copyingPersons = new ReentrantLock();
+        this.changes = new AtomicLong();
+        this.stripes = new ReentrantReadWriteLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.assessmentJournal = new AssessmentListener() {
+            public void assessmentChanging(Member member, String date, Assessment assessment, boolean removed) {
+                journalAssessment(member, date, assessment, removed);
+            }
+
+            public void assessmentChanged(Member member) {
+                countAssessmentChange(member);
+            }
+        };
     }
 
-    public ArrayList<Member> getMembers() {
-        return members;
+    /*
+     * Returns a read only copy of the members list
+     * Members added afterwards are not in the returned list
+     */
+    public List<Member> getMembers() {
+        lock.readLock().lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<Member>(members));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
-    public ArrayList<Trainer> getTrainers() {
-        return trainers;
+    /*
+     * Returns a read only copy of the trainers list
+     * Trainers added afterwards are not in the returned list
+     */
+    public List<Trainer> getTrainers() {
+        lock.readLock().lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<Trainer>(trainers));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     /*
      * Add a member to the members array
+     * Throws an IllegalArgumentException if the email is already registered, or an
+     * UncheckedIOException if the member can't be journaled (the member isn't added)
      */
     public void addMember(Member member) {
-        members.add(member);
+        lock.writeLock().lock();
+        try {
+            checkEmailFree(member);
+            // Journaled before anything changes, so if the journal can't be written
+            // the gym is left as it was rather than ahead of what is on disk
+            if (journal != null) {
+                journal.logAddMember(member);
+            }
+            indexEmail(member);
+            members.add(member);
+            memberNames.add(member);
+            bmiIndex.add(member);
+            member.addAssessmentListener(assessmentJournal);
+            if (segments != null) {
+                segments.add(member, members.size() - 1);
+            }
+            changed(member);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        afterChange();
     }
 
     /*
      * Add a trainer to the trainers array
+     * Throws the same exceptions as addMember (the trainer isn't added)
      */
     public void addTrainer(Trainer trainer) {
-        trainers.add(trainer);
+        lock.writeLock().lock();
+        try {
+            checkEmailFree(trainer);
+            // Journaled before anything changes (see addMember)
+            if (journal != null) {
+                journal.logAddTrainer(trainer);
+            }
+            indexEmail(trainer);
+            trainers.add(trainer);
+            trainerNames.add(trainer);
+            if (segments != null) {
+                segments.add(trainer, trainers.size() - 1);
+            }
+            changed(trainer);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        afterChange();
+    }
+
+    /*
+     * Add an assessment to the member's assessment hashMap using the date as its key
+     * An existing assessment on the same date is replaced
+     * Throws an IllegalArgumentException if the date isn't valid, or an UncheckedIOException
+     * if the assessment can't be journaled (the member's assessments are left as they were)
+     */
+    public void addAssessment(Member member, String date, Assessment assessment) {
+        ReentrantReadWriteLock stripe = stripe(member);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            // The map checks the date and then has the assessment journaled (see journalAssessment)
+            // before it puts it, so nothing changes if either fails
+            member.getAssessments().put(date, assessment);
+        }
+        finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+        afterChange();
+    }
+
+    /*
+     * Changes the comment on the member's assessment for the date passed as a parameter
+     * Returns false if the member has no assessment on that date
+     * Throws an UncheckedIOException if the change can't be journaled (the comment isn't changed)
+     */
+    public boolean editAssessmentComment(Member member, String date, String comment) {
+        ReentrantReadWriteLock stripe = stripe(member);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            Assessment assessment = member.getAssessments().get(date);
+            if (assessment == null) {
+                return false;
+            }
+            // Journaled by the member's map before the comment is changed, as addAssessment is
+            assessment.setComment(comment);
+        }
+        finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+        afterChange();
+        return true;
+    }
+
+    /*
+     * Called after a person's details (name, address, height etc.) have been edited
+     * so that the change is recorded
+     * The details have already been changed, so if they can't be journaled an UncheckedIOException
+     * is thrown and the edit isn't counted as a change: the caller must then put the old details
+     * back (see GymJournal.details and restoreDetails), or call this again, before anything is
+     * saved, otherwise the edit would be written by the next snapshot without being journaled
+     */
+    public void updatePerson(Person person) {
+        ReentrantReadWriteLock stripe = stripe(person);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            if (journal != null) {
+                journal.logPersonUpdate(person);
+            }
+            changed(person);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+        afterChange();
+    }
+
+    /*
+     * Called by a member's assessments before they change, however they are changed
+     * Journals the assessment as it will be, so if the journal can't be written the
+     * UncheckedIOException stops the change
+     */
+    private void journalAssessment(Member member, String date, Assessment assessment, boolean removed) {
+        ReentrantReadWriteLock stripe = stripe(member);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            // Keep the member as they are for a copy that hasn't reached them yet
+            PersonsCopy copy = copying;
+            if (copy != null) {
+                copy.changing(member);
+            }
+            if (journal != null) {
+                if (removed) {
+                    journal.logAssessmentRemoved(member, date);
+                }
+                else {
+                    journal.logAssessment(member, date, assessment);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Called by a member's assessments once they have changed
+     */
+    private void countAssessmentChange(Member member) {
+        ReentrantReadWriteLock stripe = stripe(member);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            changed(member);
+        }
+        finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+        // A GymAPI method making the change runs afterChange itself once it has let go of the lock
+        // (compacting the journal needs the write lock)
+        if (lock.getReadHoldCount() == 0 && !lock.isWriteLockedByCurrentThread()) {
+            afterChange();
+        }
+    }
+
+    /*
+     * Counts a change to the person and records that their segment needs to be rewritten
+     * on the next storeSegments
+     * Must be called with the read lock and the person's stripe held (or the write lock)
+     */
+    private void changed(Person person) {
+        changes.incrementAndGet();
+        if (segments != null) {
+            segments.markDirty(person);
+        }
+    }
+
+    /*
+     * Called after a change has been journaled (with no locks held)
+     */
+    private void afterChange() {
+        compactJournalIfNeeded();
+        Runnable listener = changeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /*
+     * Sets the listener that is run after every change (on the thread that made the change,
+     * with no locks held), or removes it if null is passed
+     */
+    public void setChangeListener(Runnable listener) {
+        changeListener = listener;
+    }
+
+    /*
+     * Returns the number of changes (adds, assessments, comment edits and updates) made so far
+     */
+    public long changeCount() {
+        return changes.get();
+    }
+
+    /*
+     * Takes a copy of every member and trainer (and their assessments) as they were at one point
+     * in time, adding them to the lists passed as parameters. Returns the change count at that point
+     * The persons are listed under the write lock, so between changes, and then encoded into memory
+     * one at a time (see GymSnapshot.encodePerson) holding the read lock and just that person's stripe,
+     * and decoded without holding any lock. A person whose assessments are about to change before
+     * they have been copied is encoded first (see PersonsCopy), so the copy has them as they were
+     * Details edited with a person's setters before updatePerson is called aren't under any lock,
+     * so the copy may have some of them whatever the change count (they are saved again next time)
+     */
+    long copyPersons(ArrayList<Member> memberCopies, ArrayList<Trainer> trainerCopies) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // Comments are often repeated, so each distinct one is only kept once in the copies
+        HashMap<String, String> comments = new HashMap<String, String>();
+        copyingPersons.lock();
+        try {
+            while (true) {
+                ArrayList<Member> listed;
+                Member[] memberArray;
+                Trainer[] trainerArray;
+                long changeCount;
+                PersonsCopy copy = new PersonsCopy();
+                // Only held while the lists are copied, changes then wait just for the person they change
+                lock.writeLock().lock();
+                try {
+                    listed = members;
+                    memberArray = members.toArray(new Member[members.size()]);
+                    trainerArray = trainers.toArray(new Trainer[trainers.size()]);
+                    changeCount = changes.get();
+                    copying = copy;
+                }
+                finally {
+                    lock.writeLock().unlock();
+                }
+
+                memberCopies.clear();
+                trainerCopies.clear();
+                boolean replaced = false;
+                try {
+                    for (int i = 0; i < memberArray.length && !replaced; i++) {
+                        replaced = !encodePerson(bytes, memberArray[i], listed, copy);
+                        if (!replaced) {
+                            memberCopies.add((Member) GymSnapshot.decodePerson(bytes, comments));
+                        }
+                    }
+                    for (int i = 0; i < trainerArray.length && !replaced; i++) {
+                        replaced = !encodePerson(bytes, trainerArray[i], listed, copy);
+                        if (!replaced) {
+                            trainerCopies.add((Trainer) GymSnapshot.decodePerson(bytes, comments));
+                        }
+                    }
+                }
+                finally {
+                    copying = null;
+                }
+                // If the whole gym was loaded again part way through, copy the new one instead
+                if (!replaced) {
+                    return changeCount;
+                }
+            }
+        }
+        finally {
+            copyingPersons.unlock();
+        }
+    }
+
+    /*
+     * Encodes the person into bytes under their stripe's read lock, as they were when the copy
+     * started, as long as the members list passed as a parameter is still the gym's (a lazily
+     * loaded member can't be read once the gym has been replaced, as the file their assessments
+     * are in is closed)
+     * Returns false, without encoding the person, if the gym has been replaced
+     */
+    private boolean encodePerson(ByteArrayOutputStream bytes, Person person, ArrayList<Member> listed,
+                                 PersonsCopy copy) throws IOException {
+        lock.readLock().lock();
+        ReentrantReadWriteLock stripe = stripe(person);
+        stripe.readLock().lock();
+        try {
+            if (members != listed) {
+                return false;
+            }
+            byte[] before = copy.copying(person);
+            if (before != null) {
+                bytes.reset();
+                bytes.write(before);
+            }
+            else {
+                GymSnapshot.encodePerson(bytes, person);
+            }
+            return true;
+        }
+        finally {
+            stripe.readLock().unlock();
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Adds every member and trainer in a CSV roster (see RosterImport for the columns)
+     * Rows that are invalid, or whose email is already registered, are not added and are
+     * written to the error report instead (one line each, with the line number and reason)
+     * Returns the number of members and trainers added
+     * Lines are read and checked in chunks before any lock is taken. The valid persons are
+     * then added together and the email, name and BMI indexes rebuilt once, rather than
+     * updated for each person
+     * With a journal open, a new snapshot holding them is written before they are added, so if it
+     * can't be written an IOException is thrown and none of them are added
+     */
+    public int importCsv(Reader reader, Appendable errors) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        RosterImport roster = new RosterImport(in.readLine());
+        ArrayList<RosterImport.Row> accepted = new ArrayList<RosterImport.Row>();
+        ArrayList<String> lines = new ArrayList<String>(IMPORT_CHUNK);
+        // The header is line 1
+        int lineNumber = 2;
+        String line;
+        do {
+            line = in.readLine();
+            if (line != null) {
+                lines.add(line);
+            }
+            if (lines.size() == IMPORT_CHUNK || (line == null && !lines.isEmpty())) {
+                for (RosterImport.Row row : roster.check(lines, lineNumber)) {
+                    if (row.getPerson() != null) {
+                        accepted.add(row);
+                    }
+                    else if (row.getError() != null) {
+                        reportImportError(errors, row, row.getError());
+                    }
+                }
+                lineNumber += lines.size();
+                lines.clear();
+            }
+        } while (line != null);
+
+        ArrayList<RosterImport.Row> duplicates = new ArrayList<RosterImport.Row>();
+        int added = 0;
+        lock.writeLock().lock();
+        try {
+            // The gym's lists with the imported persons added, only published once they are on disk
+            ArrayList<Member> importedMembers = new ArrayList<Member>(members);
+            ArrayList<Trainer> importedTrainers = new ArrayList<Trainer>(trainers);
+            HashMap<String, Person> importedEmails = new HashMap<String, Person>();
+            for (RosterImport.Row row : accepted) {
+                Person person = row.getPerson();
+                String key = normaliseEmail(person.getEmail());
+                if (emailIndex.containsKey(key) || importedEmails.containsKey(key)) {
+                    duplicates.add(row);
+                }
+                else {
+                    importedEmails.put(key, person);
+                    if (person instanceof Member) {
+                        importedMembers.add((Member) person);
+                    }
+                    else {
+                        importedTrainers.add((Trainer) person);
+                    }
+                    added++;
+                }
+            }
+            if (added > 0) {
+                // The imported persons aren't journaled one by one, a new snapshot holds them instead
+                // If it can't be written the IOException leaves the gym as it was
+                if (journal != null) {
+                    GymSnapshot.writeAtomically(snapshotFile, importedMembers, importedTrainers);
+                }
+                members.addAll(importedMembers.subList(members.size(), importedMembers.size()));
+                trainers.addAll(importedTrainers.subList(trainers.size(), importedTrainers.size()));
+                rebuildIndexes();
+                changes.addAndGet(added);
+                if (journal != null) {
+                    // Everything in the journal is in the new snapshot now
+                    journal.truncate();
+                    journalChangedAt = null;
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        for (RosterImport.Row row : duplicates) {
+            reportImportError(errors, row, "Email is already registered");
+        }
+        if (added > 0) {
+            afterChange();
+        }
+        return added;
+    }
+
+    private static void reportImportError(Appendable errors, RosterImport.Row row, String reason) throws IOException {
+        errors.append("Line ").append(Integer.toString(row.getLineNumber())).append(": ").append(reason)
+                .append(": ").append(row.getLine()).append('\n');
+    }
+
+    /*
+     * Returns the striped lock that guards the person's details and assessments
+     * The identity hash is used rather than the email, as it can't change while the person exists
+     */
+    private ReentrantReadWriteLock stripe(Person person) {
+        int hash = System.identityHashCode(person);
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /*
+     * Read locks every stripe (always in the same order, so two threads can't deadlock)
+     * Used by scans that must see every person at the same point in time, eg store
+     */
+    private void lockAllStripesForReading() {
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.readLock().lock();
+        }
+    }
+
+    private void unlockAllStripesForReading() {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            stripes[i].readLock().unlock();
+        }
     }
 
     /*
      * Returns the size of the members array
      */
     public int numberOfMembers() {
-        return members.size();
+        lock.readLock().lock();
+        try {
+            return members.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     /*
      * Returns the size of the trainers array
      */
     public int numberOfTrainerss() {
-        return trainers.size();
+        lock.readLock().lock();
+        try {
+            return trainers.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     /*
@@ -70,14 +644,7 @@ public class GymAPI {
      * is a valid index for the members array list
      */
     public boolean isValidMemberIndex(int index) {
-        // Check that the members is not empty so that we don't get
-        // an index out of bounds exception
-        if (!members.isEmpty()) {
-            if (index >= 0 && index < members.size()) {
-                return true;
-            }
-        }
-        return false;
+        return index >= 0 && index < numberOfMembers();
     }
 
     /*
@@ -85,27 +652,19 @@ public class GymAPI {
      * is a valid index for the trainers array list
      */
     public boolean isValidTrainerIndex(int index) {
-        // Check that the members is not empty so that we don't get
-        // an index out of bounds exception
-        if (!trainers.isEmpty()) {
-            if (index >= 0 && index < trainers.size()) {
-                return true;
-            }
-        }
-        return false;
+        return index >= 0 && index < numberOfTrainerss();
     }
 
     /*
-     * Returns the member object that matches the email entered
+     * Returns the member object that matches the email entered (ignoring case)
      * If no member matches, return null
      */
     public Member searchMembersByEmail(String emailEntered) {
-        // Search each member in the members array for a matching email
-        for (Member member : members) {
-            if (emailEntered.equals(member.getEmail())) {
-                // Return the member with a matching email
-                return member;
-            }
+        // Look up the person registered with this email
+        Person person = personWithEmail(emailEntered);
+        // The email may belong to a trainer instead
+        if (person instanceof Member) {
+            return (Member) person;
         }
         return null;
     }
@@ -117,56 +676,134 @@ public class GymAPI {
     public ArrayList<String> searchMembersByName(String nameEntered) {
         // Create an empty array list to store member names
         ArrayList<String> memberNames = new ArrayList<String>();
-        // Search each member in the members array for a partial/matching name
-        for (Member member : members) {
-            // Ignore the case of the members name and the entered name
-            if (member.getName().toLowerCase().contains(nameEntered.toLowerCase())) {
-                // A match was found so add it to the member names array list
+        lock.readLock().lock();
+        try {
+            // The name index returns each member whose name partially/entirely matches (ignoring case)
+            for (Person member : this.memberNames.search(nameEntered)) {
                 memberNames.add(member.getName());
             }
         }
+        finally {
+            lock.readLock().unlock();
+        }
         return memberNames;
     }
 
     /*
-     * Returns the trainer object that matches the email entered
+     * Returns the trainer object that matches the email entered (ignoring case)
      * If no trainer matches, return null
      */
     public Trainer searchTrainersByEmail(String emailEntered) {
-        // Search each member in the trainers array for a matching email
-        for (Trainer trainer : trainers) {
-            if (emailEntered.equals(trainer.getEmail())) {
-                // Return the trainer with a matching email
-                return trainer;
-            }
+        // Look up the person registered with this email
+        Person person = personWithEmail(emailEntered);
+        // The email may belong to a member instead
+        if (person instanceof Trainer) {
+            return (Trainer) person;
         }
         return null;
     }
 
+    /*
+     * Returns a boolean indicating if the email (ignoring case) is already
+     * registered to either a member or a trainer
+     */
+    public boolean isEmailRegistered(String email) {
+        return personWithEmail(email) != null;
+    }
+
+    private Person personWithEmail(String email) {
+        lock.readLock().lock();
+        try {
+            return emailIndex.get(normaliseEmail(email));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Emails are compared ignoring case, so they are stored in lower case
+     */
+    private static String normaliseEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        return email.toLowerCase(Locale.ROOT);
+    }
+
+    /*
+     * Throws an IllegalArgumentException if the person's email is already registered
+     */
+    private void checkEmailFree(Person person) {
+        if (emailIndex.containsKey(normaliseEmail(person.getEmail()))) {
+            throw new IllegalArgumentException("Email address already registered: " + person.getEmail());
+        }
+    }
+
+    /*
+     * Adds the person to the email index (once checkEmailFree has passed)
+     */
+    private void indexEmail(Person person) {
+        emailIndex.put(normaliseEmail(person.getEmail()), person);
+    }
+
+    /*
+     * Rebuilds the email, name and BMI indexes (and the segments) after the members and trainers lists have been replaced
+     * Must be called with the write lock held
+     */
+    private void rebuildIndexes() {
+        // The members of the old lists are no longer the gym's, so their changes aren't journaled
+        for (Person person : emailIndex.values()) {
+            if (person instanceof Member) {
+                ((Member) person).removeAssessmentListener(assessmentJournal);
+            }
+        }
+        emailIndex = new HashMap<String, Person>(members.size() + trainers.size());
+        memberNames.clear();
+        trainerNames.clear();
+        bmiIndex.clear();
+        for (Member member : members) {
+            emailIndex.put(normaliseEmail(member.getEmail()), member);
+            memberNames.add(member);
+            bmiIndex.add(member);
+            member.addAssessmentListener(assessmentJournal);
+        }
+        for (Trainer trainer : trainers) {
+            emailIndex.put(normaliseEmail(trainer.getEmail()), trainer);
+            trainerNames.add(trainer);
+        }
+        // Every person may have moved or changed, so every segment is rewritten on the next save
+        if (segments != null) {
+            segments.reset(members, trainers);
+        }
+    }
+
     /*
      * Returns a list of trainer names that partially or entirely
      * matches the entered name. An empty array is returned when there are no matches
      */
     public ArrayList<String> searchTrainersByName(String nameEntered) {
-        // Create an empty array list to stroe trainers names
-        ArrayList<String> trainerNames = new ArrayList<String >();
-        // Search each trainer in the trainers array for a partial/matching name
-        for (Trainer trainer : trainers) {
-            // Ignore the case of the trainer's name and the entered name
-            if (trainer.getName().toLowerCase().contains(nameEntered.toLowerCase())) {
-                // A match was found so add it to the trainer names array list
+        // Create an empty array list to store trainers names
+        ArrayList<String> trainerNames = new ArrayList<String>();
+        lock.readLock().lock();
+        try {
+            // The name index returns each trainer whose name partially/entirely matches (ignoring case)
+            for (Person trainer : this.trainerNames.search(nameEntered)) {
                 trainerNames.add(trainer.getName());
             }
         }
+        finally {
+            lock.readLock().unlock();
+        }
         return trainerNames;
     }
 
     /*
-     * Returns a list containing all the members in the gym
+     * Returns a read only list containing all the members in the gym
      * Returns an empty list if none are found
      */
-    public ArrayList<Member> listMembers() {
-        return members;
+    public List<Member> listMembers() {
+        return getMembers();
     }
 
     /*
@@ -175,23 +812,60 @@ public class GymAPI {
      * Returns an empty list if none are found
      */
     public ArrayList<Member> listMembersWithIdealWeight() {
-        // Create an empty list to store members with an ideal weight
-        ArrayList<Member> membersWithIdealWeight = new ArrayList<Member>();
-        // Iterate through each member in the members array list
-        for (Member member : members) {
+        lock.readLock().lock();
+        lockAllStripesForReading();
+        try {
+            // Large gyms are checked in parallel, the members come back in the same order either way
+            return MemberScan.scan(members, IDEAL_WEIGHT, parallelScanThreshold);
+        }
+        finally {
+            unlockAllStripesForReading();
+            lock.readLock().unlock();
+        }
+    }
+
+    // Matches members whose latest assessment weight is an ideal weight
+    private static final MemberScan.Filter IDEAL_WEIGHT = new MemberScan.Filter() {
+        public boolean matches(Member member) {
             // Retrieve the member's latest assessment
             Assessment latestAssessment = member.latestAssessment();
             // Check that the member has an assessment so that we don't get a null pointer exception
-            if (latestAssessment != null) {
-                // GymUtility's isIdealBodyWeight method returns a boolean indicting
-                // if the member has an ideal body weight based on their latest assessment
-                if (GymUtility.isIdealBodyWeight(member, latestAssessment)) {
-                    // Member has an ideal body weight so add it to membersWithIdealWeight array list
-                    membersWithIdealWeight.add(member);
-                }
-            }
+            // GymUtility's isIdealBodyWeight method returns a boolean indicting
+            // if the member has an ideal body weight based on their latest assessment
+            return latestAssessment != null && GymUtility.isIdealBodyWeight(member, latestAssessment);
+        }
+    };
+
+    /*
+     * Sets how many members a gym-wide scan must cover before it is split between threads
+     * 0 always splits and Integer.MAX_VALUE never does
+     */
+    public void setParallelScanThreshold(int threshold) {
+        lock.writeLock().lock();
+        try {
+            parallelScanThreshold = threshold;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Returns statistics of the members grouped by package, college and gender: their
+     * BMI categories and average weight and waist change (see GymStats)
+     * Worked out in one pass over the members, split between threads for large gyms
+     * like listMembersWithIdealWeight
+     */
+    public GymStats statistics() {
+        lock.readLock().lock();
+        lockAllStripesForReading();
+        try {
+            return GymStats.of(members, parallelScanThreshold);
+        }
+        finally {
+            unlockAllStripesForReading();
+            lock.readLock().unlock();
         }
-        return membersWithIdealWeight;
     }
 
     /*
@@ -200,25 +874,29 @@ public class GymAPI {
      * Returns an empty list if none are found
      */
     public ArrayList<Member> listMembersBySpecificBMICategory(String category) {
-        // Create an empty list to store member that partially/matches the entered category
-        ArrayList<Member> membersInCategory = new ArrayList<Member>();
-        // Iterate through each member in the members array list
-        for (Member member : members) {
-            // Retrieve the member's latest assessment
-            Assessment latestAssessment = member.latestAssessment();
-            // Check that the member has an assessment so that we don't get a null pointer exception
-            if (latestAssessment != null) {
-                // Calculate and store the member's BMI based on their latest assessment
-                double bmi = GymUtility.calculateBMI(member, latestAssessment);
-                // GymUtility's determineBMICategory method returns a string based on the members
-                // BMI value. Check this string for matches ignoring case of entered category
-                if (GymUtility.determineBMICategory(bmi).contains(category.toUpperCase())) {
-                    // A match was found so add it to the membersInCategory array list
-                    membersInCategory.add(member);
-                }
-            }
+        // The BMI index keeps each member in the category of their latest assessment,
+        // so only the members in matching categories are looked at
+        lock.readLock().lock();
+        try {
+            return bmiIndex.membersInCategory(category);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Returns the number of members whose BMI category (based on their latest assessment)
+     * partially or entirely matches the entered category
+     */
+    public int numberOfMembersInBMICategory(String category) {
+        lock.readLock().lock();
+        try {
+            return bmiIndex.countInCategory(category);
+        }
+        finally {
+            lock.readLock().unlock();
         }
-        return membersInCategory;
     }
 
     /*
@@ -227,30 +905,85 @@ public class GymAPI {
      * Returns a custom string if there are no members in the gym
      */
     public String listMemberDetailsImperialAndMetric() {
-        // Check if there are members in the gym
-        if (members.size() != 0) {
-            // Create an empty String to store member details
-            String memberDetails = "";
-            // Iterate through each member in the members array list
-            for (Member member : members) {
-                // Retrieve the member's latest assessment
-                Assessment latestAssessment = member.latestAssessment();
-                // Check that the member has an assessment so that we don't get a null pointer exception
-                if (latestAssessment != null) {
-                    // Retrieve the member's latest assessment weight
-                    float weight = latestAssessment.getWeight();
-                    float height = member.getHeight();
-                    // Concatenate the memberDetails String with each member
-                    memberDetails += member.getName() + ": " + Math.round(weight) + " kg(" +
-                            Math.round(GymUtility.kilosToPounds(weight)) + " lbs) " +
-                            GymUtility.round(height, 1) + " metres(" + Math.round(GymUtility.metersToInches(height)) +
-                            " inches).\n";
+        StringBuilder memberDetails = new StringBuilder();
+        try {
+            listMemberDetailsImperialAndMetric(memberDetails);
+        }
+        catch (IOException e) {
+            // Appending to a StringBuilder never throws an IOException
+            throw new UncheckedIOException(e);
+        }
+        return memberDetails.toString();
+    }
+
+    /*
+     * Writes each member's latest assessment weight and height both imperially
+     * and metrically to the Appendable passed as a parameter (eg a Writer or StringBuilder)
+     * Writes a custom string if there are no members in the gym
+     */
+    public void listMemberDetailsImperialAndMetric(Appendable out) throws IOException {
+        lock.readLock().lock();
+        try {
+            // Check if there are members in the gym
+            if (members.size() != 0) {
+                // Iterate through each member in the members array list
+                for (Member member : members) {
+                    // Only this member's stripe is locked while their details are read, so a slow
+                    // Appendable doesn't hold up changes to every other member
+                    ReentrantReadWriteLock stripe = stripe(member);
+                    Assessment latestAssessment;
+                    float height;
+                    stripe.readLock().lock();
+                    try {
+                        // Retrieve the member's latest assessment
+                        latestAssessment = member.latestAssessment();
+                        height = member.getHeight();
+                    }
+                    finally {
+                        stripe.readLock().unlock();
+                    }
+                    // Check that the member has an assessment so that we don't get a null pointer exception
+                    if (latestAssessment != null) {
+                        // Retrieve the member's latest assessment weight
+                        float weight = latestAssessment.getWeight();
+                        // Write the member's details a piece at a time rather than building a String for them
+                        out.append(member.getName()).append(": ")
+                                .append(String.valueOf(Math.round(weight))).append(" kg(")
+                                .append(String.valueOf(Math.round(GymUtility.kilosToPounds(weight)))).append(" lbs) ")
+                                .append(String.valueOf(GymUtility.round(height, 1))).append(" metres(")
+                                .append(String.valueOf(Math.round(GymUtility.metersToInches(height)))).append(" inches).\n");
+                    }
                 }
             }
-            return memberDetails;
+            else {
+                out.append("No registered members");
+            }
         }
-        else {
-            return "No registered members";
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Returns a copy of the member's assessments keyed by date, in chronological order
+     * The copy is taken while holding the member's lock, so it is safe to use while
+     * other threads add assessments to the member (the assessments in it are copies
+     * too, rather than views of the member's assessments)
+     */
+    public LinkedHashMap<String, Assessment> assessmentsOf(Member member) {
+        ReentrantReadWriteLock stripe = stripe(member);
+        stripe.readLock().lock();
+        try {
+            AssessmentMap assessments = (AssessmentMap) member.getAssessments();
+            LinkedHashMap<String, Assessment> copy = new LinkedHashMap<String, Assessment>(assessments.size() * 2);
+            for (int i = 0; i < assessments.size(); i++) {
+                copy.put(AssessmentDate.shared(assessments.epochDayAt(i)), new Assessment(assessments.weightAt(i),
+                        assessments.thighAt(i), assessments.waistAt(i), assessments.commentAt(i)));
+            }
+            return copy;
+        }
+        finally {
+            stripe.readLock().unlock();
         }
     }
 
@@ -260,48 +993,31 @@ public class GymAPI {
      * compared to their previous assessment
      */
     public String assessmentProgressByWeight(Member member) {
-        // Create an array list from the member's SortedSet of assessment dates
-        ArrayList<String> assessmentDates = new ArrayList<String>(member.sortedAssessmentDates());
-        // Create an empty array list to store each assessment in chronological order
-        ArrayList<Assessment> assessments = new ArrayList<Assessment>();
-        // Create an empty string to store all the member's assessment details
-        String weightProgressReport = "";
-        // Iterate through each date String in assessmentDates
-        for (String date : assessmentDates) {
-            // Use the date string to get member's assessment from their assessment hashMap
-            // Add the assessment to the assessments array (they will be added in chronological order
-            // because the array assessmentDates is sorted in chronological order)
-            assessments.add(member.getAssessments().get(date));
-        }
-
-        // Iterate through each assessment in assessments array and compare it to the previous one
-        // (Used assessmentDates.size() as loop condition but could have used assessments.size() as they are the same size)
-        for (int i = 0; i < assessmentDates.size(); i++) {
-            // Don't compare assessment with previous one in the list if it is the first element in the list
-            // as this would create an index out of bounds exception
-            if (i == 0) {
-                // Concatenate String with assessment date and weight
-                weightProgressReport += assessmentDates.get(i) + ": " + "weight - " + assessments.get(i).getWeight()+"\n";
-            }
-            else {
-                // Current assessment lower than previous one
-                if (GymUtility.compareAssessmentByWeight(assessments.get(i), assessments.get(i-1)) == 1) {
-                    // Concatenate String with assessment date, weight and a down arrow
-                    weightProgressReport += assessmentDates.get(i) + ": " + "weight - " + assessments.get(i).getWeight() + " \u2193" +"\n";
-                }
-                // Current assessment higher than previous one
-                else if (GymUtility.compareAssessmentByWeight(assessments.get(i), assessments.get(i-1)) == -1) {
-                    // Concatenate String with assessment date, weight and an up arrow
-                    weightProgressReport += assessmentDates.get(i) + ": " + "weight - " + assessments.get(i).getWeight() + " \u2191" +"\n";
-                }
-                // Current assessment equal to previous one
-                else {
-                    // Concatenate String with assessment date, weight and a right arrow
-                    weightProgressReport += assessmentDates.get(i) + ": " + "weight - " + assessments.get(i).getWeight() + " \u2192" +"\n";
-                }
-            }
+        StringBuilder weightProgressReport = new StringBuilder();
+        try {
+            assessmentProgressByWeight(member, weightProgressReport);
+        }
+        catch (IOException e) {
+            // Appending to a StringBuilder never throws an IOException
+            throw new UncheckedIOException(e);
+        }
+        return weightProgressReport.toString();
+    }
+
+    /*
+     * Writes all of members assessments (from oldest to latest) to the Appendable
+     * passed as a parameter, with an arrow indicating if their weight has gone up,
+     * down or is unchanged compared to their previous assessment
+     */
+    public void assessmentProgressByWeight(Member member, Appendable out) throws IOException {
+        ReentrantReadWriteLock stripe = stripe(member);
+        stripe.readLock().lock();
+        try {
+            appendProgress(member, out, false);
+        }
+        finally {
+            stripe.readLock().unlock();
         }
-        return weightProgressReport;
     }
 
     /*
@@ -310,85 +1026,765 @@ public class GymAPI {
      * compared to their previous assessment
      */
     public String assessmentProgressByWaist(Member member) {
-        // Create an array list from the member's SortedSet of assessment dates
-        ArrayList<String> assessmentDates = new ArrayList<String>(member.sortedAssessmentDates());
-        // Create an empty array list to store each assessment in chronological order
-        ArrayList<Assessment> assessments = new ArrayList<Assessment>();
-        // Create an empty string to store all the member's assessment details
-        String waistProgressReport = "";
-        // Iterate through each date String in assessmentDates
-        for (String date : assessmentDates) {
-            // Use the date string to get member's assessment from their assessment hashMap
-            // Add the assessment to the assessments array (they will be added in chronological order
-            // because the array assessmentDates is sorted in chronological order)
-            assessments.add(member.getAssessments().get(date));
-        }
-        // Iterate through each assessment in assessments array and compare it to the previous one
-        // (Used assessmentDates.size() as loop condition but could have used assessments.size() as they are the same size)
+        StringBuilder waistProgressReport = new StringBuilder();
+        try {
+            assessmentProgressByWaist(member, waistProgressReport);
+        }
+        catch (IOException e) {
+            // Appending to a StringBuilder never throws an IOException
+            throw new UncheckedIOException(e);
+        }
+        return waistProgressReport.toString();
+    }
+
+    /*
+     * Writes all of members assessments (from oldest to latest) to the Appendable
+     * passed as a parameter, with an arrow indicating if their waist has gone up,
+     * down or is unchanged compared to their previous assessment
+     */
+    public void assessmentProgressByWaist(Member member, Appendable out) throws IOException {
+        ReentrantReadWriteLock stripe = stripe(member);
+        stripe.readLock().lock();
+        try {
+            appendProgress(member, out, true);
+        }
+        finally {
+            stripe.readLock().unlock();
+        }
+    }
+
+    /*
+     * Writes one line per assessment (in chronological order) with the assessment's
+     * weight or waist, and from the second assessment on an arrow comparing it to the previous one
+     */
+    private static void appendProgress(Member member, Appendable out, boolean byWaist) throws IOException {
+        // The member's assessment dates and assessments, already in chronological order
+        // (both are views of the member's assessments, nothing is copied)
+        List<String> assessmentDates = member.chronologicalAssessmentDates();
+        List<Assessment> assessments = member.chronologicalAssessments();
+        String label = byWaist ? ": waist - " : ": weight - ";
+        float previous = 0;
+
         for (int i = 0; i < assessmentDates.size(); i++) {
-            // Don't compare assessment with previous one in the list if it is the first element in the list
-            // as this would create an index out of bounds exception
-            if (i == 0) {
-                // Concatenate String with assessment date and waist
-                waistProgressReport += assessmentDates.get(i) + ": " + "waist - " + assessments.get(i).getWaist()+"\n";
-            }
-            else {
-                // Current assessment lower than previous one
-                if (GymUtility.compareAssessmentByWaist(assessments.get(i), assessments.get(i-1)) == 1) {
-                    // Concatenate String with assessment date, waist and a down arrow
-                    waistProgressReport += assessmentDates.get(i) + ": " + "waist - " + assessments.get(i).getWaist() + " \u2193" +"\n";
+            Assessment assessment = assessments.get(i);
+            float current = byWaist ? assessment.getWaist() : assessment.getWeight();
+            out.append(assessmentDates.get(i)).append(label).append(String.valueOf(current));
+            // The first assessment has nothing to be compared to
+            if (i > 0) {
+                // Same comparison as GymUtility's compareAssessmentByWeight/Waist
+                if (current < previous) {
+                    // Lower than the previous one
+                    out.append(" \u2193");
                 }
-                // Current assessment higher than previous one
-                else if (GymUtility.compareAssessmentByWaist(assessments.get(i), assessments.get(i-1)) == -1) {
-                    // Concatenate String with assessment date, waist and an up arrow
-                    waistProgressReport += assessmentDates.get(i) + ": " + "waist - " + assessments.get(i).getWaist() + " \u2191" +"\n";
+                else if (current > previous) {
+                    // Higher than the previous one
+                    out.append(" \u2191");
                 }
-                // Current assessment equal to previous one
                 else {
-                    // Concatenate String with assessment date, waist and a right arrow
-                    waistProgressReport += assessmentDates.get(i) + ": " + "waist - " + assessments.get(i).getWaist() + " \u2192" +"\n";
+                    // Equal to the previous one
+                    out.append(" \u2192");
                 }
             }
+            out.append('\n');
+            previous = current;
         }
-        return waistProgressReport;
     }
 
     /*
-     * Stores contents of members array list to file
-     * Stores contents of trainers array list to file
-     * TODO - Store both members and trainers to one file as list of Person objects
+     * Writes a row for each member that passes the export's filters to the channel
+     * (see GymExport for the columns and filters), returning the number of rows written
+     */
+    public long exportMembers(WritableByteChannel out, GymExport export) throws IOException {
+        return export(out, export, false);
+    }
+
+    /*
+     * Writes a row for each assessment of the members that pass the export's filters
+     * (see GymExport), returning the number of rows written
+     * Assessments that haven't been read from a lazily loaded snapshot are read for the
+     * export but not kept, so exporting doesn't load every member's history into memory
+     */
+    public long exportAssessments(WritableByteChannel out, GymExport export) throws IOException {
+        return export(out, export, true);
+    }
+
+    private long export(WritableByteChannel out, GymExport export, boolean assessmentRows) throws IOException {
+        GymExport.ChannelWriter writer = new GymExport.ChannelWriter(out);
+        StringBuilder rows = new StringBuilder();
+        export.appendHeader(rows, assessmentRows ? GymExport.ASSESSMENT_COLUMNS : GymExport.MEMBER_COLUMNS);
+        long written = 0;
+        // The members are exported a chunk at a time, and each chunk is written to the channel
+        // with no locks held, so a slow channel doesn't hold up changes to the gym
+        // The list is only ever added to, and a load replaces it rather than changing it
+        List<Member> exported;
+        lock.readLock().lock();
+        try {
+            exported = members;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        int next = 0;
+        boolean finished = false;
+        while (!finished) {
+            lock.readLock().lock();
+            try {
+                int end = Math.min(exported.size(), next + EXPORT_CHUNK);
+                finished = end == exported.size();
+                for (; next < end; next++) {
+                    Member member = exported.get(next);
+                    ReentrantReadWriteLock stripe = stripe(member);
+                    stripe.readLock().lock();
+                    try {
+                        if (!export.matches(member)) {
+                            continue;
+                        }
+                        AssessmentMap assessments = null;
+                        if (assessmentRows || export.hasDateRange()) {
+                            assessments = member.readAssessments();
+                            if (!export.anyInRange(assessments)) {
+                                continue;
+                            }
+                        }
+                        if (assessmentRows) {
+                            written += export.appendAssessments(rows, member.getEmail(), assessments);
+                        }
+                        else {
+                            export.appendMember(rows, member);
+                            written++;
+                        }
+                    }
+                    finally {
+                        stripe.readLock().unlock();
+                    }
+                }
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            writer.write(rows);
+            rows.setLength(0);
+        }
+        writer.flush();
+        return written;
+    }
+
+    /*
+     * Returns an XStream that reads and writes the model classes
+     * A member's assessments are held in an AssessmentMap (an AbstractMap, not a HashMap),
+     * which is written in the same <entry> elements as the HashMap it replaced, with no class
+     * attribute, and the maps in the file are read back as AssessmentMaps
+     * Persons and assessments are converted by hand (see PersonConverter) rather than by reflection
+     */
+    static XStream createXStream() {
+        // Files are read with a StAX parser rather than into a DOM tree first, but are
+        // written with the same pretty printing writer DomDriver uses, so they don't change
+        XStream xStream = new XStream(new StaxDriver() {
+            @Override
+            public HierarchicalStreamWriter createWriter(Writer out) {
+                return new PrettyPrintWriter(out, getNameCoder());
+            }
+        });
+        xStream.registerConverter(new AssessmentMapConverter(xStream.getMapper()));
+        xStream.addDefaultImplementation(AssessmentMap.class, HashMap.class);
+        xStream.registerConverter(new PersonConverter());
+        xStream.registerConverter(new AssessmentConverter());
+        return xStream;
+    }
+
+    /*
+     * Stores contents of members and trainers array lists to one file as a list of Person objects
+     * The element XStream writes for each person (Member, PremiumMember, StudentMember
+     * or Trainer) records their type, so they can be sorted into the right list when loaded
      */
     public void store() throws Exception {
-        XStream xStream = new XStream(new DomDriver());
+        store(PERSONS_FILE);
+    }
+
+    /*
+     * Stores contents of members and trainers array lists to the persons file passed as a parameter
+     * Members are written first, followed by trainers
+     */
+    public void store(String personsFile) throws Exception {
+        lock.readLock().lock();
+        lockAllStripesForReading();
+        try {
+            ObjectOutputStream out = XSTREAM.createObjectOutputStream(new FileWriter(personsFile));
+            out.writeObject(personsList(members, trainers));
+            out.close();
+        }
+        finally {
+            unlockAllStripesForReading();
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Returns one list of every member followed by every trainer, as written to the persons file
+     */
+    static ArrayList<Person> personsList(List<Member> members, List<Trainer> trainers) {
+        ArrayList<Person> persons = new ArrayList<Person>(members.size() + trainers.size());
+        persons.addAll(members);
+        persons.addAll(trainers);
+        return persons;
+    }
 
-        // Store contents of members ArrayList
-        ObjectOutputStream outMembers = xStream.createObjectOutputStream(new FileWriter("members.xml"));
-        outMembers.writeObject(members);
-        outMembers.close();
+    /*
+     * Stores contents of members and trainers array lists to the files passed as parameters
+     * (the layout used before the persons file)
+     */
+    public void store(String membersFile, String trainersFile) throws Exception {
+        // Nothing can change while the files are written, so they match each other
+        lock.readLock().lock();
+        lockAllStripesForReading();
+        try {
+            // Store contents of members ArrayList
+            ObjectOutputStream outMembers = XSTREAM.createObjectOutputStream(new FileWriter(membersFile));
+            outMembers.writeObject(members);
+            outMembers.close();
 
-        // Store contents of trainers ArrayList
-        ObjectOutputStream outTrainers = xStream.createObjectOutputStream(new FileWriter("trainers.xml"));
-        outTrainers.writeObject(trainers);
-        outTrainers.close();
+            // Store contents of trainers ArrayList
+            ObjectOutputStream outTrainers = XSTREAM.createObjectOutputStream(new FileWriter(trainersFile));
+            outTrainers.writeObject(trainers);
+            outTrainers.close();
+        }
+        finally {
+            unlockAllStripesForReading();
+            lock.readLock().unlock();
+        }
     }
 
     /*
-     * Loads contents of members file to members array list
-     * Loads contents of trainers file to trainers array list
-     * TODO - Could load contents of persons file, check the actual type of each person and add to appropriate array
+     * Loads contents of the persons file, adding each person to the members or trainers
+     * array list depending on their actual type
+     * If there is no persons file yet, the separate members and trainers files are loaded instead
      */
-    @SuppressWarnings("unchecked")
     public void load() throws Exception {
-        XStream xStream = new XStream(new DomDriver());
+        if (new File(PERSONS_FILE).exists()) {
+            load(PERSONS_FILE);
+        }
+        else {
+            load(LEGACY_MEMBERS_FILE, LEGACY_TRAINERS_FILE);
+        }
+    }
+
+    /*
+     * Loads contents of the persons file passed as a parameter in a single pass,
+     * reading one person at a time and adding them to the members or trainers list
+     */
+    public void load(String personsFile) throws Exception {
+        ArrayList<Member> loadedMembers = new ArrayList<Member>();
+        ArrayList<Trainer> loadedTrainers = new ArrayList<Trainer>();
+        PersonXmlReader in = new PersonXmlReader(new BufferedReader(new FileReader(personsFile)));
+        try {
+            Person person;
+            while ((person = in.next()) != null) {
+                if (person instanceof Member) {
+                    loadedMembers.add((Member) person);
+                }
+                else {
+                    loadedTrainers.add((Trainer) person);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        replaceLists(loadedMembers, loadedTrainers);
+        skippedAssessments = in.skippedAssessments();
+    }
+
+    /*
+     * Loads contents of the members and trainers files passed as parameters
+     * The trainers file is read on another thread while this one reads the members file
+     */
+    @SuppressWarnings("unchecked")
+    public void load(String membersFile, final String trainersFile) throws Exception {
+        Future<ArrayList<Trainer>> trainersRead = ForkJoinPool.commonPool().submit(new Callable<ArrayList<Trainer>>() {
+            public ArrayList<Trainer> call() throws Exception {
+                // Load contents of trainers ArrayList
+                ObjectInputStream inTrainers = XSTREAM.createObjectInputStream(new FileReader(trainersFile));
+                ArrayList<Trainer> loadedTrainers = (ArrayList<Trainer>)inTrainers.readObject();
+                inTrainers.close();
+                return loadedTrainers;
+            }
+        });
+
+        // Load contents of members ArrayList, skipping (and reporting) assessments with bad dates
+        DataHolder report = XSTREAM.newDataHolder();
+        ArrayList<String> skipped = new ArrayList<String>();
+        report.put(AssessmentMapConverter.SKIPPED, skipped);
+        // The list is read from inside the <object-stream> the same way an ObjectInputStream reads it,
+        // as XStream 1.4.10's createObjectInputStream doesn't pass the DataHolder on to the converters
+        Reader membersReader = new FileReader(membersFile);
+        ArrayList<Member> loadedMembers;
+        try {
+            HierarchicalStreamReader inMembers = new StaxDriver().createReader(membersReader);
+            inMembers.moveDown();
+            loadedMembers = (ArrayList<Member>) XSTREAM.unmarshal(inMembers, null, report);
+            inMembers.moveUp();
+            inMembers.close();
+        }
+        finally {
+            // Closing the StAX reader doesn't close the file
+            membersReader.close();
+        }
+        replaceLists(loadedMembers, result(trainersRead));
+        skippedAssessments = skipped;
+    }
+
+    /*
+     * Returns a line for each assessment the last load skipped because its date couldn't be
+     * parsed (see AssessmentDate), so the rest of the gym still loads. The XML files, a version 1
+     * snapshot and a journal written before dates were checked can all hold such dates, and
+     * openJournal reports the journal's along with the snapshot's (or the XML files')
+     * The skipped assessments are not in the gym, so they are lost once the gym is stored
+     */
+    public List<String> skippedAssessments() {
+        return skippedAssessments;
+    }
+
+    /*
+     * Waits for the file read on another thread, rethrowing the exception it failed with
+     */
+    private static <T> T result(Future<T> read) throws Exception {
+        try {
+            return read.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Replaces the members and trainers lists with ones that have just been loaded
+     * The files are read before the write lock is taken, so searches aren't held up while loading
+     */
+    private void replaceLists(ArrayList<Member> loadedMembers, ArrayList<Trainer> loadedTrainers) throws IOException {
+        replaceLists(loadedMembers, loadedTrainers, null);
+    }
+
+    /*
+     * Replaces the lists as above, along with the file the loaded members' assessments are read from
+     * The previous file is closed, as the members loaded from it are no longer in the gym
+     */
+    private void replaceLists(ArrayList<Member> loadedMembers, ArrayList<Trainer> loadedTrainers,
+                              AssessmentHistory.Source source) throws IOException {
+        AssessmentHistory.Source oldSource;
+        lock.writeLock().lock();
+        try {
+            members = loadedMembers;
+            trainers = loadedTrainers;
+            rebuildIndexes();
+            oldSource = assessmentSource;
+            assessmentSource = source;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        if (oldSource != null) {
+            oldSource.close();
+        }
+    }
+
+    /*
+     * Stores contents of members and trainers array lists to a single binary snapshot file
+     * The snapshot is much smaller than the XML files and faster to write and read back
+     */
+    public void storeSnapshot(String fileName) throws Exception {
+        lock.readLock().lock();
+        lockAllStripesForReading();
+        try {
+            GymSnapshot.write(fileName, members, trainers);
+        }
+        finally {
+            unlockAllStripesForReading();
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Moves every member's assessments out of the heap into an archive file that is
+     * memory-mapped (see AssessmentArchive), for gyms where years of assessments per member
+     * would fill the heap. Reports and getAssessments read archived assessments straight from
+     * the file, and a member's assessments only come back into the heap when they change
+     * Members loaded lazily have their assessments archived without reading them all into the heap
+     * Returns the number of members whose assessments were archived
+     * Nothing else can use the gym while the archive is written
+     * The old archive may still be mapped, so the new one is written to a new numbered file
+     * (see AssessmentArchive.nextFile) rather than over it
+     */
+    public int archiveAssessments(String fileName) throws IOException {
+        lock.writeLock().lock();
+        // Reports only take the member's stripe, so those are needed too
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.writeLock().lock();
+        }
+        try {
+            return writeArchive(fileName);
+        }
+        finally {
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                stripes[i].writeLock().unlock();
+            }
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Moves the assessments back into the archive when the gym is opened, if they were archived
+     * before (see archiveAssessments). When the newest archive was written from the snapshot the
+     * journal was opened on, it is mapped again without writing anything, and only the members
+     * changed by the journal after it was written keep their assessments in the heap
+     * Otherwise (eg the journal has been compacted since) the assessments are archived again
+     * Returns the number of members whose assessments were archived (0 if there was no archive)
+     */
+    public int openArchive(String fileName) throws IOException {
+        lock.writeLock().lock();
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.writeLock().lock();
+        }
+        try {
+            File newest = AssessmentArchive.newestFile(fileName);
+            if (newest == null) {
+                return 0;
+            }
+            // Only the records replayed when the journal was opened are known, so this only works once
+            HashMap<String, Long> changedAt = journalChangedAt;
+            journalChangedAt = null;
+            if (changedAt != null) {
+                try {
+                    AssessmentArchive archive = AssessmentArchive.open(newest.getPath());
+                    // -1 for a snapshot written before they had a generation, which is never reused
+                    long generation = GymSnapshot.generation(snapshotFile);
+                    if (generation >= 0 && archive.snapshotGeneration() == generation
+                            && archive.journalLength() >= 0 && archive.journalLength() <= journalOpenedLength) {
+                        HashMap<String, Long> positions = archive.positions();
+                        int archived = 0;
+                        for (Member member : members) {
+                            Long position = positions.get(member.getEmail());
+                            Long changed = changedAt.get(member.getEmail());
+                            // A member without a position had no assessments when it was written
+                            if (position != null && (changed == null || changed < archive.journalLength())) {
+                                member.archiveAssessments(archive.columnsAt(position));
+                                archived++;
+                            }
+                        }
+                        AssessmentArchive.deleteOlder(fileName, newest);
+                        return archived;
+                    }
+                }
+                catch (IOException e) {
+                    // An archive from an older version (or a damaged one) is simply written again
+                }
+            }
+            return writeArchive(fileName);
+        }
+        finally {
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                stripes[i].writeLock().unlock();
+            }
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Writes the archive for archiveAssessments and openArchive, which hold every lock
+     */
+    private int writeArchive(String fileName) throws IOException {
+        File file = AssessmentArchive.nextFile(fileName);
+        File tempFile = new File(file.getPath() + ".tmp");
+        // Lets openArchive tell whether the gym is loaded from the same snapshot next time
+        long snapshotGeneration = -1;
+        long journalLength = -1;
+        if (journal != null) {
+            snapshotGeneration = GymSnapshot.generation(snapshotFile);
+            journalLength = journal.size();
+        }
+        long[] positions = AssessmentArchive.write(tempFile.getPath(), members, snapshotGeneration, journalLength);
+        // Nothing has the new file mapped yet, so it can be renamed into place (even on Windows)
+        GymSnapshot.replaceAtomically(tempFile, file);
+        AssessmentArchive archive = AssessmentArchive.open(file.getPath());
+        int archived = 0;
+        for (int i = 0; i < members.size(); i++) {
+            if (positions[i] >= 0) {
+                members.get(i).archiveAssessments(archive.columnsAt(positions[i]));
+                archived++;
+            }
+        }
+        AssessmentArchive.deleteOlder(fileName, file);
+        return archived;
+    }
+
+    /*
+     * Loads the gym from the segment files in the directory passed as a parameter, or if it
+     * holds none yet, keeps the members and trainers currently loaded and writes every segment
+     * on the next storeSegments. From then on each change marks the changed person's segment
+     */
+    public void openSegments(String directory) throws IOException {
+        if (GymSegmentStore.exists(directory)) {
+            GymSegmentStore store = new GymSegmentStore(directory, GymSegmentStore.DEFAULT_SEGMENTS);
+            ArrayList<Member> loadedMembers = new ArrayList<Member>();
+            ArrayList<Trainer> loadedTrainers = new ArrayList<Trainer>();
+            store.load(loadedMembers, loadedTrainers);
+            lock.writeLock().lock();
+            try {
+                members = loadedMembers;
+                trainers = loadedTrainers;
+                // Not set until the lists are replaced, so rebuildIndexes doesn't mark every segment
+                segments = null;
+                rebuildIndexes();
+                segments = store;
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+        else {
+            lock.writeLock().lock();
+            try {
+                segments = new GymSegmentStore(directory, GymSegmentStore.DEFAULT_SEGMENTS);
+                segments.reset(members, trainers);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /*
+     * Rewrites only the segment files holding persons that changed since the last store
+     * Returns the number of segment files written
+     * The changed segments are copied while changes are held up, then written without holding
+     * any lock, so the time changes wait depends on the size of the change, not of the gym
+     */
+    public int storeSegments() throws IOException {
+        segmentsSaving.lock();
+        try {
+            ArrayList<GymSegmentStore.EncodedSegment> encoded;
+            GymSegmentStore store;
+            lock.readLock().lock();
+            lockAllStripesForReading();
+            try {
+                if (segments == null) {
+                    throw new IllegalStateException("No segment directory has been opened");
+                }
+                store = segments;
+                encoded = store.takeDirtySegments();
+            }
+            finally {
+                unlockAllStripesForReading();
+                lock.readLock().unlock();
+            }
+            store.write(encoded);
+            return encoded.size();
+        }
+        finally {
+            segmentsSaving.unlock();
+        }
+    }
+
+    /*
+     * Loads contents of a binary snapshot file written by storeSnapshot
+     * Members are added to the members array list and trainers to the trainers array list
+     */
+    public void loadSnapshot(String fileName) throws Exception {
+        loadSnapshot(fileName, false);
+    }
+
+    /*
+     * Loads a snapshot as above, but if lazyAssessments is true each member's assessments are
+     * left in the file until they are first needed, and only their latest assessment is read
+     * The file is kept open until the gym is loaded again
+     */
+    public void loadSnapshot(String fileName, boolean lazyAssessments) throws Exception {
+        ArrayList<Member> loadedMembers = new ArrayList<Member>();
+        ArrayList<Trainer> loadedTrainers = new ArrayList<Trainer>();
+        List<String> skipped = new ArrayList<String>();
+        if (lazyAssessments) {
+            AssessmentHistory.Source source = GymSnapshot.readLazily(fileName, loadedMembers, loadedTrainers, skipped);
+            replaceLists(loadedMembers, loadedTrainers, source);
+        }
+        else {
+            GymSnapshot.read(fileName, loadedMembers, loadedTrainers, skipped);
+            replaceLists(loadedMembers, loadedTrainers);
+        }
+        skippedAssessments = skipped;
+    }
+
+    /*
+     * Loads the gym from the snapshot file and replays the changes recorded in the journal file
+     * since that snapshot was taken. If there is no snapshot yet, one is taken of the members
+     * and trainers currently loaded. From then on every change is appended to the journal
+     */
+    public void openJournal(String snapshotFile, String journalFile) throws Exception {
+        openJournal(snapshotFile, journalFile, false);
+    }
+
+    /*
+     * Opens the journal as above, loading the snapshot lazily if lazyAssessments is true
+     * (see loadSnapshot). Only the members changed by the journal have their assessments read
+     */
+    public void openJournal(String snapshotFile, String journalFile, boolean lazyAssessments) throws Exception {
+        lock.writeLock().lock();
+        try {
+            // Otherwise the changes replayed below would be journaled again
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            if (new File(snapshotFile).exists()) {
+                loadSnapshot(snapshotFile, lazyAssessments);
+            }
+            else {
+                GymSnapshot.writeAtomically(snapshotFile, members, trainers);
+            }
+            HashMap<String, Long> changedAt = new HashMap<String, Long>();
+            // Added to what the snapshot (or the XML files, if there was no snapshot yet) skipped
+            List<String> skipped = new ArrayList<String>(skippedAssessments);
+            GymJournal.replay(journalFile, members, trainers, changedAt, skipped);
+            skippedAssessments = skipped;
+            rebuildIndexes();
+            journalChangedAt = changedAt;
+            journalOpenedLength = new File(journalFile).length();
+            this.snapshotFile = snapshotFile;
+            journal = new GymJournal(journalFile);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Writes any outstanding journal records and closes the journal
+     */
+    public void closeJournal() throws Exception {
+        lock.writeLock().lock();
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void setJournalCompactionThreshold(long bytes) {
+        lock.writeLock().lock();
+        try {
+            journalCompactionThreshold = bytes;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Writes a fresh snapshot and empties the journal
+     * The snapshot replaces the old one atomically, so a crash at any point leaves either
+     * the old snapshot plus the full journal or the new snapshot (journal records are
+     * safe to replay again over a snapshot that already contains them)
+     */
+    public void compactJournal() throws IOException {
+        // Every change takes at least the read lock until it is journaled, so once the write
+        // lock is held everything in the journal is also in the lists being written
+        lock.writeLock().lock();
+        try {
+            if (journal != null) {
+                GymSnapshot.writeAtomically(snapshotFile, members, trainers);
+                journal.truncate();
+                journalChangedAt = null;
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        // Load contents of members ArrayList
-        ObjectInputStream inMembers = xStream.createObjectInputStream(new FileReader("members.xml"));
-        members = (ArrayList<Member>)inMembers.readObject();
-        inMembers.close();
+    /*
+     * Folds the journal into a new snapshot once it has grown past the compaction threshold
+     * Called after a change has been journaled (with no locks held)
+     */
+    private void compactJournalIfNeeded() {
+        boolean needed;
+        lock.readLock().lock();
+        try {
+            needed = journal != null && journal.size() > journalCompactionThreshold;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        if (needed) {
+            lock.writeLock().lock();
+            try {
+                // Another thread may have compacted the journal first
+                if (journal != null && journal.size() > journalCompactionThreshold) {
+                    compactJournal();
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /*
+     * Loads the same files as load, but reads each person one element at a time
+     * using PersonXmlReader instead of building a DOM tree of the whole file first
+     * Extra memory used while loading stays the same no matter how big the files are
+     */
+    public void loadStreaming() throws Exception {
+        // The persons file is always read one person at a time
+        if (new File(PERSONS_FILE).exists()) {
+            load(PERSONS_FILE);
+            return;
+        }
+
+        // Load contents of trainers file on another thread
+        Future<ArrayList<Trainer>> trainersRead = ForkJoinPool.commonPool().submit(new Callable<ArrayList<Trainer>>() {
+            public ArrayList<Trainer> call() throws Exception {
+                ArrayList<Trainer> loadedTrainers = new ArrayList<Trainer>();
+                PersonXmlReader inTrainers = new PersonXmlReader(new BufferedReader(new FileReader(LEGACY_TRAINERS_FILE)));
+                try {
+                    Person person;
+                    while ((person = inTrainers.next()) != null) {
+                        if (person instanceof Trainer) {
+                            loadedTrainers.add((Trainer) person);
+                        }
+                    }
+                }
+                finally {
+                    inTrainers.close();
+                }
+                return loadedTrainers;
+            }
+        });
+
+        // Load contents of members file
+        ArrayList<Member> loadedMembers = new ArrayList<Member>();
+        PersonXmlReader inMembers = new PersonXmlReader(new BufferedReader(new FileReader(LEGACY_MEMBERS_FILE)));
+        try {
+            Person person;
+            while ((person = inMembers.next()) != null) {
+                if (person instanceof Member) {
+                    loadedMembers.add((Member) person);
+                }
+            }
+        }
+        finally {
+            inMembers.close();
+        }
 
-        // Load contents of trainers ArrayList
-        ObjectInputStream inTrainers = xStream.createObjectInputStream(new FileReader("trainers.xml"));
-        trainers = (ArrayList<Trainer>)inTrainers.readObject();
-        inTrainers.close();
+        // Only replace the current lists once both files were read successfully
+        replaceLists(loadedMembers, result(trainersRead));
+        skippedAssessments = inMembers.skippedAssessments();
     }
 }
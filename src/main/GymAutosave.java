@@ -0,0 +1,194 @@
+/*
+ * Saves the gym to the persons XML file (see GymAPI.store) in the background
+ * A save is started every interval, and also as soon as a number of changes
+ * have been made since the last one (saves with no changes to write are skipped)
+ *
+ * Each save takes a copy of the gym as it was at one point in time (see GymAPI.copyPersons),
+ * so a person's changes are only held up while that person is copied, not while the much
+ * slower XML is written
+ * The file is written to a temporary file first and renamed over the old one,
+ * so a crash during a save leaves the previous save in place
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class GymAutosave {
+
+    private GymAPI gymAPI;
+    private String personsFile;
+    private int changesBetweenSaves;
+    private ScheduledExecutorService executor;
+    // Set while a save is waiting to run, so a burst of changes only starts one save
+    private AtomicBoolean savePending;
+    // The change count included in the last save
+    private volatile long savedChangeCount;
+    // When the last save finished (System.currentTimeMillis), and how long it took
+    private volatile long lastSaveTime;
+    private volatile long lastSaveDuration;
+    private volatile Exception lastSaveError;
+    // Held while saving, separate from this object's lock so changeMade never waits for a save
+    private final Object saving = new Object();
+
+    /*
+     * Constructor for GymAutosave
+     * Saves nothing until start is called
+     */
+    public GymAutosave(GymAPI gymAPI, String personsFile) {
+        this.gymAPI = gymAPI;
+        this.personsFile = personsFile;
+        this.savePending = new AtomicBoolean();
+        this.savedChangeCount = gymAPI.changeCount();
+    }
+
+    /*
+     * Starts saving every intervalSeconds, and whenever changesBetweenSaves changes
+     * have been made since the last save (0 to only save on the interval)
+     */
+    public synchronized void start(long intervalSeconds, int changesBetweenSaves) {
+        if (executor != null) {
+            throw new IllegalStateException("Autosave has already started");
+        }
+        this.changesBetweenSaves = changesBetweenSaves;
+        // A single daemon thread, so saves never overlap and don't keep the program running
+        ScheduledThreadPoolExecutor scheduled = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "gym-autosave");
+                thread.setDaemon(true);
+                // Edits and searches come first, the save can wait
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        scheduled.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor = scheduled;
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                saveIfChanged();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        if (changesBetweenSaves > 0) {
+            gymAPI.setChangeListener(new Runnable() {
+                public void run() {
+                    changeMade();
+                }
+            });
+        }
+    }
+
+    /*
+     * Stops saving, waiting for a save that has already started to finish
+     * Changes made since the last save are not saved (call save to save them)
+     */
+    public void stop() throws InterruptedException {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = executor;
+            executor = null;
+        }
+        if (stopping != null) {
+            gymAPI.setChangeListener(null);
+            stopping.shutdown();
+            stopping.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /*
+     * Run after each change, starts a save once enough changes have been made
+     */
+    private void changeMade() {
+        if (gymAPI.changeCount() - savedChangeCount >= changesBetweenSaves && savePending.compareAndSet(false, true)) {
+            synchronized (this) {
+                if (executor != null) {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            saveIfChanged();
+                        }
+                    });
+                    return;
+                }
+            }
+            savePending.set(false);
+        }
+    }
+
+    private void saveIfChanged() {
+        savePending.set(false);
+        if (gymAPI.changeCount() != savedChangeCount) {
+            try {
+                save();
+            }
+            catch (Exception e) {
+                // Keep the error for getLastSaveError and try again on the next save
+                lastSaveError = e;
+            }
+        }
+    }
+
+    /*
+     * Saves the gym now, on the calling thread
+     */
+    public void save() throws Exception {
+        synchronized (saving) {
+            long start = System.nanoTime();
+            ArrayList<Member> members = new ArrayList<Member>();
+            ArrayList<Trainer> trainers = new ArrayList<Trainer>();
+            long changeCount = gymAPI.copyPersons(members, trainers);
+
+            writeXml(personsFile, GymAPI.personsList(members, trainers));
+
+            savedChangeCount = changeCount;
+            lastSaveDuration = (System.nanoTime() - start) / 1000000;
+            lastSaveTime = System.currentTimeMillis();
+            lastSaveError = null;
+        }
+    }
+
+    private static void writeXml(String fileName, ArrayList<Person> persons) throws IOException {
+        File tempFile = new File(fileName + ".tmp");
+        ObjectOutputStream out = GymAPI.XSTREAM.createObjectOutputStream(new FileWriter(tempFile));
+        try {
+            out.writeObject(persons);
+        }
+        finally {
+            out.close();
+        }
+        GymSnapshot.replaceAtomically(tempFile, new File(fileName));
+    }
+
+    /*
+     * Returns the time the last save finished (as System.currentTimeMillis), or 0 if there hasn't been one
+     */
+    public long getLastSaveTime() {
+        return lastSaveTime;
+    }
+
+    /*
+     * Returns how long the last save took in milliseconds
+     */
+    public long getLastSaveDuration() {
+        return lastSaveDuration;
+    }
+
+    /*
+     * Returns the number of changes made since the last save
+     */
+    public long getUnsavedChanges() {
+        return gymAPI.changeCount() - savedChangeCount;
+    }
+
+    /*
+     * Returns the error the last background save failed with, or null if it succeeded
+     */
+    public Exception getLastSaveError() {
+        return lastSaveError;
+    }
+}
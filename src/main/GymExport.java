@@ -0,0 +1,305 @@
+/*
+ * Settings for exporting members or assessments (see GymAPI.exportMembers and
+ * GymAPI.exportAssessments) and the writing of the exported rows
+ *
+ * Rows are written as CSV, with a header line, or as JSON Lines (one JSON object per line)
+ * The member rows have the same columns RosterImport reads, so an export can be imported
+ * again, plus the member's latest BMI category. Each assessment row is
+ *     email, date, weight, thigh, waist, comment
+ *
+ * Filters (all optional, a row must match every one that is set):
+ *     BMI category   members whose latest BMI category contains the text (eg "OBESE")
+ *     package        members on the package (ignoring case)
+ *     date range     assessments dated in the range (inclusive), and for the member export,
+ *                    members with at least one assessment in the range
+ *
+ * Rows are encoded as UTF-8 into one fixed size buffer that is written to the channel
+ * each time it fills, so the memory used doesn't grow with the number of rows
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+public class GymExport {
+
+    public enum Format {
+        CSV, JSON_LINES
+    }
+
+    public static final String[] MEMBER_COLUMNS = {"type", "email", "name", "address", "gender", "height",
+            "weight", "package", "studentid", "college", "bmicategory"};
+    public static final String[] ASSESSMENT_COLUMNS = {"email", "date", "weight", "thigh", "waist", "comment"};
+    // Size of the buffer rows are encoded into before being written to the channel
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Format format;
+    private String bmiCategory;
+    private String chosenPackage;
+    // Epoch days of the date range, an open end is as far as datesBetween can go (it looks up the day after toDay)
+    private int fromDay = Integer.MIN_VALUE;
+    private int toDay = Integer.MAX_VALUE - 1;
+
+    /*
+     * Constructor for GymExport
+     * Nothing is filtered out until a filter is set
+     */
+    public GymExport(Format format) {
+        this.format = format;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /*
+     * Only exports members whose latest BMI category contains the text (ignoring case)
+     * null exports members in any category, including those with no assessments
+     */
+    public void setBMICategory(String bmiCategory) {
+        this.bmiCategory = bmiCategory == null ? null : bmiCategory.toUpperCase();
+    }
+
+    /*
+     * Only exports members on the package (ignoring case), null exports every package
+     */
+    public void setPackage(String chosenPackage) {
+        this.chosenPackage = chosenPackage;
+    }
+
+    /*
+     * Only exports assessments dated between fromDate and toDate (inclusive, both YY/MM/DD)
+     * Either date may be null to leave that end of the range open
+     * Throws an IllegalArgumentException if a date isn't valid
+     */
+    public void setDateRange(String fromDate, String toDate) {
+        fromDay = fromDate == null ? Integer.MIN_VALUE : AssessmentDate.parse(fromDate);
+        toDay = toDate == null ? Integer.MAX_VALUE - 1 : AssessmentDate.parse(toDate);
+    }
+
+    /*
+     * Returns a boolean indicating if a date range has been set
+     */
+    boolean hasDateRange() {
+        return fromDay != Integer.MIN_VALUE || toDay != Integer.MAX_VALUE - 1;
+    }
+
+    /*
+     * Returns a boolean indicating if the member passes the BMI category and package filters
+     * (the member's lock must be held)
+     */
+    boolean matches(Member member) {
+        if (chosenPackage != null && !chosenPackage.equalsIgnoreCase(member.getChosenPackage())) {
+            return false;
+        }
+        if (bmiCategory != null) {
+            String category = bmiCategoryOf(member);
+            return category != null && category.contains(bmiCategory);
+        }
+        return true;
+    }
+
+    /*
+     * Returns a boolean indicating if the assessments include one in the date range
+     */
+    boolean anyInRange(AssessmentMap assessments) {
+        return !assessments.datesBetween(fromDay, toDay).isEmpty();
+    }
+
+    /*
+     * Returns the member's BMI category based on their latest assessment, or null if they have none
+     */
+    private static String bmiCategoryOf(Member member) {
+        Assessment latestAssessment = member.latestAssessment();
+        if (latestAssessment == null) {
+            return null;
+        }
+        return GymUtility.determineBMICategory(GymUtility.calculateBMI(member, latestAssessment));
+    }
+
+    /*
+     * Appends the CSV header line for the columns, JSON Lines has no header
+     */
+    void appendHeader(StringBuilder out, String[] columns) {
+        if (format == Format.CSV) {
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(columns[i]);
+            }
+            out.append('\n');
+        }
+    }
+
+    /*
+     * Appends the row for a member (the member's lock must be held)
+     */
+    void appendMember(StringBuilder out, Member member) {
+        String type = "member";
+        String studentid = null;
+        String collegeName = null;
+        if (member instanceof StudentMember) {
+            type = "student";
+            studentid = ((StudentMember) member).getStudentid();
+            collegeName = ((StudentMember) member).getCollegeName();
+        }
+        else if (member instanceof PremiumMember) {
+            type = "premium";
+        }
+        Object[] values = {type, member.getEmail(), member.getName(), member.getAddress(), member.getGender(),
+                member.getHeight(), member.getStartWeight(), member.getChosenPackage(), studentid, collegeName,
+                bmiCategoryOf(member)};
+        appendRow(out, MEMBER_COLUMNS, values);
+    }
+
+    /*
+     * Appends a row for each of the member's assessments in the date range, oldest first
+     * Returns the number of rows appended
+     */
+    int appendAssessments(StringBuilder out, String email, AssessmentMap assessments) {
+        int from = assessments.firstIndexOnOrAfter(fromDay);
+        int to = assessments.firstIndexOnOrAfter(toDay + 1);
+        Object[] values = new Object[ASSESSMENT_COLUMNS.length];
+        for (int i = from; i < to; i++) {
+            values[0] = email;
+            values[1] = AssessmentDate.shared(assessments.epochDayAt(i));
+            values[2] = assessments.weightAt(i);
+            values[3] = assessments.thighAt(i);
+            values[4] = assessments.waistAt(i);
+            values[5] = assessments.commentAt(i);
+            appendRow(out, ASSESSMENT_COLUMNS, values);
+        }
+        return Math.max(0, to - from);
+    }
+
+    private void appendRow(StringBuilder out, String[] columns, Object[] values) {
+        if (format == Format.CSV) {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                if (values[i] != null) {
+                    Csv.appendField(out, values[i].toString());
+                }
+            }
+            out.append('\n');
+        }
+        else {
+            out.append('{');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                appendJsonString(out, columns[i]);
+                out.append(':');
+                appendJsonValue(out, values[i]);
+            }
+            out.append("}\n");
+        }
+    }
+
+    private static void appendJsonValue(StringBuilder out, Object value) {
+        if (value instanceof Float) {
+            float number = (Float) value;
+            // JSON has no NaN or infinity
+            if (Float.isNaN(number) || Float.isInfinite(number)) {
+                out.append("null");
+            }
+            else {
+                out.append(number);
+            }
+        }
+        else if (value == null) {
+            out.append("null");
+        }
+        else {
+            appendJsonString(out, value.toString());
+        }
+    }
+
+    private static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            }
+            else if (c == '\n') {
+                out.append("\\n");
+            }
+            else if (c == '\r') {
+                out.append("\\r");
+            }
+            else if (c == '\t') {
+                out.append("\\t");
+            }
+            else if (c < 0x20) {
+                // Other control characters are written as unicode escapes
+                out.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            }
+            else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    /*
+     * Encodes text as UTF-8 into a fixed size buffer, writing the buffer to the channel
+     * each time it fills
+     */
+    static class ChannelWriter {
+        private WritableByteChannel channel;
+        private ByteBuffer buffer;
+        private CharsetEncoder encoder;
+
+        ChannelWriter(WritableByteChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            this.encoder = StandardCharsets.UTF_8.newEncoder();
+        }
+
+        /*
+         * Encodes the text into the buffer, writing out the buffer whenever it is full
+         */
+        void write(CharSequence text) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (true) {
+                CoderResult result = encoder.encode(chars, buffer, false);
+                if (result.isOverflow()) {
+                    drain();
+                }
+                else if (result.isUnderflow()) {
+                    return;
+                }
+                else {
+                    result.throwException();
+                }
+            }
+        }
+
+        /*
+         * Writes whatever is left in the buffer to the channel
+         */
+        void flush() throws IOException {
+            CoderResult result = encoder.encode(CharBuffer.allocate(0), buffer, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            drain();
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,552 @@
+/*
+ * Append-only journal of changes made to the gym since the last snapshot
+ * Each change is written as a framed record (length, type, data, checksum)
+ * and is durable on disk before the method that logged it returns
+ *
+ * Writes use group commit: while one batch is being forced to disk, any
+ * records logged by other threads are collected and forced together in the next batch
+ *
+ * Every record sets state rather than changing it relative to what is already
+ * there, so replaying the journal over a snapshot that already contains some of
+ * its changes gives the same result
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class GymJournal {
+
+    // Persons in the journal are written with the version 1 snapshot encoding
+    // (dates as strings) so that journals written before version 2 can still be replayed
+    private static final int PERSON_VERSION = 1;
+
+    // Record types
+    public static final byte ADD_MEMBER = 1;
+    public static final byte ADD_TRAINER = 2;
+    public static final byte ADD_ASSESSMENT = 3;
+    // No longer written (a changed assessment is logged whole with ADD_ASSESSMENT), still replayed
+    public static final byte EDIT_COMMENT = 4;
+    // Replaced by UPDATE_DETAILS, still replayed for journals written before it
+    public static final byte UPDATE_PERSON = 5;
+    public static final byte UPDATE_DETAILS = 6;
+    // A null date removes every assessment of the member
+    public static final byte REMOVE_ASSESSMENT = 7;
+    public static final byte NULL_ASSESSMENT = 8;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    // Records logged but not yet written to disk
+    private ByteArrayOutputStream pending;
+    // Sequence number of the last record logged and the last one forced to disk
+    private long loggedSeq;
+    private long syncedSeq;
+    // Bytes of the journal that are on disk
+    private long size;
+    private boolean closed;
+    private IOException failure;
+    private Thread flusher;
+
+    /*
+     * Constructor for GymJournal
+     * Opens (or creates) the journal file and positions it at its end
+     */
+    public GymJournal(String fileName) throws IOException {
+        file = new RandomAccessFile(fileName, "rw");
+        channel = file.getChannel();
+        size = channel.size();
+        channel.position(size);
+        pending = new ByteArrayOutputStream();
+
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "gym-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /*
+     * Returns the number of bytes on disk in the journal
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public void logAddMember(Member member) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ADD_MEMBER);
+        GymSnapshot.writePerson(out, member, PERSON_VERSION);
+        commit(bytes.toByteArray());
+    }
+
+    public void logAddTrainer(Trainer trainer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ADD_TRAINER);
+        GymSnapshot.writePerson(out, trainer, PERSON_VERSION);
+        commit(bytes.toByteArray());
+    }
+
+    /*
+     * Records the assessment the member has (or will have) for the date, which may be null
+     */
+    public void logAssessment(Member member, String date, Assessment assessment) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (assessment == null) {
+            out.writeByte(NULL_ASSESSMENT);
+            GymSnapshot.writeString(out, member.getEmail());
+            GymSnapshot.writeString(out, date);
+            commit(bytes.toByteArray());
+            return;
+        }
+        out.writeByte(ADD_ASSESSMENT);
+        GymSnapshot.writeString(out, member.getEmail());
+        GymSnapshot.writeString(out, date);
+        out.writeFloat(assessment.getWeight());
+        out.writeFloat(assessment.getThigh());
+        out.writeFloat(assessment.getWaist());
+        GymSnapshot.writeString(out, assessment.getComment());
+        commit(bytes.toByteArray());
+    }
+
+    /*
+     * Records that the member's assessment for the date was removed, or all of them if the date is null
+     */
+    public void logAssessmentRemoved(Member member, String date) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVE_ASSESSMENT);
+        GymSnapshot.writeString(out, member.getEmail());
+        GymSnapshot.writeString(out, date);
+        commit(bytes.toByteArray());
+    }
+
+    /*
+     * Records the current details of a person after they have been edited
+     * Only the details are written, not a member's assessments, which have records of their own
+     */
+    public void logPersonUpdate(Person person) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(UPDATE_DETAILS);
+        GymSnapshot.writeString(out, person.getEmail());
+        writeDetails(out, person);
+        commit(bytes.toByteArray());
+    }
+
+    /*
+     * Returns the person's details as logPersonUpdate writes them, so that they can be put
+     * back with restoreDetails (eg if an edit can't be journaled)
+     */
+    static byte[] details(Person person) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeDetails(new DataOutputStream(bytes), person);
+        }
+        catch (IOException e) {
+            // Only thrown by the stream being written to, which is in memory
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Sets the details returned by details back on the person
+     */
+    static void restoreDetails(Person person, byte[] details) {
+        try {
+            applyDetails(new DataInputStream(new ByteArrayInputStream(details)), person);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeDetails(DataOutputStream out, Person person) throws IOException {
+        GymSnapshot.writeString(out, person.getName());
+        GymSnapshot.writeString(out, person.getAddress());
+        GymSnapshot.writeString(out, person.getGender());
+        if (person instanceof Member) {
+            Member member = (Member) person;
+            out.writeFloat(member.getHeight());
+            out.writeFloat(member.getStartWeight());
+            GymSnapshot.writeString(out, member.getChosenPackage());
+            if (member instanceof StudentMember) {
+                GymSnapshot.writeString(out, ((StudentMember) member).getStudentid());
+                GymSnapshot.writeString(out, ((StudentMember) member).getCollegeName());
+            }
+        }
+        else {
+            GymSnapshot.writeString(out, ((Trainer) person).getSpeciality());
+        }
+    }
+
+    /*
+     * Frames the record and waits until it (and everything logged before it) is on disk
+     */
+    private void commit(byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Journal is closed");
+            }
+            DataOutputStream frame = new DataOutputStream(pending);
+            frame.writeInt(body.length);
+            frame.write(body);
+            frame.writeInt((int) crc.getValue());
+            long seq = ++loggedSeq;
+            notifyAll();
+            // Wait for the flusher to force this record to disk
+            while (syncedSeq < seq) {
+                if (failure != null) {
+                    throw failure;
+                }
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for journal write", e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Runs on the flusher thread
+     * Writes every pending record in one batch and forces them to disk with a single fsync
+     */
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            long batchSeq;
+            synchronized (this) {
+                while (loggedSeq == syncedSeq && !closed) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (loggedSeq == syncedSeq) {
+                    // Closed and nothing left to write
+                    return;
+                }
+                batch = pending.toByteArray();
+                pending.reset();
+                batchSeq = loggedSeq;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                synchronized (this) {
+                    size += batch.length;
+                    syncedSeq = batchSeq;
+                    notifyAll();
+                }
+            }
+            catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /*
+     * Empties the journal once its contents have been written to a new snapshot
+     */
+    public synchronized void truncate() throws IOException {
+        // Let the flusher finish writing anything already logged first
+        while (syncedSeq < loggedSeq && failure == null) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for journal write", e);
+            }
+        }
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        size = 0;
+    }
+
+    /*
+     * Stops the flusher (after writing anything pending) and closes the file
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        file.close();
+    }
+
+    /*
+     * Applies each complete record in the journal file to the members and trainers lists
+     * A record that was only partly written (eg because of a crash) ends the replay,
+     * and the file is cut back to the last complete record
+     * Returns the number of records applied
+     * Throws an IOException if a record before the end is damaged, or is of a type this
+     * version doesn't know, rather than losing it and every record after it
+     */
+    public static int replay(String fileName, ArrayList<Member> members, ArrayList<Trainer> trainers) throws IOException {
+        return replay(fileName, members, trainers, null, new ArrayList<String>());
+    }
+
+    /*
+     * Replays the journal as above, also putting in changedAt where the last record about each
+     * person starts, by email (so GymAPI.openArchive can tell who changed after the archive was written)
+     * An assessment whose date can't be parsed (only written before dates were checked) is
+     * skipped and a line added to skipped for it, as when loading the XML files
+     */
+    static int replay(String fileName, ArrayList<Member> members, ArrayList<Trainer> trainers,
+                      HashMap<String, Long> changedAt, List<String> skipped) throws IOException {
+        RandomAccessFile journal = new RandomAccessFile(fileName, "rw");
+        // Position of each person in their list by email, so records don't need to scan the lists
+        HashMap<String, Integer> memberPositions = positions(members);
+        HashMap<String, Integer> trainerPositions = positions(trainers);
+        int applied = 0;
+        try {
+            long goodLength = 0;
+            long length = journal.length();
+            while (goodLength < length) {
+                // The length, body or checksum runs past the end of the file: the last record was torn
+                if (goodLength + 4 > length) {
+                    break;
+                }
+                journal.seek(goodLength);
+                int bodyLength = journal.readInt();
+                if (bodyLength <= 0) {
+                    // A crash can leave the end of the file filled with zeros rather than a record
+                    if (bodyLength == 0 && onlyZeros(journal, goodLength + 4, length)) {
+                        break;
+                    }
+                    throw damaged(fileName, goodLength);
+                }
+                long recordEnd = goodLength + 4 + bodyLength + 4;
+                if (recordEnd > length) {
+                    break;
+                }
+                byte[] body = new byte[bodyLength];
+                journal.readFully(body);
+                int storedCrc = journal.readInt();
+                CRC32 crc = new CRC32();
+                crc.update(body, 0, body.length);
+                if ((int) crc.getValue() != storedCrc) {
+                    // Only the last record can have been torn by a crash
+                    if (recordEnd == length) {
+                        break;
+                    }
+                    throw damaged(fileName, goodLength);
+                }
+                try {
+                    String email = apply(body, members, memberPositions, trainers, trainerPositions, skipped);
+                    if (changedAt != null) {
+                        changedAt.put(email, goodLength);
+                    }
+                }
+                catch (EOFException e) {
+                    // The checksum matched, so the record was written whole but doesn't hold what its type needs
+                    throw damaged(fileName, goodLength);
+                }
+                applied++;
+                goodLength = recordEnd;
+            }
+            // Drop any torn record at the end so new records follow the last good one
+            if (goodLength < length) {
+                journal.setLength(goodLength);
+            }
+        }
+        finally {
+            journal.close();
+        }
+        return applied;
+    }
+
+    private static IOException damaged(String fileName, long position) {
+        return new IOException(fileName + " has a damaged record at byte " + position);
+    }
+
+    /*
+     * Returns a boolean indicating if every byte from the position to the end of the file is zero
+     */
+    private static boolean onlyZeros(RandomAccessFile journal, long from, long length) throws IOException {
+        journal.seek(from);
+        byte[] buffer = new byte[8192];
+        long remaining = length - from;
+        while (remaining > 0) {
+            int read = (int) Math.min(buffer.length, remaining);
+            journal.readFully(buffer, 0, read);
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] != 0) {
+                    return false;
+                }
+            }
+            remaining -= read;
+        }
+        return true;
+    }
+
+    /*
+     * Applies one record, returning the email of the person it is about
+     */
+    private static String apply(byte[] body, ArrayList<Member> members, HashMap<String, Integer> memberPositions,
+                              ArrayList<Trainer> trainers, HashMap<String, Integer> trainerPositions,
+                              List<String> skipped) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        if (type == ADD_MEMBER || type == ADD_TRAINER || type == UPDATE_PERSON) {
+            Person person = GymSnapshot.readPerson(in, PERSON_VERSION, null, skipped);
+            if (person instanceof Member) {
+                replace(members, memberPositions, (Member) person);
+            }
+            else {
+                replace(trainers, trainerPositions, (Trainer) person);
+            }
+            return person.getEmail();
+        }
+        else if (type == ADD_ASSESSMENT) {
+            String email = GymSnapshot.readString(in);
+            Integer position = memberPositions.get(email);
+            String date = GymSnapshot.readString(in);
+            Assessment assessment = new Assessment(in.readFloat(), in.readFloat(), in.readFloat(),
+                    GymSnapshot.readString(in));
+            if (AssessmentDate.tryParse(date) == AssessmentDate.INVALID) {
+                skipped.add(PersonXmlReader.skippedAssessment(email, date));
+            }
+            else if (position != null) {
+                members.get(position).getAssessments().put(date, assessment);
+            }
+            return email;
+        }
+        else if (type == EDIT_COMMENT) {
+            String email = GymSnapshot.readString(in);
+            Integer position = memberPositions.get(email);
+            String date = GymSnapshot.readString(in);
+            String comment = GymSnapshot.readString(in);
+            if (position != null) {
+                Assessment assessment = members.get(position).getAssessments().get(date);
+                if (assessment != null) {
+                    assessment.setComment(comment);
+                }
+            }
+            return email;
+        }
+        else if (type == REMOVE_ASSESSMENT || type == NULL_ASSESSMENT) {
+            String email = GymSnapshot.readString(in);
+            Integer position = memberPositions.get(email);
+            String date = GymSnapshot.readString(in);
+            if (position != null) {
+                Map<String, Assessment> assessments = members.get(position).getAssessments();
+                if (type == NULL_ASSESSMENT) {
+                    if (AssessmentDate.tryParse(date) == AssessmentDate.INVALID) {
+                        skipped.add(PersonXmlReader.skippedAssessment(email, date));
+                    }
+                    else {
+                        assessments.put(date, null);
+                    }
+                }
+                else if (date == null) {
+                    assessments.clear();
+                }
+                else {
+                    assessments.remove(date);
+                }
+            }
+            return email;
+        }
+        else if (type == UPDATE_DETAILS) {
+            String email = GymSnapshot.readString(in);
+            Integer memberPosition = memberPositions.get(email);
+            Integer trainerPosition = trainerPositions.get(email);
+            Person person = memberPosition != null ? members.get(memberPosition)
+                    : trainerPosition != null ? trainers.get(trainerPosition) : null;
+            if (person != null) {
+                applyDetails(in, person);
+            }
+            return email;
+        }
+        else {
+            throw new IOException("Unknown journal record type: " + type);
+        }
+    }
+
+    /*
+     * Sets the details written by logPersonUpdate on the person
+     */
+    private static void applyDetails(DataInputStream in, Person person) throws IOException {
+        person.setName(GymSnapshot.readString(in));
+        person.setAddress(GymSnapshot.readString(in));
+        person.setGender(GymSnapshot.readString(in));
+        if (person instanceof Member) {
+            Member member = (Member) person;
+            member.setHeight(in.readFloat());
+            member.setStartWeight(in.readFloat());
+            String chosenPackage = GymSnapshot.readString(in);
+            if (member instanceof StudentMember) {
+                ((StudentMember) member).setStudentid(GymSnapshot.readString(in));
+                ((StudentMember) member).setCollegeName(GymSnapshot.readString(in));
+            }
+            // A student's package comes from their college, which is set first
+            member.chosenPackage(chosenPackage);
+        }
+        else {
+            ((Trainer) person).setSpeciality(GymSnapshot.readString(in));
+        }
+    }
+
+    /*
+     * Replaces the person with the same email, or adds them to the end of the list
+     */
+    private static <T extends Person> void replace(ArrayList<T> persons, HashMap<String, Integer> positions, T person) {
+        Integer position = positions.get(person.getEmail());
+        if (position != null) {
+            persons.set(position, person);
+        }
+        else {
+            positions.put(person.getEmail(), persons.size());
+            persons.add(person);
+        }
+    }
+
+    private static HashMap<String, Integer> positions(ArrayList<? extends Person> persons) {
+        HashMap<String, Integer> positions = new HashMap<String, Integer>(persons.size() * 2);
+        for (int i = 0; i < persons.size(); i++) {
+            positions.put(persons.get(i).getEmail(), i);
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Stores the gym as a directory of segment files, each holding the persons whose
+ * (lower case) email hashes to it, so that a save only rewrites the segments
+ * containing persons that changed since the last save
+ *
+ * Each segment is written to a temporary file, forced to disk and renamed over
+ * the old segment, so a crash never leaves a half written segment behind
+ *
+ * Directory layout:
+ *   manifest      int magic ("GYMG"), short version, int number of segments
+ *   segment-N     int magic, short version, int number of records, then for each
+ *                 record the person's position in the members (or trainers) list
+ *                 followed by the person in the snapshot encoding (see GymSnapshot)
+ * The positions let the lists be put back in their original order when loading
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+
+public class GymSegmentStore {
+
+    public static final int MAGIC = 0x47594D47;
+    public static final short VERSION = 1;
+    // Enough segments that each holds a few hundred persons in a gym of 100,000
+    public static final int DEFAULT_SEGMENTS = 256;
+
+    private File directory;
+    private int segmentCount;
+    // The persons in each segment and each person's position in their list
+    private ArrayList<ArrayList<Person>> segments;
+    private IdentityHashMap<Person, Integer> positions;
+    // Segments with changes that haven't been saved yet
+    private BitSet dirty;
+
+    /*
+     * Constructor for GymSegmentStore
+     * Uses the number of segments recorded in the directory's manifest if there is one,
+     * otherwise the number passed as a parameter (the manifest is written on the first save)
+     */
+    public GymSegmentStore(String directory, int segmentCount) throws IOException {
+        this.directory = new File(directory);
+        File manifest = new File(this.directory, "manifest");
+        if (manifest.exists()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(manifest));
+            try {
+                checkHeader(in, manifest);
+                segmentCount = in.readInt();
+            }
+            finally {
+                in.close();
+            }
+        }
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException("Number of segments must be positive");
+        }
+        this.segmentCount = segmentCount;
+        segments = new ArrayList<ArrayList<Person>>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments.add(new ArrayList<Person>());
+        }
+        positions = new IdentityHashMap<Person, Integer>();
+        dirty = new BitSet(segmentCount);
+    }
+
+    /*
+     * Returns a boolean indicating if the directory holds a saved segment store
+     */
+    public static boolean exists(String directory) {
+        return new File(directory, "manifest").exists();
+    }
+
+    /*
+     * Reads every segment, adding members to the members list and trainers to the trainers list
+     * in the order they were in when saved
+     */
+    public synchronized void load(ArrayList<Member> members, ArrayList<Trainer> trainers) throws IOException {
+        ArrayList<Person> loadedMembers = new ArrayList<Person>();
+        ArrayList<Person> loadedTrainers = new ArrayList<Person>();
+        // Each distinct comment is only kept once (see AssessmentMap.shared)
+        HashMap<String, String> comments = new HashMap<String, String>();
+        for (int segment = 0; segment < segmentCount; segment++) {
+            File file = segmentFile(segment);
+            if (!file.exists()) {
+                continue;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            try {
+                checkHeader(in, file);
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    int position = in.readInt();
+                    Person person = GymSnapshot.readPerson(in, GymSnapshot.VERSION, comments);
+                    place(person instanceof Member ? loadedMembers : loadedTrainers, position, person);
+                    segments.get(segment).add(person);
+                    positions.put(person, position);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        for (Person member : loadedMembers) {
+            if (member != null) {
+                members.add((Member) member);
+            }
+        }
+        for (Person trainer : loadedTrainers) {
+            if (trainer != null) {
+                trainers.add((Trainer) trainer);
+            }
+        }
+    }
+
+    private static void place(ArrayList<Person> persons, int position, Person person) {
+        while (persons.size() <= position) {
+            persons.add(null);
+        }
+        persons.set(position, person);
+    }
+
+    /*
+     * Adds a person at the position passed as a parameter in their list (members or trainers)
+     * Their segment will be written on the next save
+     */
+    public synchronized void add(Person person, int position) {
+        positions.put(person, position);
+        int segment = segmentOf(person);
+        segments.get(segment).add(person);
+        dirty.set(segment);
+    }
+
+    /*
+     * Replaces the persons in every segment with the members and trainers passed as parameters
+     * Every segment is written on the next save
+     */
+    public synchronized void reset(List<Member> members, List<Trainer> trainers) {
+        for (ArrayList<Person> persons : segments) {
+            persons.clear();
+        }
+        positions.clear();
+        for (int i = 0; i < members.size(); i++) {
+            add(members.get(i), i);
+        }
+        for (int i = 0; i < trainers.size(); i++) {
+            add(trainers.get(i), i);
+        }
+        // Segments left empty must be written too, to remove the persons they used to hold
+        dirty.set(0, segmentCount);
+    }
+
+    /*
+     * Records that the person has changed, so their segment is written on the next save
+     */
+    public synchronized void markDirty(Person person) {
+        if (positions.containsKey(person)) {
+            dirty.set(segmentOf(person));
+        }
+    }
+
+    /*
+     * Returns the number of segments with unsaved changes
+     */
+    public synchronized int dirtySegments() {
+        return dirty.cardinality();
+    }
+
+    /*
+     * Encodes every dirty segment and marks them all clean
+     * The caller must make sure no person is changed while this runs (GymAPI holds its locks),
+     * and should then pass the result to write, which doesn't need the locks
+     */
+    public synchronized ArrayList<EncodedSegment> takeDirtySegments() throws IOException {
+        ArrayList<EncodedSegment> encoded = new ArrayList<EncodedSegment>(dirty.cardinality());
+        for (int segment = dirty.nextSetBit(0); segment >= 0; segment = dirty.nextSetBit(segment + 1)) {
+            ArrayList<Person> persons = segments.get(segment);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(persons.size() * 256 + 16);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(persons.size());
+            for (Person person : persons) {
+                out.writeInt(positions.get(person));
+                GymSnapshot.writePerson(out, person, GymSnapshot.VERSION);
+            }
+            encoded.add(new EncodedSegment(segment, bytes.toByteArray()));
+        }
+        dirty.clear();
+        return encoded;
+    }
+
+    /*
+     * Writes the encoded segments (and the manifest if it hasn't been written yet)
+     * If a write fails, the segments that weren't written are marked dirty again
+     */
+    public void write(ArrayList<EncodedSegment> encoded) throws IOException {
+        directory.mkdirs();
+        File manifest = new File(directory, "manifest");
+        if (!manifest.exists()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(segmentCount);
+            writeFile(manifest, bytes.toByteArray());
+        }
+        for (int i = 0; i < encoded.size(); i++) {
+            try {
+                writeFile(segmentFile(encoded.get(i).segment), encoded.get(i).bytes);
+            }
+            catch (IOException e) {
+                synchronized (this) {
+                    for (int j = i; j < encoded.size(); j++) {
+                        dirty.set(encoded.get(j).segment);
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    /*
+     * A segment's contents, encoded while the gym couldn't change
+     */
+    public static class EncodedSegment {
+        private int segment;
+        private byte[] bytes;
+
+        EncodedSegment(int segment, byte[] bytes) {
+            this.segment = segment;
+            this.bytes = bytes;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+
+        public int getSize() {
+            return bytes.length;
+        }
+    }
+
+    private void writeFile(File file, byte[] bytes) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(bytes);
+        }
+        finally {
+            out.close();
+        }
+        GymSnapshot.replaceAtomically(tempFile, file);
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, "segment-" + segment);
+    }
+
+    /*
+     * Returns the segment of the person, picked by the hash of their lower case email
+     */
+    private int segmentOf(Person person) {
+        int hash = person.getEmail().toLowerCase(Locale.ROOT).hashCode();
+        // Spread the high bits so similar emails don't end up in the same segment
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % segmentCount;
+    }
+
+    private static void checkHeader(DataInputStream in, File file) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(file + " is not part of a gym segment store");
+        }
+        short version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported segment store version: " + version);
+        }
+    }
+}
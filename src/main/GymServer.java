@@ -0,0 +1,510 @@
+/*
+ * Embedded HTTP server that lets several desks or kiosks use one GymAPI at the same time
+ * Built on the JDK's own HTTP server (com.sun.net.httpserver), with a pool of worker
+ * threads handling requests. GymAPI is thread safe, so requests run in parallel
+ *
+ * Responses are JSON, apart from the reports which are streamed as plain text
+ * Parameters are passed in the query string, or as a form (application/x-www-form-urlencoded) for POST
+ *
+ *     GET  /members?email=               member details and assessments
+ *     GET  /members/search?name=         names of members whose name contains the text
+ *     GET  /members/bmi?category=        members in the (partial) BMI category
+ *     GET  /members/ideal-weight         members with an ideal body weight
+ *     GET  /members/details              latest weight and height of every member (text)
+ *     GET  /members/progress?email=&by=  progress report by weight or waist (text)
+ *     POST /members/assessments          add an assessment: email, date, weight, thigh, waist, comment
+ *     GET  /members/export?rows=&format=&category=&package=&from=&to=
+ *                                        every member (rows=members) or assessment (rows=assessments)
+ *                                        as csv or jsonl, filtered as GymExport describes (streamed)
+ *     GET  /trainers?email=              trainer details
+ *     GET  /trainers/search?name=        names of trainers whose name contains the text
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GymServer {
+
+    // Same files as MenuController, so the server and the menu see the same gym
+    private static final String SNAPSHOT_FILE = "gym.dat";
+    private static final String JOURNAL_FILE = "gym.journal";
+
+    private GymAPI gymAPI;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    static {
+        // Without TCP_NODELAY small responses wait for the client's delayed ACK, which adds
+        // about 40ms to every request on a reused connection. The JDK's server reads this
+        // setting when the first server is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /*
+     * Starts the server on the port passed as the first argument (8080 if there isn't one)
+     * using the gym loaded the same way MenuController loads it
+     * The number of worker threads can be passed as the second argument
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : defaultThreads();
+
+        final GymAPI gymAPI = new GymAPI();
+        if (!new File(SNAPSHOT_FILE).exists()) {
+            gymAPI.loadStreaming();
+        }
+        gymAPI.openJournal(SNAPSHOT_FILE, JOURNAL_FILE);
+        for (String skipped : gymAPI.skippedAssessments()) {
+            System.err.println(skipped);
+        }
+
+        final GymServer gymServer = new GymServer(gymAPI, port, threads);
+        // Stop taking requests and save the gym when the process is stopped (eg Ctrl-C)
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                gymServer.stop();
+                try {
+                    gymAPI.store();
+                    gymAPI.closeJournal();
+                }
+                catch (Exception e) {
+                    System.err.println("Error writing to file: " + e);
+                }
+            }
+        }));
+        gymServer.start();
+        System.out.println("Gym server listening on port " + gymServer.getPort() + " with " + threads + " threads");
+    }
+
+    /*
+     * Worker threads spend much of their time waiting (for the network, or for the journal
+     * to reach the disk), so there are several per processor
+     */
+    public static int defaultThreads() {
+        return Math.max(8, Runtime.getRuntime().availableProcessors() * 8);
+    }
+
+    /*
+     * Constructor for GymServer
+     * Port 0 picks any free port (see getPort)
+     */
+    public GymServer(GymAPI gymAPI, int port, int threads) throws IOException {
+        this.gymAPI = gymAPI;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gym-http-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+
+        server.createContext("/members", new Handler() {
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/members")) {
+                    getMember(exchange, params);
+                }
+                else if (path.equals("/members/search")) {
+                    requireGet(exchange);
+                    sendJson(exchange, 200, stringArray(gymAPI.searchMembersByName(required(params, "name"))));
+                }
+                else if (path.equals("/members/bmi")) {
+                    requireGet(exchange);
+                    sendJson(exchange, 200, memberArray(gymAPI.listMembersBySpecificBMICategory(required(params, "category"))));
+                }
+                else if (path.equals("/members/ideal-weight")) {
+                    requireGet(exchange);
+                    sendJson(exchange, 200, memberArray(gymAPI.listMembersWithIdealWeight()));
+                }
+                else if (path.equals("/members/details")) {
+                    requireGet(exchange);
+                    Writer out = startText(exchange);
+                    gymAPI.listMemberDetailsImperialAndMetric(out);
+                    out.close();
+                }
+                else if (path.equals("/members/progress")) {
+                    getProgress(exchange, params);
+                }
+                else if (path.equals("/members/assessments")) {
+                    addAssessment(exchange, params);
+                }
+                else if (path.equals("/members/export")) {
+                    export(exchange, params);
+                }
+                else {
+                    throw new HttpError(404, "Not found: " + path);
+                }
+            }
+        });
+        server.createContext("/trainers", new Handler() {
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                requireGet(exchange);
+                if (path.equals("/trainers")) {
+                    Trainer trainer = gymAPI.searchTrainersByEmail(required(params, "email"));
+                    if (trainer == null) {
+                        throw new HttpError(404, "No trainer with email " + params.get("email"));
+                    }
+                    sendJson(exchange, 200, trainerObject(trainer));
+                }
+                else if (path.equals("/trainers/search")) {
+                    sendJson(exchange, 200, stringArray(gymAPI.searchTrainersByName(required(params, "name"))));
+                }
+                else {
+                    throw new HttpError(404, "Not found: " + path);
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /*
+     * Stops accepting requests, waits up to a second for requests in progress to finish
+     * and stops the worker threads
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Returns the port the server is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void getMember(HttpExchange exchange, Map<String, String> params) throws IOException {
+        requireGet(exchange);
+        Member member = findMember(params);
+        StringBuilder json = memberObject(member);
+        // Replace the closing brace with the member's assessments
+        json.setLength(json.length() - 1);
+        json.append(",\"assessments\":[");
+        boolean first = true;
+        for (Map.Entry<String, Assessment> entry : gymAPI.assessmentsOf(member).entrySet()) {
+            Assessment assessment = entry.getValue();
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"date\":").append(quote(entry.getKey()))
+                    .append(",\"weight\":").append(assessment.getWeight())
+                    .append(",\"thigh\":").append(assessment.getThigh())
+                    .append(",\"waist\":").append(assessment.getWaist())
+                    .append(",\"comment\":").append(quote(assessment.getComment())).append('}');
+        }
+        json.append("]}");
+        sendJson(exchange, 200, json);
+    }
+
+    private void getProgress(HttpExchange exchange, Map<String, String> params) throws IOException {
+        requireGet(exchange);
+        Member member = findMember(params);
+        String by = params.containsKey("by") ? params.get("by") : "weight";
+        if (!by.equals("weight") && !by.equals("waist")) {
+            throw new HttpError(400, "by must be weight or waist");
+        }
+        Writer out = startText(exchange);
+        if (by.equals("weight")) {
+            gymAPI.assessmentProgressByWeight(member, out);
+        }
+        else {
+            gymAPI.assessmentProgressByWaist(member, out);
+        }
+        out.close();
+    }
+
+    private void addAssessment(HttpExchange exchange, Map<String, String> params) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            throw new HttpError(405, "Use POST to add an assessment");
+        }
+        Member member = findMember(params);
+        String date = required(params, "date");
+        if (!AssessmentDate.isValid(date)) {
+            throw new HttpError(400, "Please enter a valid date, eg 18/05/16");
+        }
+        Assessment assessment = new Assessment(number(params, "weight"), number(params, "thigh"),
+                number(params, "waist"), params.containsKey("comment") ? params.get("comment") : "");
+        gymAPI.addAssessment(member, AssessmentDate.normalise(date), assessment);
+        sendJson(exchange, 201, new StringBuilder("{\"date\":").append(quote(AssessmentDate.normalise(date))).append('}'));
+    }
+
+    private void export(HttpExchange exchange, Map<String, String> params) throws IOException {
+        requireGet(exchange);
+        String rows = params.containsKey("rows") ? params.get("rows") : "members";
+        if (!rows.equals("members") && !rows.equals("assessments")) {
+            throw new HttpError(400, "rows must be members or assessments");
+        }
+        String format = params.containsKey("format") ? params.get("format") : "csv";
+        if (!format.equals("csv") && !format.equals("jsonl")) {
+            throw new HttpError(400, "format must be csv or jsonl");
+        }
+        GymExport export = new GymExport(format.equals("csv") ? GymExport.Format.CSV : GymExport.Format.JSON_LINES);
+        export.setBMICategory(params.get("category"));
+        export.setPackage(params.get("package"));
+        // An invalid date is a 400, as the response hasn't been started yet
+        export.setDateRange(params.get("from"), params.get("to"));
+
+        exchange.getResponseHeaders().set("Content-Type",
+                format.equals("csv") ? "text/csv; charset=utf-8" : "application/x-ndjson; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        WritableByteChannel out = Channels.newChannel(exchange.getResponseBody());
+        if (rows.equals("members")) {
+            gymAPI.exportMembers(out, export);
+        }
+        else {
+            gymAPI.exportAssessments(out, export);
+        }
+        out.close();
+    }
+
+    private Member findMember(Map<String, String> params) {
+        Member member = gymAPI.searchMembersByEmail(required(params, "email"));
+        if (member == null) {
+            throw new HttpError(404, "No member with email " + params.get("email"));
+        }
+        return member;
+    }
+
+    /*
+     * Handles the request, sending an error response (as JSON) if it fails
+     */
+    private abstract static class Handler implements HttpHandler {
+
+        abstract void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                handle(exchange, params(exchange));
+            }
+            catch (HttpError e) {
+                sendError(exchange, e.status, e.getMessage());
+            }
+            catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+            }
+            catch (RuntimeException e) {
+                sendError(exchange, 500, e.toString());
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /*
+     * Thrown by a handler to send an error status
+     */
+    private static class HttpError extends RuntimeException {
+        // Never written anywhere, but exceptions are Serializable so it is declared anyway
+        private static final long serialVersionUID = 1L;
+        private int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private static void requireGet(HttpExchange exchange) {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            throw new HttpError(405, "Use GET for " + exchange.getRequestURI().getPath());
+        }
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new HttpError(400, "Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    private static float number(Map<String, String> params, String name) {
+        float number;
+        try {
+            number = Float.parseFloat(required(params, name));
+        }
+        catch (NumberFormatException e) {
+            throw new HttpError(400, "Parameter " + name + " must be a number");
+        }
+        // parseFloat also accepts "NaN" and "Infinity" (and numbers too big for a float become Infinity)
+        if (Float.isNaN(number) || Float.isInfinite(number)) {
+            throw new HttpError(400, "Parameter " + name + " must be a number");
+        }
+        return number;
+    }
+
+    /*
+     * Returns the query string parameters, plus the form parameters of a POST
+     */
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        addParams(exchange.getRequestURI().getRawQuery(), params);
+        if (exchange.getRequestMethod().equals("POST")) {
+            InputStream in = exchange.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+            }
+            addParams(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static void addParams(String encoded, Map<String, String> params) throws UnsupportedEncodingException {
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        for (String pair : encoded.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, CharSequence json) throws IOException {
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        sendJson(exchange, status, new StringBuilder("{\"error\":").append(quote(message)).append('}'));
+    }
+
+    /*
+     * Sends the headers of a plain text response of unknown length (it is sent in chunks)
+     * and returns a Writer for its body, so reports are streamed as they are written
+     */
+    private static Writer startText(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+    }
+
+    private static StringBuilder stringArray(List<String> values) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(quote(values.get(i)));
+        }
+        return json.append(']');
+    }
+
+    private static StringBuilder memberArray(List<Member> members) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < members.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(memberObject(members.get(i)));
+        }
+        return json.append(']');
+    }
+
+    private static StringBuilder memberObject(Member member) {
+        StringBuilder json = new StringBuilder("{\"type\":").append(quote(member.getClass().getName()))
+                .append(",\"email\":").append(quote(member.getEmail()))
+                .append(",\"name\":").append(quote(member.getName()))
+                .append(",\"address\":").append(quote(member.getAddress()))
+                .append(",\"gender\":").append(quote(member.getGender()))
+                .append(",\"height\":").append(member.getHeight())
+                .append(",\"startWeight\":").append(member.getStartWeight())
+                .append(",\"chosenPackage\":").append(quote(member.getChosenPackage()));
+        if (member instanceof StudentMember) {
+            StudentMember student = (StudentMember) member;
+            json.append(",\"studentid\":").append(quote(student.getStudentid()))
+                    .append(",\"collegeName\":").append(quote(student.getCollegeName()));
+        }
+        return json.append('}');
+    }
+
+    private static StringBuilder trainerObject(Trainer trainer) {
+        return new StringBuilder("{\"email\":").append(quote(trainer.getEmail()))
+                .append(",\"name\":").append(quote(trainer.getName()))
+                .append(",\"address\":").append(quote(trainer.getAddress()))
+                .append(",\"gender\":").append(quote(trainer.getGender()))
+                .append(",\"speciality\":").append(quote(trainer.getSpeciality())).append('}');
+    }
+
+    /*
+     * Returns the String as a JSON string (in quotes, with special characters escaped)
+     */
+    static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            }
+            else if (c == '\n') {
+                quoted.append("\\n");
+            }
+            else if (c == '\r') {
+                quoted.append("\\r");
+            }
+            else if (c == '\t') {
+                quoted.append("\\t");
+            }
+            else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
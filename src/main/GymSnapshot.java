@@ -0,0 +1,672 @@
+/*
+ * Reads and writes a compact binary snapshot of the gym's members and trainers
+ * Used as an alternative to the XML files written by GymAPI's store method
+ *
+ * File layout (all numbers big endian):
+ *   int    magic ("GYMS")
+ *   short  version
+ *   long   generation (from version 3)
+ *   int    number of persons
+ *   then for each person a one byte type tag followed by its fields
+ * Strings are stored as a length (varint, 0 = null, otherwise length + 1)
+ * followed by UTF-8 bytes. Assessment measurements are stored as 4 byte floats
+ * Version 1 stored assessment dates as strings, version 2 stores them as an
+ * int epoch day (see AssessmentDate). Version 3 adds the generation, a random number
+ * picked each time a snapshot is written, so an archive written from the snapshot can
+ * tell whether it has been written again since (see generation). All versions can be read
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class GymSnapshot {
+
+    public static final int MAGIC = 0x47594D53;
+    public static final short VERSION = 3;
+
+    // Type tags written before each person
+    public static final byte MEMBER = 1;
+    public static final byte PREMIUM_MEMBER = 2;
+    public static final byte STUDENT_MEMBER = 3;
+    public static final byte TRAINER = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Strings longer than this are read a piece at a time (see readString)
+    private static final int STRING_CHUNK = 8 * 1024;
+    // Picks each snapshot's generation, random rather than counted so that a snapshot deleted
+    // and written again from scratch can't get the number the old one had
+    private static final SecureRandom GENERATIONS = new SecureRandom();
+
+    /*
+     * Converts an existing members and trainers XML file pair into a snapshot file
+     * Usage: java GymSnapshot members.xml trainers.xml gym.dat
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: java GymSnapshot <members.xml> <trainers.xml> <snapshot file>");
+            System.exit(1);
+        }
+        for (String skipped : convertXml(args[0], args[1], args[2])) {
+            System.err.println(skipped);
+        }
+        System.out.println("Converted " + args[0] + " and " + args[1] + " to " + args[2]);
+    }
+
+    /*
+     * Reads the XML files written by GymAPI's store method and
+     * writes their contents to a snapshot file
+     * Returns a line for each assessment skipped because its date couldn't be parsed
+     */
+    public static List<String> convertXml(String membersFile, String trainersFile, String snapshotFile) throws Exception {
+        ArrayList<Member> members = new ArrayList<Member>();
+        ArrayList<Trainer> trainers = new ArrayList<Trainer>();
+        List<String> skipped = new ArrayList<String>();
+        skipped.addAll(readXml(membersFile, members, trainers));
+        skipped.addAll(readXml(trainersFile, members, trainers));
+        write(snapshotFile, members, trainers);
+        return skipped;
+    }
+
+    private static List<String> readXml(String fileName, ArrayList<Member> members, ArrayList<Trainer> trainers) throws Exception {
+        PersonXmlReader in = new PersonXmlReader(new BufferedReader(new FileReader(fileName)));
+        try {
+            Person person;
+            while ((person = in.next()) != null) {
+                if (person instanceof Member) {
+                    members.add((Member) person);
+                }
+                else if (person instanceof Trainer) {
+                    trainers.add((Trainer) person);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        return in.skippedAssessments();
+    }
+
+    /*
+     * Writes every member followed by every trainer to the snapshot file
+     */
+    public static void write(String fileName, ArrayList<Member> members, ArrayList<Trainer> trainers) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(fileName), BUFFER_SIZE));
+        try {
+            writePersons(out, members, trainers);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /*
+     * Replaces the contents of bytes with the person in the current encoding
+     * Used to take a copy of a person quickly (see decodePerson), so the person's
+     * lock is only held while they are written into memory
+     */
+    static void encodePerson(ByteArrayOutputStream bytes, Person person) throws IOException {
+        bytes.reset();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writePerson(out, person, VERSION);
+        out.flush();
+    }
+
+    /*
+     * Returns a new person read from bytes filled by encodePerson, sharing each
+     * distinct comment through the dictionary passed as a parameter
+     */
+    static Person decodePerson(ByteArrayOutputStream bytes, Map<String, String> comments) throws IOException {
+        return readPerson(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), VERSION, comments);
+    }
+
+    private static void writePersons(DataOutputStream out, List<Member> members, List<Trainer> trainers) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        // Never negative, so -1 can stand for no generation
+        out.writeLong(GENERATIONS.nextLong() & Long.MAX_VALUE);
+        out.writeInt(members.size() + trainers.size());
+        for (Member member : members) {
+            writePerson(out, member, VERSION);
+        }
+        for (Trainer trainer : trainers) {
+            writePerson(out, trainer, VERSION);
+        }
+    }
+
+    /*
+     * Writes the snapshot to a temporary file, forces it to disk and then renames it
+     * over the old snapshot, so a crash never leaves a half written snapshot behind
+     */
+    public static void writeAtomically(String fileName, ArrayList<Member> members, ArrayList<Trainer> trainers) throws IOException {
+        File tempFile = new File(fileName + ".tmp");
+        write(tempFile.getPath(), members, trainers);
+        replaceAtomically(tempFile, new File(fileName));
+    }
+
+    /*
+     * Forces the temporary file to disk and then renames it over the file,
+     * so the file is either the old version or the complete new one
+     */
+    static void replaceAtomically(File tempFile, File file) throws IOException {
+        // Make sure the new file is on disk before it replaces the old one
+        RandomAccessFile written = new RandomAccessFile(tempFile, "rw");
+        try {
+            written.getFD().sync();
+        }
+        finally {
+            written.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Reads every person in the snapshot file, adding members to the
+     * members list and trainers to the trainers list
+     */
+    public static void read(String fileName, ArrayList<Member> members, ArrayList<Trainer> trainers) throws IOException {
+        read(fileName, members, trainers, new ArrayList<String>());
+    }
+
+    /*
+     * Reads the snapshot as above, adding a line to skipped for each assessment left out
+     * because its date couldn't be parsed (only possible in a version 1 snapshot, which
+     * stored dates as strings without checking them)
+     */
+    static void read(String fileName, ArrayList<Member> members, ArrayList<Trainer> trainers,
+                     List<String> skipped) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(fileName), BUFFER_SIZE));
+        try {
+            readPersons(in, fileName, members, trainers, null, null, skipped);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Reads every person in the snapshot file like read, but leaves each member's
+     * assessments in the file until they are first needed (see AssessmentHistory)
+     * Returns the open file the assessments are read from, which must be closed once
+     * the members are no longer used
+     */
+    public static AssessmentHistory.Source readLazily(String fileName, ArrayList<Member> members,
+                                                      ArrayList<Trainer> trainers) throws IOException {
+        return readLazily(fileName, members, trainers, new ArrayList<String>());
+    }
+
+    /*
+     * Reads the snapshot lazily, reporting skipped assessments like read
+     */
+    static AssessmentHistory.Source readLazily(String fileName, ArrayList<Member> members,
+                                               ArrayList<Trainer> trainers, List<String> skipped) throws IOException {
+        AssessmentHistory.Source source = new AssessmentHistory.Source(fileName);
+        PositionInputStream position = new PositionInputStream(
+                new BufferedInputStream(new FileInputStream(fileName), BUFFER_SIZE));
+        DataInputStream in = new DataInputStream(position);
+        try {
+            readPersons(in, fileName, members, trainers, source, position, skipped);
+        }
+        catch (IOException e) {
+            source.close();
+            throw e;
+        }
+        finally {
+            in.close();
+        }
+        return source;
+    }
+
+    /*
+     * Returns the generation of the snapshot file, or -1 if it was written before snapshots
+     * had one (version 1 or 2)
+     */
+    static long generation(String fileName) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(fileName + " is not a gym snapshot");
+            }
+            short version = in.readShort();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version: " + version);
+            }
+            return version >= 3 ? in.readLong() : -1;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static void readPersons(DataInputStream in, String fileName, ArrayList<Member> members,
+                                    ArrayList<Trainer> trainers, AssessmentHistory.Source source,
+                                    PositionInputStream position, List<String> skipped) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(fileName + " is not a gym snapshot");
+        }
+        short version = in.readShort();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        if (version >= 3) {
+            // Only needed by generation
+            in.readLong();
+        }
+        int count = in.readInt();
+        // Comments are often repeated (eg "Good progress"), so each distinct one is only kept once
+        HashMap<String, String> comments = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            Person person = readPerson(in, version, comments, source, position, skipped);
+            if (person instanceof Member) {
+                members.add((Member) person);
+            }
+            else {
+                trainers.add((Trainer) person);
+            }
+        }
+    }
+
+    /*
+     * Writes a type tag followed by the fields of the person
+     * using the encoding of the snapshot version passed as a parameter
+     */
+    static void writePerson(DataOutputStream out, Person person, int version) throws IOException {
+        if (person instanceof StudentMember) {
+            out.writeByte(STUDENT_MEMBER);
+        }
+        else if (person instanceof PremiumMember) {
+            out.writeByte(PREMIUM_MEMBER);
+        }
+        else if (person instanceof Member) {
+            out.writeByte(MEMBER);
+        }
+        else if (person instanceof Trainer) {
+            out.writeByte(TRAINER);
+        }
+        else {
+            throw new IOException("Unknown person type: " + person.getClass().getName());
+        }
+        writeString(out, person.getEmail());
+        writeString(out, person.getName());
+        writeString(out, person.getAddress());
+        writeString(out, person.getGender());
+
+        if (person instanceof Member) {
+            Member member = (Member) person;
+            out.writeFloat(member.getHeight());
+            out.writeFloat(member.getStartWeight());
+            writeString(out, member.getChosenPackage());
+            AssessmentHistory history = member.unloadedHistory();
+            // Versions 2 and 3 only differ in the header, so their assessments are stored the same way
+            if (history != null && (history.getVersion() >= 2) == (version >= 2) && !history.isLatestChanged()) {
+                // The assessments haven't been read or changed since they were loaded lazily,
+                // so copy them as they are instead of reading them all into memory
+                out.write(history.readBytes());
+            }
+            else {
+                // Read straight from the columns, oldest first
+                AssessmentMap assessments = member.readAssessments();
+                out.writeInt(assessments.size());
+                for (int i = 0; i < assessments.size(); i++) {
+                    if (version >= 2) {
+                        out.writeInt(assessments.epochDayAt(i));
+                    }
+                    else {
+                        writeString(out, AssessmentDate.shared(assessments.epochDayAt(i)));
+                    }
+                    out.writeFloat(assessments.weightAt(i));
+                    out.writeFloat(assessments.thighAt(i));
+                    out.writeFloat(assessments.waistAt(i));
+                    writeString(out, assessments.commentAt(i));
+                }
+            }
+            if (member instanceof StudentMember) {
+                writeString(out, ((StudentMember) member).getStudentid());
+                writeString(out, ((StudentMember) member).getCollegeName());
+            }
+        }
+        else {
+            writeString(out, ((Trainer) person).getSpeciality());
+        }
+    }
+
+    /*
+     * Reads a type tag and creates a person of that type from the fields that follow
+     * Dates stored as strings by version 1 are converted when they are added to the member
+     */
+    static Person readPerson(DataInputStream in, int version) throws IOException {
+        return readPerson(in, version, null, null, null, null);
+    }
+
+    /*
+     * Reads a person as above, sharing each distinct comment through the dictionary
+     * passed as a parameter (see AssessmentMap.shared)
+     */
+    static Person readPerson(DataInputStream in, int version, Map<String, String> comments) throws IOException {
+        return readPerson(in, version, comments, null, null, null);
+    }
+
+    /*
+     * Reads a person as above, adding a line to skipped for each assessment whose date
+     * couldn't be parsed (see read)
+     */
+    static Person readPerson(DataInputStream in, int version, Map<String, String> comments,
+                             List<String> skipped) throws IOException {
+        return readPerson(in, version, comments, null, null, skipped);
+    }
+
+    /*
+     * Reads a person as above, but if a source is passed as a parameter, a member's assessments
+     * are skipped over and left in the source (at the position counted by position) until needed
+     */
+    private static Person readPerson(DataInputStream in, int version, Map<String, String> comments,
+                                     AssessmentHistory.Source source, PositionInputStream position,
+                                     List<String> skipped) throws IOException {
+        byte type = in.readByte();
+        String email = readString(in);
+        String name = readString(in);
+        String address = readString(in);
+        String gender = readString(in);
+
+        if (type == TRAINER) {
+            return new Trainer(email, name, address, gender, readString(in));
+        }
+
+        float height = in.readFloat();
+        float startWeight = in.readFloat();
+        String chosenPackage = readString(in);
+        AssessmentMap assessments = null;
+        AssessmentHistory history = null;
+        if (source == null) {
+            assessments = readAssessments(in, version, comments, email, skipped);
+        }
+        else {
+            long start = position.getPosition();
+            Assessment latest = skipAssessments(in, version, email, skipped);
+            history = new AssessmentHistory(source, start, (int) (position.getPosition() - start),
+                    (short) version, latest);
+        }
+
+        Member member;
+        if (type == STUDENT_MEMBER) {
+            String studentid = readString(in);
+            String collegeName = readString(in);
+            member = new StudentMember(email, name, address, gender, height, startWeight, chosenPackage,
+                    studentid, collegeName);
+        }
+        else if (type == PREMIUM_MEMBER) {
+            member = new PremiumMember(email, name, address, gender, height, startWeight, chosenPackage);
+        }
+        else if (type == MEMBER) {
+            member = new Member(email, name, address, gender, height, startWeight, chosenPackage);
+        }
+        else {
+            throw new IOException("Unknown person type tag: " + type);
+        }
+        if (history != null) {
+            member.setHistory(history);
+        }
+        else {
+            member.setAssessments(assessments);
+        }
+        return member;
+    }
+
+    /*
+     * Reads the number of assessments followed by each assessment into a new map
+     * The values go straight into the map's columns, without creating an Assessment for each
+     */
+    static AssessmentMap readAssessments(DataInputStream in, int version, Map<String, String> comments)
+            throws IOException {
+        return readAssessments(in, version, comments, null, null);
+    }
+
+    /*
+     * Reads the assessments as above, adding a line to skipped (if it isn't null) for each
+     * assessment of the member with the email passed as a parameter whose date couldn't be parsed
+     */
+    private static AssessmentMap readAssessments(DataInputStream in, int version, Map<String, String> comments,
+                                                 String email, List<String> skipped) throws IOException {
+        int count = readCount(in);
+        // Grown as the assessments are read, so a damaged count can't allocate more than the file holds
+        AssessmentMap assessments = new AssessmentMap(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            int day;
+            if (version >= 2) {
+                day = in.readInt();
+            }
+            else {
+                day = readDate(in, email, skipped);
+                if (day == AssessmentDate.INVALID) {
+                    continue;
+                }
+            }
+            assessments.putValues(day, in.readFloat(), in.readFloat(), in.readFloat(),
+                    AssessmentMap.shared(comments, readString(in)));
+        }
+        return assessments;
+    }
+
+    /*
+     * Skips over the assessments written by writePerson, returning only the latest one
+     * (or null if there are none). Only assessments later than every one before them are
+     * read, the rest are skipped without creating any objects
+     */
+    private static Assessment skipAssessments(DataInputStream in, int version, String email,
+                                              List<String> skipped) throws IOException {
+        int count = readCount(in);
+        Assessment latest = null;
+        int latestDay = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int day;
+            if (version >= 2) {
+                day = in.readInt();
+            }
+            else {
+                day = readDate(in, email, skipped);
+                if (day == AssessmentDate.INVALID) {
+                    continue;
+                }
+            }
+            if (latest == null || day > latestDay) {
+                latestDay = day;
+                latest = new Assessment(in.readFloat(), in.readFloat(), in.readFloat(), readString(in));
+            }
+            else {
+                // Skip the weight, thigh and waist, then the comment
+                skipFully(in, 12);
+                skipString(in);
+            }
+        }
+        return latest;
+    }
+
+    /*
+     * Reads a date stored as a string by version 1, returning its epoch day
+     * Version 1 didn't check the dates, so if one can't be parsed the rest of its assessment
+     * is skipped, a line is added to skipped (if it isn't null) and AssessmentDate.INVALID is
+     * returned, rather than the whole file failing to load
+     */
+    private static int readDate(DataInputStream in, String email, List<String> skipped) throws IOException {
+        String date = readString(in);
+        int day = AssessmentDate.tryParse(date);
+        if (day == AssessmentDate.INVALID) {
+            skipFully(in, 12);
+            skipString(in);
+            if (skipped != null) {
+                skipped.add(PersonXmlReader.skippedAssessment(email, date));
+            }
+        }
+        return day;
+    }
+
+    private static void skipString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new IOException("Damaged string length: " + length);
+        }
+        if (length > 1) {
+            skipFully(in, length - 1);
+        }
+    }
+
+    /*
+     * Reads a number of assessments, which can't be negative
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Damaged assessment count: " + count);
+        }
+        return count;
+    }
+
+    private static void skipFully(DataInputStream in, int bytes) throws IOException {
+        while (bytes > 0) {
+            int skipped = in.skipBytes(bytes);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /*
+     * Counts the bytes read through it, so the position of each member's assessments is known
+     */
+    private static class PositionInputStream extends FilterInputStream {
+        private long position;
+
+        PositionInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long bytes) throws IOException {
+            long skipped = super.skip(bytes);
+            position += skipped;
+            return skipped;
+        }
+    }
+
+    /*
+     * Writes a string as a varint length followed by its UTF-8 bytes
+     * A length of 0 means null, otherwise the length is stored plus one
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /*
+     * Reads a string written by writeString
+     * The length comes from the file, so a damaged one could be anything: a negative length
+     * throws an IOException, and a long string is read a piece at a time rather than
+     * allocating its whole length first, so a length past the end of the file throws an
+     * EOFException instead of running out of memory
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("Damaged string length: " + length);
+        }
+        int remaining = length - 1;
+        if (remaining <= STRING_CHUNK) {
+            byte[] bytes = new byte[remaining];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(STRING_CHUNK * 2);
+        byte[] chunk = new byte[STRING_CHUNK];
+        while (remaining > 0) {
+            int read = Math.min(chunk.length, remaining);
+            in.readFully(chunk, 0, read);
+            bytes.write(chunk, 0, read);
+            remaining -= read;
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Writes a non negative int using 7 bits per byte
+     * Short strings (the usual case) only need a single length byte
+     */
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        while (shift < 32) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Statistics of the gym's members grouped by package, by college (student members only)
+ * and by gender (see GymAPI.statistics)
+ * For each group:
+ *     members          number of members in the group
+ *     BMI categories   number of members in each BMI category, based on their latest assessment
+ *     weight change    average change in weight from a member's first assessment to their latest
+ *     waist change     average change in waist from the first assessment to the latest
+ * Members with no assessments are counted but aren't in any BMI category, and the changes
+ * are averaged over the members with at least two assessments
+ *
+ * The statistics are worked out in one pass over the members. Large gyms are split between
+ * the threads of the common fork-join pool like MemberScan: each task adds its range of members
+ * to a GymStats of its own, and the halves are merged as the tasks are joined, so threads
+ * never share a count
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class GymStats {
+
+    // Group of the members with no package
+    public static final String NO_PACKAGE = "No package";
+
+    /*
+     * The statistics of one group of members
+     */
+    public static class Group {
+        private int members;
+        private int[] categoryCounts = new int[BMICategory.values().length];
+        // Members with at least two assessments, and the total of their changes
+        private int membersWithChanges;
+        private double weightChange;
+        private double waistChange;
+
+        public int getMembers() {
+            return members;
+        }
+
+        /*
+         * Returns the number of members in the group whose latest assessment is in the category
+         */
+        public int getCategoryCount(BMICategory category) {
+            return categoryCounts[category.ordinal()];
+        }
+
+        /*
+         * Returns the number of members in the group with at least two assessments
+         */
+        public int getMembersWithChanges() {
+            return membersWithChanges;
+        }
+
+        /*
+         * Returns the average change in weight from the first assessment to the latest,
+         * or NaN if no member in the group has two assessments
+         */
+        public double getAverageWeightChange() {
+            return membersWithChanges == 0 ? Double.NaN : weightChange / membersWithChanges;
+        }
+
+        /*
+         * Returns the average change in waist from the first assessment to the latest,
+         * or NaN if no member in the group has two assessments
+         */
+        public double getAverageWaistChange() {
+            return membersWithChanges == 0 ? Double.NaN : waistChange / membersWithChanges;
+        }
+
+        private void add(Progress progress, int category) {
+            members++;
+            if (category >= 0) {
+                categoryCounts[category]++;
+            }
+            if (progress.count >= 2) {
+                membersWithChanges++;
+                weightChange += progress.latestWeight - progress.firstWeight;
+                waistChange += progress.latestWaist - progress.firstWaist;
+            }
+        }
+
+        private void merge(Group other) {
+            members += other.members;
+            for (int i = 0; i < categoryCounts.length; i++) {
+                categoryCounts[i] += other.categoryCounts[i];
+            }
+            membersWithChanges += other.membersWithChanges;
+            weightChange += other.weightChange;
+            waistChange += other.waistChange;
+        }
+    }
+
+    // Smallest range a task will split, so there is enough work in each to be worth a thread
+    private static final int MIN_SPLIT = 512;
+
+    // Groups sorted by name, so the report always lists them in the same order
+    private TreeMap<String, Group> byPackage = new TreeMap<String, Group>();
+    private TreeMap<String, Group> byCollege = new TreeMap<String, Group>();
+    private TreeMap<String, Group> byGender = new TreeMap<String, Group>();
+
+    /*
+     * Works out the statistics of the members passed as a parameter
+     * The list is split between threads if it is longer than the threshold
+     * The members must not change until it returns (GymAPI holds their locks)
+     */
+    public static GymStats of(List<Member> members, int threshold) {
+        Member[] memberArray = members.toArray(new Member[0]);
+        if (memberArray.length <= threshold) {
+            return ofRange(memberArray, 0, memberArray.length);
+        }
+        // Split into a few tasks per thread, so a thread that finishes early can take more work
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int splitSize = Math.max(MIN_SPLIT, memberArray.length / (pool.getParallelism() * 4));
+        return pool.invoke(new Task(memberArray, 0, memberArray.length, splitSize));
+    }
+
+    /*
+     * Returns the groups by package (members with no package are under NO_PACKAGE)
+     */
+    public Map<String, Group> getByPackage() {
+        return Collections.unmodifiableMap(byPackage);
+    }
+
+    /*
+     * Returns the groups by college, which only student members are in
+     */
+    public Map<String, Group> getByCollege() {
+        return Collections.unmodifiableMap(byCollege);
+    }
+
+    /*
+     * Returns the groups by gender (M, F or Unspecified)
+     */
+    public Map<String, Group> getByGender() {
+        return Collections.unmodifiableMap(byGender);
+    }
+
+    /*
+     * Returns a String with the statistics of each group, for the trainer menu
+     */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        appendGroups(report, "By package", byPackage);
+        appendGroups(report, "By college", byCollege);
+        appendGroups(report, "By gender", byGender);
+        return report.toString();
+    }
+
+    private static void appendGroups(StringBuilder report, String heading, TreeMap<String, Group> groups) {
+        report.append(heading).append('\n');
+        if (groups.isEmpty()) {
+            report.append("  No members\n");
+        }
+        for (Map.Entry<String, Group> entry : groups.entrySet()) {
+            Group group = entry.getValue();
+            report.append("  ").append(entry.getKey()).append(": ").append(group.getMembers()).append(" members");
+            if (group.getMembersWithChanges() > 0) {
+                report.append(", average weight change ").append(GymUtility.round(group.getAverageWeightChange(), 1))
+                        .append(" kg, average waist change ").append(GymUtility.round(group.getAverageWaistChange(), 1));
+            }
+            report.append('\n');
+            report.append("    BMI:");
+            for (BMICategory category : BMICategory.values()) {
+                report.append(' ').append(category.getLabel()).append(' ').append(group.getCategoryCount(category));
+                if (category.ordinal() < BMICategory.values().length - 1) {
+                    report.append(',');
+                }
+            }
+            report.append('\n');
+        }
+    }
+
+    /*
+     * A member's number of assessments and the measurements of their first and latest assessment
+     */
+    private static class Progress {
+        private int count;
+        private float firstWeight;
+        private float firstWaist;
+        private float latestWeight;
+        private float latestWaist;
+    }
+
+    /*
+     * Works out the statistics of a range of the members on the calling thread
+     */
+    private static GymStats ofRange(Member[] members, int from, int to) {
+        int length = to - from;
+        Progress[] progress = new Progress[length];
+        // Heights and latest weights of the members with assessments, for working out their
+        // BMI categories all at once (see GymUtility.calculateBMI)
+        float[] heights = new float[length];
+        float[] weights = new float[length];
+        int assessed = 0;
+        for (int i = 0; i < length; i++) {
+            progress[i] = progressOf(members[from + i]);
+            if (progress[i].count > 0) {
+                heights[assessed] = members[from + i].getHeight();
+                weights[assessed] = progress[i].latestWeight;
+                assessed++;
+            }
+        }
+        float[] assessedHeights = heights;
+        float[] assessedWeights = weights;
+        if (assessed < length) {
+            assessedHeights = Arrays.copyOf(heights, assessed);
+            assessedWeights = Arrays.copyOf(weights, assessed);
+        }
+        byte[] categories = new byte[assessed];
+        GymUtility.calculateBMI(assessedHeights, assessedWeights, new double[assessed], categories);
+
+        GymStats stats = new GymStats();
+        int next = 0;
+        for (int i = 0; i < length; i++) {
+            int category = progress[i].count > 0 ? categories[next++] : -1;
+            stats.add(members[from + i], progress[i], category);
+        }
+        return stats;
+    }
+
+    /*
+     * Reads the member's first and latest assessment
+     * Members loaded lazily have their assessments read without keeping them (see Member.readAssessments)
+     */
+    private static Progress progressOf(Member member) {
+        AssessmentMap assessments;
+        try {
+            assessments = member.readAssessments();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Progress progress = new Progress();
+        progress.count = assessments.size();
+        if (progress.count > 0) {
+            int latest = progress.count - 1;
+            progress.firstWeight = assessments.weightAt(0);
+            progress.firstWaist = assessments.waistAt(0);
+            progress.latestWeight = assessments.weightAt(latest);
+            progress.latestWaist = assessments.waistAt(latest);
+        }
+        return progress;
+    }
+
+    private void add(Member member, Progress progress, int category) {
+        String chosenPackage = member.getChosenPackage();
+        if (chosenPackage == null || chosenPackage.isEmpty()) {
+            chosenPackage = NO_PACKAGE;
+        }
+        group(byPackage, chosenPackage).add(progress, category);
+        if (member instanceof StudentMember && ((StudentMember) member).getCollegeName() != null) {
+            group(byCollege, ((StudentMember) member).getCollegeName()).add(progress, category);
+        }
+        group(byGender, member.getGender()).add(progress, category);
+    }
+
+    private static Group group(TreeMap<String, Group> groups, String name) {
+        Group group = groups.get(name);
+        if (group == null) {
+            group = new Group();
+            groups.put(name, group);
+        }
+        return group;
+    }
+
+    /*
+     * Adds the statistics of another range of members to these
+     */
+    private void merge(GymStats other) {
+        merge(byPackage, other.byPackage);
+        merge(byCollege, other.byCollege);
+        merge(byGender, other.byGender);
+    }
+
+    private static void merge(TreeMap<String, Group> groups, TreeMap<String, Group> otherGroups) {
+        for (Map.Entry<String, Group> entry : otherGroups.entrySet()) {
+            group(groups, entry.getKey()).merge(entry.getValue());
+        }
+    }
+
+    /*
+     * Works out the statistics of a range of the members, or splits it in two and works out both
+     * halves in parallel
+     */
+    private static class Task extends RecursiveTask<GymStats> {
+        // Never serialized, but RecursiveTask is Serializable (as with MemberScan)
+        private static final long serialVersionUID = 1L;
+
+        private Member[] members;
+        private int from;
+        private int to;
+        private int splitSize;
+
+        private Task(Member[] members, int from, int to, int splitSize) {
+            this.members = members;
+            this.from = from;
+            this.to = to;
+            this.splitSize = splitSize;
+        }
+
+        @Override
+        protected GymStats compute() {
+            if (to - from <= splitSize) {
+                return ofRange(members, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            Task left = new Task(members, from, middle, splitSize);
+            Task right = new Task(members, middle, to, splitSize);
+            // Work out the left half on another thread while this one works out the right half
+            left.fork();
+            GymStats rightStats = right.compute();
+            GymStats stats = left.join();
+            stats.merge(rightStats);
+            return stats;
+        }
+    }
+}
@@ -17,62 +17,108 @@ public class GymUtility {
     }
 
     /*
-     * Returns the category that the BMI value belongs to
+     * Works out the BMI and BMI category (its position in BMICategory) of many members at once,
+     * from their heights and weights, giving exactly the same results as calculateBMI and
+     * bmiCategory would for each one
+     * The loops only use arrays of numbers, which HotSpot can compile to vector instructions
+     * (the tree targets Java 8, so the incubating Vector API isn't used)
+     * Throws an IllegalArgumentException if the arrays are different lengths
+     */
+    public static void calculateBMI(float[] heights, float[] weights, double[] bmi, byte[] categories) {
+        int length = heights.length;
+        if (weights.length != length || bmi.length != length || categories.length != length) {
+            throw new IllegalArgumentException("The arrays must all be the same length");
+        }
+        for (int i = 0; i < length; i++) {
+            // Divided as floats, as calculateBMI does
+            bmi[i] = weights[i] / (heights[i] * heights[i]);
+        }
+        for (int i = 0; i < length; i++) {
+            double value = bmi[i];
+            // Count the category boundaries the BMI is on or above, rather than branching
+            int category = (value >= 16 ? 1 : 0) + (value >= 18.5 ? 1 : 0) + (value >= 25 ? 1 : 0)
+                    + (value >= 30 ? 1 : 0) + (value >= 35 ? 1 : 0);
+            // NaN isn't on or above anything, but bmiCategory puts it in the last category
+            categories[i] = (byte) (value != value ? SEVERELY_OBESE : category);
+        }
+    }
+
+    private static final int SEVERELY_OBESE = BMICategory.SEVERELY_OBESE.ordinal();
+
+    /*
+     * Returns the name of the category that the BMI value belongs to
      */
     public static String determineBMICategory(double bmiValue) {
+        return bmiCategory(bmiValue).getLabel();
+    }
+
+    /*
+     * Returns the category that the BMI value belongs to
+     */
+    public static BMICategory bmiCategory(double bmiValue) {
         if (bmiValue < 16) {
-            return "SEVERELY UNDERWEIGHT";
+            return BMICategory.SEVERELY_UNDERWEIGHT;
         }
         else if (bmiValue >= 16 && bmiValue < 18.5) {
-            return "UNDERWEIGHT";
+            return BMICategory.UNDERWEIGHT;
         }
         else if (bmiValue >= 18.5 && bmiValue < 25) {
-            return "NORMAL";
+            return BMICategory.NORMAL;
         }
         else if (bmiValue >= 25 && bmiValue < 30) {
-            return "OVERWEIGHT";
+            return BMICategory.OVERWEIGHT;
         }
         else if (bmiValue >= 30 && bmiValue < 35) {
-            return "MODERATELY OBESE";
+            return BMICategory.MODERATELY_OBESE;
         }
         else {
-            return "SEVERELY OBESE";
+            return BMICategory.SEVERELY_OBESE;
         }
     }
 
     /*
      * Returns a boolean to indicate if the member has an
      * ideal body weight based on the Devine formula
+     * The member's ideal weight is worked out when their height or gender changes
+     * (see idealBodyWeight), so this is only a comparison
      */
     public static boolean isIdealBodyWeight(Member member, Assessment assessment) {
-        // Convert member's height in meters to inches
-        float heightInInches = metersToInches(member.getHeight());
+        return isIdealBodyWeight(member.getIdealBodyWeight(), assessment.getWeight());
+    }
+
+    /*
+     * Returns a boolean to indicate if the actual weight is the ideal weight
+     */
+    public static boolean isIdealBodyWeight(float idealWeight, float actualWeight) {
+        // Allow for +/- 0.2 margin of error
+        return actualWeight > idealWeight - 0.2f && actualWeight < idealWeight + 0.2f;
+    }
 
-        // Ideal weight starts at 50kg for males and 45kg for females
+    /*
+     * Returns the ideal body weight for the gender ("M" for males) and height
+     * based on the Devine formula
+     */
+    public static float idealBodyWeight(String gender, float height) {
+        // Convert height in meters to inches
+        float heightInInches = metersToInches(height);
+
+        // Ideal weight starts at 50kg for males and 45.5kg for females
         float idealWeight;
-        float actualWeight = assessment.getWeight();
-        // If member is male
-        if (member.getGender().equals("M")) {
+        // If male
+        if ("M".equals(gender)) {
             idealWeight = 50.0f;
         }
-        // Member is either female or gender is not specified
+        // Either female or gender is not specified
         else {
             idealWeight = 45.5f;
         }
-        // If member is over 5ft tall
+        // If over 5ft tall
         if (heightInInches > 60) {
             float inchesOverFiveFeet = heightInInches - 60;
             // Add 2.3kg for ever inch over 5ft
             idealWeight += inchesOverFiveFeet * 2.3f;
         }
-
-        // Allow for +/- 0.2 margin of error
-        if (actualWeight > idealWeight - 0.2f && actualWeight < idealWeight + 0.2f) {
-            return true;
-        }
-        else {
-            return false;
-        }
+        return idealWeight;
     }
 
     /*
@@ -139,8 +185,53 @@ public class GymUtility {
         if (places < 0) {
             throw new IllegalArgumentException();
         }
+        // Values that fit are rounded without creating a BigDecimal, with the same result
+        if (places < POWERS_OF_TEN.length) {
+            double magnitude = Math.abs(value) * POWERS_OF_TEN[places];
+            if (magnitude < TWO_TO_THE_52) {
+                double rounded = roundHalfUp(Math.abs(value), POWERS_OF_TEN[places]) / POWERS_OF_TEN[places];
+                // BigDecimal has no negative zero
+                return value < 0 && rounded != 0 ? -rounded : rounded;
+            }
+        }
+        // Very large values, NaN and infinity (which BigDecimal rejects)
         BigDecimal bd = new BigDecimal(value);
         bd = bd.setScale(places, RoundingMode.HALF_UP);
         return bd.doubleValue();
     }
+
+    // Powers of ten that a double holds exactly
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    // Doubles at or above this have no fraction
+    private static final double TWO_TO_THE_52 = 4503599627370496.0;
+    // Splits a double into two halves whose products are exact (Dekker's method)
+    private static final double SPLITTER = 134217729.0;
+
+    /*
+     * Returns value * scale rounded to a whole number, with halves rounded up, for a value
+     * that isn't negative. value * scale is usually not exact as a double (eg 1.45 is stored as
+     * 1.4499999...), so the error in the multiplication is worked out as well, and the number
+     * is rounded as if the product were exact, as BigDecimal does
+     */
+    private static double roundHalfUp(double value, double scale) {
+        double product = value * scale;
+        // error = value * scale - product exactly, using Dekker's two-product
+        double valueHigh = SPLITTER * value - (SPLITTER * value - value);
+        double valueLow = value - valueHigh;
+        double scaleHigh = SPLITTER * scale - (SPLITTER * scale - scale);
+        double scaleLow = scale - scaleHigh;
+        double error = ((valueHigh * scaleHigh - product) + valueHigh * scaleLow + valueLow * scaleHigh)
+                + valueLow * scaleLow;
+
+        double whole = Math.floor(product);
+        // The fraction is exact, so this compares the exact fraction (plus the error) with a half
+        // (a product just under a whole number has a negative fraction, and rounds to it)
+        if ((product - whole) - 0.5 >= -error) {
+            return whole + 1;
+        }
+        return whole;
+    }
 }
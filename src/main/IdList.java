@@ -0,0 +1,59 @@
+/*
+ * A growable, sorted list of int ids
+ * Used by the gym's indexes, where an id is a person's position in the members or trainers list,
+ * so keeping the ids sorted keeps results in the same order as the list
+ */
+
+import java.util.Arrays;
+
+class IdList {
+    int[] ids = new int[4];
+    int size;
+
+    /*
+     * Adds an id that is larger than every id already in the list
+     */
+    void append(int id) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        ids[size++] = id;
+    }
+
+    /*
+     * Adds an id in its sorted position (if it is not already in the list)
+     */
+    void insert(int id) {
+        if (size == 0 || ids[size - 1] < id) {
+            append(id);
+            return;
+        }
+        int position = Arrays.binarySearch(ids, 0, size, id);
+        if (position >= 0) {
+            return;
+        }
+        position = -(position + 1);
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        System.arraycopy(ids, position, ids, position + 1, size - position);
+        ids[position] = id;
+        size++;
+    }
+
+    void remove(int id) {
+        int position = Arrays.binarySearch(ids, 0, size, id);
+        if (position >= 0) {
+            System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+            size--;
+        }
+    }
+
+    boolean contains(int id) {
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
@@ -4,7 +4,11 @@
  * chosen package and a hashMap to record all the member's progress
  */
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -12,7 +16,19 @@ public class Member extends Person {
     private float height;
     private float startWeight;
     protected String chosenPackage;
-    private HashMap<String, Assessment> assessmentHashMap;
+    // Ideal weight for the member's height and gender (see GymUtility.idealBodyWeight),
+    // worked out when either changes rather than each time it is checked
+    private float idealBodyWeight;
+    // Keeps the dates in chronological order (see AssessmentMap)
+    // The map's owner is set whenever the field is, so the map is never changed when it's read
+    private AssessmentMap assessmentHashMap;
+    // BMI category indexes of the gyms this member belongs to (not stored with the member)
+    // Replaced rather than changed, so it can be read without a lock
+    private transient volatile BMIIndex[] bmiIndexes;
+    // Told about every change to the assessments, eg by the gyms that journal them (replaced the same way)
+    private transient volatile AssessmentListener[] assessmentListeners;
+    // Where the assessments are stored if they haven't been read from a lazily loaded snapshot yet
+    private transient volatile AssessmentHistory history;
 
     /*
      * Constructor for Member
@@ -24,7 +40,7 @@ public class Member extends Person {
         setHeight(height);
         setStartWeight(startWeight);
         this.chosenPackage = chosenPackage;
-        assessmentHashMap = new HashMap<String, Assessment>();
+        useAssessments(new AssessmentMap());
     }
 
     public float getHeight() {
@@ -35,9 +51,29 @@ public class Member extends Person {
         // Height must be between 1 and 3 inclusive
         if (height >= 1.0f && height <= 3.0f) {
             this.height = height;
+            idealBodyWeight = GymUtility.idealBodyWeight(getGender(), height);
+            // The member's BMI may have changed
+            assessmentsChanged();
         }
     }
 
+    /*
+     * Keeps the member's ideal weight up to date with their gender
+     * (also called by Person's constructor, before the height is set)
+     */
+    @Override
+    public void setGender(String gender) {
+        super.setGender(gender);
+        idealBodyWeight = GymUtility.idealBodyWeight(getGender(), height);
+    }
+
+    /*
+     * Returns the ideal weight for the member's height and gender based on the Devine formula
+     */
+    public float getIdealBodyWeight() {
+        return idealBodyWeight;
+    }
+
     public float getStartWeight() {
         return startWeight;
     }
@@ -61,38 +97,286 @@ public class Member extends Person {
 
     }
 
-    public HashMap<String, Assessment> getAssessments() {
+    /*
+     * Returns the member's assessments keyed by date
+     * (this returned a HashMap before the assessments were kept in an AssessmentMap)
+     * A change made to the map or its assessments is journaled by the member's gym before
+     * it is made, the same as GymAPI.addAssessment (see AssessmentListener)
+     */
+    public Map<String, Assessment> getAssessments() {
+        return assessments();
+    }
+
+    /*
+     * Returns the member's assessments, reading them first if the member was loaded lazily
+     * Only reads the field, so it is safe under a stripe's read lock
+     */
+    private AssessmentMap assessments() {
+        if (history != null) {
+            loadHistory();
+        }
         return assessmentHashMap;
     }
 
+    /*
+     * Replaces the member's assessments, making sure the map tells this member
+     * when assessments are added or removed
+     */
+    private void useAssessments(AssessmentMap assessments) {
+        assessments.setOwner(this);
+        assessmentHashMap = assessments;
+    }
+
+    /*
+     * Reads the assessments left in the snapshot file when the member was loaded lazily
+     * Several threads may be reading the member at once, so only the first one reads the file
+     */
+    private synchronized void loadHistory() {
+        AssessmentHistory unloaded = history;
+        if (unloaded != null) {
+            try {
+                useAssessments(unloaded.load());
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            history = null;
+        }
+    }
+
+    /*
+     * Returns a boolean indicating if the member's assessments are in memory
+     * (false until they are first needed if the member was loaded lazily)
+     */
+    public boolean assessmentsLoaded() {
+        return history == null;
+    }
+
+    /*
+     * Returns the member's assessments, reading them from the snapshot file if they haven't been
+     * loaded yet without keeping them (so exporting every member doesn't load every history)
+     */
+    AssessmentMap readAssessments() throws IOException {
+        AssessmentHistory unloaded = history;
+        if (unloaded != null) {
+            return unloaded.read();
+        }
+        return assessments();
+    }
+
+    /*
+     * Called by GymSnapshot when the member is loaded lazily
+     */
+    void setHistory(AssessmentHistory history) {
+        useAssessments(new AssessmentMap());
+        this.history = history;
+    }
+
+    /*
+     * Returns where the member's assessments are stored, or null if they are already in memory
+     */
+    AssessmentHistory unloadedHistory() {
+        return history;
+    }
+
+    /*
+     * Called by the loaders (eg GymSnapshot) to give a member it has just created their assessments
+     */
+    void setAssessments(AssessmentMap assessments) {
+        useAssessments(assessments);
+        assessmentsChanged();
+    }
+
+    /*
+     * Called by GymAPI.archiveAssessments once the member's assessments have been written to
+     * the archive, so from then on they are read from the archive file instead of the heap
+     */
+    synchronized void archiveAssessments(AssessmentArchive.Columns columns) {
+        AssessmentHistory unloaded = history;
+        if (unloaded != null) {
+            // The rest were never loaded, so the latest assessment is the only one callers can
+            // have. As when loading, it becomes a view of the archived assessments (which hold its values)
+            AssessmentMap archived = new AssessmentMap(columns);
+            Assessment latest = unloaded.latest();
+            if (latest != null) {
+                latest.attach(archived, archived.size() - 1);
+            }
+            useAssessments(archived);
+            history = null;
+        }
+        else {
+            // The same map is kept, so assessments callers already have stay views of it
+            assessments().archive(columns);
+        }
+    }
+
+    /*
+     * Called when the member's BMI may have changed (their height, latest assessment or
+     * whole map of assessments has changed), so the gyms' BMI indexes stay up to date
+     */
+    private void assessmentsChanged() {
+        BMIIndex[] indexes = bmiIndexes;
+        if (indexes != null) {
+            for (BMIIndex index : indexes) {
+                index.update(this);
+            }
+        }
+    }
+
+    /*
+     * Called by the member's AssessmentMap before an assessment is put, changed or removed
+     * (see AssessmentListener). An exception from a listener stops the change
+     */
+    void assessmentChanging(String date, Assessment assessment, boolean removed) {
+        AssessmentListener[] listeners = assessmentListeners;
+        if (listeners != null) {
+            for (AssessmentListener listener : listeners) {
+                listener.assessmentChanging(this, date, assessment, removed);
+            }
+        }
+    }
+
+    /*
+     * Called by the member's AssessmentMap once an assessment has been put, changed or removed
+     * The BMI indexes are only told if the member's BMI may have changed
+     */
+    void assessmentChanged(boolean bmiMayHaveChanged) {
+        if (bmiMayHaveChanged) {
+            assessmentsChanged();
+        }
+        AssessmentListener[] listeners = assessmentListeners;
+        if (listeners != null) {
+            for (AssessmentListener listener : listeners) {
+                listener.assessmentChanged(this);
+            }
+        }
+    }
+
+    /*
+     * Called by BMIIndex when the member is added to an index (under GymAPI's write lock)
+     * A member XStream created by reflection never had its map's owner set, so it is set
+     * here before the map's changes are needed
+     */
+    void addBMIIndex(BMIIndex index) {
+        if (assessmentHashMap != null) {
+            assessmentHashMap.setOwner(this);
+        }
+        // Not the member's own lock, which may be held while the indexes are updated
+        synchronized (BMIIndex.class) {
+            bmiIndexes = bmiIndexes == null ? new BMIIndex[] {index} : with(bmiIndexes, index);
+        }
+    }
+
+    /*
+     * Called by BMIIndex when the member is removed from an index
+     * Any other index the member is in is left alone
+     */
+    void removeBMIIndex(BMIIndex index) {
+        synchronized (BMIIndex.class) {
+            bmiIndexes = without(bmiIndexes, index);
+        }
+    }
+
+    /*
+     * Called by GymAPI when the member joins the gym, so it is told about changes to the assessments
+     */
+    void addAssessmentListener(AssessmentListener listener) {
+        if (assessmentHashMap != null) {
+            assessmentHashMap.setOwner(this);
+        }
+        synchronized (BMIIndex.class) {
+            assessmentListeners = assessmentListeners == null ? new AssessmentListener[] {listener}
+                    : with(assessmentListeners, listener);
+        }
+    }
+
+    /*
+     * Called by GymAPI when the member's gym is replaced (eg by loading another file)
+     */
+    void removeAssessmentListener(AssessmentListener listener) {
+        synchronized (BMIIndex.class) {
+            assessmentListeners = without(assessmentListeners, listener);
+        }
+    }
+
+    /*
+     * Returns a copy of the array with the item added to the end, or the array if it already has the item
+     */
+    private static <T> T[] with(T[] array, T item) {
+        for (T existing : array) {
+            if (existing == item) {
+                return array;
+            }
+        }
+        T[] added = Arrays.copyOf(array, array.length + 1);
+        added[array.length] = item;
+        return added;
+    }
+
+    /*
+     * Returns a copy of the array without the item, or null if nothing is left
+     */
+    private static <T> T[] without(T[] array, T item) {
+        if (array == null) {
+            return null;
+        }
+        T[] removed = Arrays.copyOf(array, array.length);
+        int count = 0;
+        for (T existing : array) {
+            if (existing != item) {
+                removed[count++] = existing;
+            }
+        }
+        return count == 0 ? null : Arrays.copyOf(removed, count);
+    }
+
     /*
      * Returns a sorted set of date Strings
      * in chronological order
      */
     public SortedSet<String> sortedAssessmentDates() {
         // TreeSet guarantees ordering of its elements
-        SortedSet<String> dates = new TreeSet<String>(getAssessments().keySet());
+        SortedSet<String> dates = new TreeSet<String>(assessments().chronologicalDates());
 
         return dates;
     }
 
+    /*
+     * Returns a read only list of assessment dates in chronological order
+     * Unlike sortedAssessmentDates, no sorting or copying is needed
+     */
+    public List<String> chronologicalAssessmentDates() {
+        return assessments().chronologicalDates();
+    }
+
+    /*
+     * Returns a read only list of the member's assessments in chronological order
+     */
+    public List<Assessment> chronologicalAssessments() {
+        return assessments().chronologicalAssessments();
+    }
+
+    /*
+     * Returns a read only list of the member's assessments dated between fromDate and
+     * toDate (inclusive, both YY/MM/DD) in chronological order
+     */
+    public List<Assessment> assessmentsBetween(String fromDate, String toDate) {
+        return assessments().assessmentsBetween(AssessmentDate.parse(fromDate), AssessmentDate.parse(toDate));
+    }
+
     /*
      * Returns the latest assessment (based on chronological ordering)
      * in the member's assessment hashMap
      * Returns null if member has no assessments
      */
     public Assessment latestAssessment() {
-        // Get date keys sorted in chronological order
-        SortedSet<String> dates = sortedAssessmentDates();
-        // Check that member has at least one assessment
-        if (dates.size() > 0) {
-            // Get the last element in the dates array (ie the latest one)
-            String latestDate = dates.last();
-            // Retrieve the assessment using the latestDate key
-            Assessment assessment = getAssessments().get(latestDate);
-            return assessment;
-        }
-        return null;
+        // The latest assessment is kept when the member is loaded lazily, so the rest aren't needed
+        AssessmentHistory unloaded = history;
+        if (unloaded != null) {
+            return unloaded.latest();
+        }
+        // The assessment map keeps track of the latest date as assessments are added
+        return assessments().latest();
     }
 
     /*
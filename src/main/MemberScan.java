@@ -0,0 +1,85 @@
+/*
+ * Finds the members that match a filter, splitting large lists between the
+ * threads of the common fork-join pool
+ * Each task checks its range of the list, or splits it in two and checks both halves
+ * in parallel. The results of the halves are joined left then right, so the matches
+ * come back in the same order as the list
+ * Lists no longer than the threshold are checked on the calling thread, as splitting
+ * a short list costs more than it saves
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class MemberScan extends RecursiveTask<ArrayList<Member>> {
+
+    /*
+     * Decides if a member belongs in the results
+     * Called on several threads at once, so it must not change anything shared
+     */
+    public interface Filter {
+        boolean matches(Member member);
+    }
+
+    // Tasks are never serialized, but RecursiveTask is Serializable so it is declared anyway
+    private static final long serialVersionUID = 1L;
+    // Smallest range a task will split, so there is enough work in each to be worth a thread
+    private static final int MIN_SPLIT = 512;
+
+    private Member[] members;
+    private int from;
+    private int to;
+    private int splitSize;
+    private Filter filter;
+
+    private MemberScan(Member[] members, int from, int to, int splitSize, Filter filter) {
+        this.members = members;
+        this.from = from;
+        this.to = to;
+        this.splitSize = splitSize;
+        this.filter = filter;
+    }
+
+    /*
+     * Returns the members that match the filter, in the order they are in the list
+     * The list is split between threads if it is longer than the threshold
+     */
+    public static ArrayList<Member> scan(List<Member> members, Filter filter, int threshold) {
+        Member[] memberArray = members.toArray(new Member[0]);
+        if (memberArray.length <= threshold) {
+            return scanRange(memberArray, 0, memberArray.length, filter);
+        }
+        // Split into a few tasks per thread, so a thread that finishes early can take more work
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int splitSize = Math.max(MIN_SPLIT, memberArray.length / (pool.getParallelism() * 4));
+        return pool.invoke(new MemberScan(memberArray, 0, memberArray.length, splitSize, filter));
+    }
+
+    @Override
+    protected ArrayList<Member> compute() {
+        if (to - from <= splitSize) {
+            return scanRange(members, from, to, filter);
+        }
+        int middle = (from + to) >>> 1;
+        MemberScan left = new MemberScan(members, from, middle, splitSize, filter);
+        MemberScan right = new MemberScan(members, middle, to, splitSize, filter);
+        // Check the left half on another thread while this one checks the right half
+        left.fork();
+        ArrayList<Member> rightMatches = right.compute();
+        ArrayList<Member> matches = left.join();
+        matches.addAll(rightMatches);
+        return matches;
+    }
+
+    private static ArrayList<Member> scanRange(Member[] members, int from, int to, Filter filter) {
+        ArrayList<Member> matches = new ArrayList<Member>();
+        for (int i = from; i < to; i++) {
+            if (filter.matches(members[i])) {
+                matches.add(members[i]);
+            }
+        }
+        return matches;
+    }
+}
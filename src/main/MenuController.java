@@ -4,6 +4,16 @@
  * allows the user to navigate (a subset of) the system's
  * features through a series of menus
  */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class MenuController {
@@ -15,6 +25,20 @@ public class MenuController {
     private Person loggedInUser;
     // The packages available to members
     private HashMap<String, String> packages;
+    // Snapshot of the gym and the journal of changes made since it was taken
+    // These are what the gym is loaded from: every change is in them as soon as it is made
+    private static final String SNAPSHOT_FILE = "gym.dat";
+    private static final String JOURNAL_FILE = "gym.journal";
+    // Set once the gym has been loaded, nothing is written to the files if it couldn't be
+    private boolean loaded;
+    // Memory-mapped file members' assessments are moved to if a trainer chooses (see GymAPI.archiveAssessments)
+    private static final String ARCHIVE_FILE = "gym.archive";
+    // Saves the persons file in the background every few minutes, or sooner after many changes
+    // The persons file (persons.xml) is only a copy of the gym in XML for reading outside the app,
+    // it is never loaded once there is a snapshot (the first run after upgrading from the XML files)
+    private GymAutosave autosave;
+    private static final long AUTOSAVE_INTERVAL_SECONDS = 300;
+    private static final int AUTOSAVE_CHANGES = 100;
 
     public static void main(String[] args) {
         MenuController menuController = new MenuController();
@@ -34,12 +58,32 @@ public class MenuController {
         packages.put("Package 3", "Allowed access to gym at off-peak times.\n€5 fee for all classes.\nNo access to deluxe changing rooms.");
         packages.put("WIT", "Allowed access to gym during term time.\n€4 fee for all classes.\nNo access to deluxe changing rooms.");
 
-        // Load gym data (trainers and members) from XML file
+        // Load gym data (trainers and members) from the last snapshot and replay the journal
+        // of changes made since then. The XML files are only read if there is no snapshot yet
+        // (they are streamed so that large rosters don't need a DOM tree in memory)
+        // Members' assessments are only read from the snapshot when they are first needed
         try {
-            gymAPI.load();
+            if (!new File(SNAPSHOT_FILE).exists()) {
+                gymAPI.loadStreaming();
+            }
+            gymAPI.openJournal(SNAPSHOT_FILE, JOURNAL_FILE, true);
+            // Assessments with dates that can't be read are left out rather than stopping the load
+            // (the XML files, which the snapshot never overwrites, still have them)
+            for (String skipped : gymAPI.skippedAssessments()) {
+                System.err.println(skipped);
+            }
+            // If the assessments were archived last time, keep them out of memory again
+            // (the archive is only written again if the snapshot has changed since)
+            gymAPI.openArchive(ARCHIVE_FILE);
+            loaded = true;
         }
         catch (Exception e) {
             System.err.println("Error loading from file: " + e);
+            System.err.println("Changes made now will not be saved");
+        }
+        if (loaded) {
+            autosave = new GymAutosave(gymAPI, GymAPI.PERSONS_FILE);
+            autosave.start(AUTOSAVE_INTERVAL_SECONDS, AUTOSAVE_CHANGES);
         }
     }
 
@@ -166,6 +210,9 @@ public class MenuController {
         System.out.println("  6) List members by specific BMI category");
         System.out.println("  7) List all member details in metric and imperial");
         System.out.println("  8) Assessment sub-menu");
+        System.out.println("  9) Import members and trainers from a CSV file");
+        System.out.println("  10) Move assessments out of memory into an archive file");
+        System.out.println("  11) Statistics by package, college and gender");
         System.out.println("------------");
         System.out.println("  0) Exit");
         int option = input.nextInt();
@@ -241,6 +288,18 @@ public class MenuController {
                     // Run the assessment sub menu
                     runTrainerSubMenu();
                     break;
+                case 9:
+                    // Import members and trainers from a CSV file
+                    importRoster();
+                    break;
+                case 10:
+                    // Keep members' assessments in a memory-mapped file rather than in memory
+                    archiveAssessments();
+                    break;
+                case 11:
+                    // BMI categories and average weight and waist change of each group of members
+                    System.out.println(gymAPI.statistics());
+                    break;
                 default:
                     System.out.println("Invalid option entered: " + option);
                     break;
@@ -257,15 +316,74 @@ public class MenuController {
         }
 
         // The user chose option 0, so exit the program
-        // Store new member/trainer in XML fle
+        exit();
+    }
+
+    /*
+     * Brings the XML copy of the gym up to date, closes the journal and exits the program
+     * Nothing is written if the gym couldn't be loaded, so the files aren't replaced by an empty gym
+     */
+    private void exit() {
+        if (loaded) {
+            // Store new member/trainer in XML fle
+            try {
+                autosave.stop();
+                gymAPI.store();
+                gymAPI.closeJournal();
+            }
+            catch (Exception e) {
+                System.err.println("Error writing to file: " + e);
+            }
+        }
+        System.out.println("Exiting... bye");
+        System.exit(0);
+    }
+
+    /*
+     * Asks the trainer for a CSV file of members and trainers and adds them to the gym
+     * Rows that can't be added are written to a report file next to the CSV file
+     */
+    private void importRoster() {
+        // Dummy read
+        input.nextLine();
+        System.out.println("Please enter the name of the CSV file: ");
+        String fileName = input.nextLine();
+        File reportFile = new File(fileName + ".errors.txt");
         try {
-            gymAPI.store();
+            Reader reader = new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8);
+            Writer report = new OutputStreamWriter(new FileOutputStream(reportFile), StandardCharsets.UTF_8);
+            int imported;
+            try {
+                imported = gymAPI.importCsv(reader, report);
+            }
+            finally {
+                reader.close();
+                report.close();
+            }
+            System.out.println(imported + " members and trainers imported");
+            if (reportFile.length() > 0) {
+                System.out.println("Some rows could not be imported, see " + reportFile.getPath());
+            }
+            else {
+                reportFile.delete();
+            }
         }
         catch (Exception e) {
-            System.err.println("Error writing to file: " + e);
+            System.out.println("Could not import " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     * Moves the members' assessments into the archive file, which is then used each time the gym starts
+     */
+    private void archiveAssessments() {
+        try {
+            int archived = gymAPI.archiveAssessments(ARCHIVE_FILE);
+            System.out.println("The assessments of " + archived + " members were moved to " + ARCHIVE_FILE);
+        }
+        catch (IOException e) {
+            System.out.println("Could not archive the assessments: " + e.getMessage());
         }
-        System.out.println("Exiting... bye");
-        System.exit(0);
     }
 
     /*
@@ -323,15 +441,7 @@ public class MenuController {
         }
 
         // The user chose option 0, so exit the program
-        // Store new member/trainer in XML fle
-        try {
-            gymAPI.store();
-        }
-        catch (Exception e) {
-            System.err.println("Error writing to file: " + e);
-        }
-        System.out.println("Exiting... bye");
-        System.exit(0);
+        exit();
     }
 
     /*
@@ -396,15 +506,7 @@ public class MenuController {
         }
 
         // The user chose option 0, so exit the program
-        // Store new member/trainer in XML fle
-        try {
-            gymAPI.store();
-        }
-        catch (Exception e) {
-            System.err.println("Error writing to file: " + e);
-        }
-        System.out.println("Exiting... bye");
-        System.exit(0);
+        exit();
     }
 
     /*
@@ -469,15 +571,7 @@ public class MenuController {
         }
 
         // The user chose option 0, so exit the program
-        // Store new member/trainer in XML fle
-        try {
-            gymAPI.store();
-        }
-        catch (Exception e) {
-            System.err.println("Error writing to file: " + e);
-        }
-        System.out.println("Exiting... bye");
-        System.exit(0);
+        exit();
     }
 
     /*
@@ -495,8 +589,8 @@ public class MenuController {
         while (!goodInput) {
             System.out.println("Please enter your email address");
             email = input.nextLine();
-            // Check that the email entered does not exist in either members of trainers array list
-            if ((gymAPI.searchMembersByEmail(email) == null) && (gymAPI.searchTrainersByEmail(email) == null)) {
+            // Check that the email entered is not already used by a member or a trainer
+            if (!gymAPI.isEmailRegistered(email)) {
                 goodInput = true;
             }
             else {
@@ -637,6 +731,8 @@ public class MenuController {
      * Edits the current logged in member details
      */
     private void editMember() {
+        // Kept so the edit can be undone if it can't be recorded
+        byte[] oldDetails = GymJournal.details(loggedInUser);
         // Dummy read
         input.nextLine();
         // Used to determine if the user has entered an acceptable input
@@ -757,6 +853,15 @@ public class MenuController {
             // Update the student member's package based on their college name
             ((StudentMember) loggedInUser).chosenPackage(null);
         }
+        // Record the edited details
+        try {
+            gymAPI.updatePerson(loggedInUser);
+        }
+        catch (UncheckedIOException e) {
+            // Put the old details back, otherwise the next snapshot would save an edit the journal doesn't have
+            GymJournal.restoreDetails(loggedInUser, oldDetails);
+            System.err.println("Your details could not be saved: " + e.getMessage());
+        }
     }
 
     /*
@@ -764,12 +869,12 @@ public class MenuController {
      * Prints a custom String if the member has no assessments
      */
     private void listAssessments(Member member) {
-        // Retrieve the sorted set of String dates in chronological order
-        SortedSet<String> dates = member.sortedAssessmentDates();
+        // Retrieve the String dates in chronological order
+        List<String> dates = member.chronologicalAssessmentDates();
         // Member has at least one assessment
         if (dates.size() != 0) {
             // Retrieve the member's assessment hash map
-            HashMap<String, Assessment> assessmentHashMap = member.getAssessments();
+            Map<String, Assessment> assessmentHashMap = member.getAssessments();
             // List each date and assessment
             for (String key : dates) {
                 System.out.println(key + ": " + assessmentHashMap.get(key).toString());
@@ -789,7 +894,7 @@ public class MenuController {
         // Used to store member details
         String members = "";
         // Check if the gym has at least one registered member
-        if (gymAPI.listMembers().size() != 0) {
+        if (gymAPI.numberOfMembers() != 0) {
             // Concatenate the member String with each registered member's details
             for (Member member : gymAPI.listMembers()) {
                 members += member.toString();
@@ -858,9 +963,9 @@ public class MenuController {
      */
     private void addAssessment() {
         // Check that the gym has at least one registered member
-        if (gymAPI.listMembers().size() != 0) {
+        if (gymAPI.numberOfMembers() != 0) {
             // Retrieve the list of members
-            ArrayList<Member> members = gymAPI.listMembers();
+            List<Member> members = gymAPI.listMembers();
             // Create a null member object
             Member member = null;
             // Used to determine if the user has entered an acceptable input
@@ -950,18 +1055,29 @@ public class MenuController {
             // Store the comment entered by the user
             String comment = input.nextLine();
 
-            // TODO - Check that the date entered by the user is in the correct format (regex?)
-            System.out.println("Please enter the date of the assessment (in the format YY/MM/DD)");
-            // Store the date entered by the user
-            String date = input.nextLine();
+            goodInput = false;
+            String date = "";
+            // Keep looping until the user enters a valid date
+            while (!goodInput) {
+                System.out.println("Please enter the date of the assessment (in the format YY/MM/DD)");
+                // Store the date entered by the user
+                date = input.nextLine();
+                // Check that the date is a real date in the correct format
+                if (AssessmentDate.isValid(date)) {
+                    // Store the date in the YY/MM/DD format
+                    date = AssessmentDate.normalise(date);
+                    goodInput = true;
+                }
+                else {
+                    System.out.println("Please enter a valid date, eg 18/05/16");
+                }
+            }
             // Create the assessment based on the values entered by the user
             Assessment assessment = new Assessment(weight, thigh, waist, comment);
             // Check that a member was found at the start of this method
             if (member != null) {
-                // Retrieve the member's assessment hash map
-                HashMap<String, Assessment> assessmentHashMap = member.getAssessments();
-                // Insert the new assessment into the member's assessment has map
-                assessmentHashMap.put(date, assessment);
+                // Insert the new assessment into the member's assessment hash map
+                gymAPI.addAssessment(member, date, assessment);
             }
 
         }
@@ -976,9 +1092,9 @@ public class MenuController {
      */
     private void editAssessmentComment() {
         // Check that the gym has at least one registered member
-        if (gymAPI.listMembers().size() > 0) {
+        if (gymAPI.numberOfMembers() > 0) {
             // Retrieve the list of members
-            ArrayList<Member> members = gymAPI.listMembers();
+            List<Member> members = gymAPI.listMembers();
             // Create a null member object
             Member member = null;
             // Used to determine if the user has entered an acceptable input
@@ -1017,7 +1133,7 @@ public class MenuController {
                 // Check that a member was found at the start of this method
                 if (member != null) {
                     // Retrieve the member's assessment hash map
-                    HashMap<String, Assessment> assessmentHashMap = member.getAssessments();
+                    Map<String, Assessment> assessmentHashMap = member.getAssessments();
                     // Check that the member has at least one assessment
                     if (assessmentHashMap.size() > 0) {
                         // Print each assessment date and comment associated with the selected member to console
@@ -1028,15 +1144,13 @@ public class MenuController {
                         // TODO - Use an index for date selection
                         // Store the date entered by the user
                         String dateKey = input.nextLine();
-                        // Retrieve the assessment using the date entered by the user
-                        Assessment assessment = assessmentHashMap.get(dateKey);
                         // Check that the date entered is associated with an assessment
-                        if (assessment != null) {
+                        if (assessmentHashMap.get(dateKey) != null) {
                             System.out.println("Please enter a new comment: ");
                             // Store the comment entered by the user
                             String newComment = input.nextLine();
                             // Edit the assessment comment
-                            assessment.setComment(newComment);
+                            gymAPI.editAssessmentComment(member, dateKey, newComment);
                             goodInput = true;
                         }
                         // The date String entered by the user is not associated with any assessments
@@ -0,0 +1,212 @@
+/*
+ * Trigram index over the (lower case) names of a list of persons
+ * Used by GymAPI to answer partial name searches without lower casing
+ * and checking every name in the list on each search
+ *
+ * Each person gets an id that is their position in the list, and each three
+ * character sequence in a name maps to a sorted list of the ids that contain it.
+ * A search intersects the lists for every trigram of the entered name and then
+ * checks the remaining candidates, so results match String.contains exactly
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class NameIndex {
+
+    // Indexed persons, in the order they were added (the id of a person is their position)
+    private ArrayList<Person> persons;
+    // Lower case name of each person, by id
+    private ArrayList<String> foldedNames;
+    private IdentityHashMap<Person, Integer> ids;
+    // Sorted ids of the persons whose name contains each trigram
+    private HashMap<Long, IdList> postings;
+    // Searches share the read lock, adding and renaming need the write lock
+    // (renames come from Person's setName, which may be called outside GymAPI's locks)
+    private ReentrantReadWriteLock lock;
+
+    /*
+     * Constructor for NameIndex
+     */
+    public NameIndex() {
+        persons = new ArrayList<Person>();
+        foldedNames = new ArrayList<String>();
+        ids = new IdentityHashMap<Person, Integer>();
+        postings = new HashMap<Long, IdList>();
+        lock = new ReentrantReadWriteLock();
+    }
+
+    /*
+     * Adds a person to the end of the index
+     * The person will let the index know if their name is changed with setName
+     */
+    public void add(Person person) {
+        lock.writeLock().lock();
+        try {
+            int id = persons.size();
+            String folded = fold(person.getName());
+            persons.add(person);
+            foldedNames.add(folded);
+            ids.put(person, id);
+            for (long trigram : trigrams(folded)) {
+                IdList list = postings.get(trigram);
+                if (list == null) {
+                    list = new IdList();
+                    postings.put(trigram, list);
+                }
+                // Ids are handed out in increasing order, so this keeps the list sorted
+                list.append(id);
+            }
+            person.addNameIndex(this);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Removes every person from the index
+     * The persons stay in any other index they were added to
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            for (Person person : persons) {
+                person.removeNameIndex(this);
+            }
+            persons.clear();
+            foldedNames.clear();
+            ids.clear();
+            postings.clear();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Called by Person's setName after the name has changed
+     * Moves the person's id from the trigrams of their old name to those of their new name
+     */
+    void rename(Person person) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(person);
+            if (id == null) {
+                return;
+            }
+            String oldFolded = foldedNames.get(id);
+            String newFolded = fold(person.getName());
+            if (oldFolded.equals(newFolded)) {
+                return;
+            }
+            for (long trigram : trigrams(oldFolded)) {
+                IdList list = postings.get(trigram);
+                list.remove(id);
+                if (list.size == 0) {
+                    postings.remove(trigram);
+                }
+            }
+            for (long trigram : trigrams(newFolded)) {
+                IdList list = postings.get(trigram);
+                if (list == null) {
+                    list = new IdList();
+                    postings.put(trigram, list);
+                }
+                list.insert(id);
+            }
+            foldedNames.set(id, newFolded);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Returns the persons whose name contains the entered text (ignoring case)
+     * in the order they were added to the index
+     */
+    public ArrayList<Person> search(String text) {
+        lock.readLock().lock();
+        try {
+            String query = fold(text);
+            ArrayList<Person> matches = new ArrayList<Person>();
+
+            // Anything shorter than a trigram can't use the index, so check each name
+            if (query.length() < 3) {
+                for (int id = 0; id < persons.size(); id++) {
+                    if (foldedNames.get(id).contains(query)) {
+                        matches.add(persons.get(id));
+                    }
+                }
+                return matches;
+            }
+
+            // Find the posting list of every trigram in the query
+            long[] queryTrigrams = trigrams(query);
+            IdList[] lists = new IdList[queryTrigrams.length];
+            for (int i = 0; i < queryTrigrams.length; i++) {
+                lists[i] = postings.get(queryTrigrams[i]);
+                // No name contains this trigram so nothing can match
+                if (lists[i] == null) {
+                    return matches;
+                }
+            }
+            // Start from the shortest list so there are as few candidates as possible
+            IdList shortest = lists[0];
+            for (IdList list : lists) {
+                if (list.size < shortest.size) {
+                    shortest = list;
+                }
+            }
+            for (int i = 0; i < shortest.size; i++) {
+                int id = shortest.ids[i];
+                boolean inAll = true;
+                for (IdList list : lists) {
+                    if (list != shortest && !list.contains(id)) {
+                        inAll = false;
+                        break;
+                    }
+                }
+                // Sharing every trigram doesn't guarantee the trigrams are in the right
+                // order, so confirm the match against the name itself
+                if (inAll && foldedNames.get(id).contains(query)) {
+                    matches.add(persons.get(id));
+                }
+            }
+            return matches;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String fold(String name) {
+        return name.toLowerCase();
+    }
+
+    /*
+     * Returns the distinct trigrams of the text, each packed into a long
+     */
+    private static long[] trigrams(String text) {
+        if (text.length() < 3) {
+            return new long[0];
+        }
+        long[] trigrams = new long[text.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+        }
+        // Remove repeats so an id is only added to (or removed from) a list once
+        Arrays.sort(trigrams);
+        int distinct = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+}
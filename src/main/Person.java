@@ -4,12 +4,17 @@
  * Email is used to uniquely identify a person in the system
  */
 
+import java.util.Arrays;
+
 public class Person {
 
     private String email;
     private String name;
     private String address;
     private String gender;
+    // Name indexes of every gym this person is in (not stored with the person)
+    // The array is replaced rather than changed, so setName can read it without locking
+    private transient volatile NameIndex[] nameIndexes;
 
     /*
      * Constructor to Person
@@ -30,7 +35,51 @@ public class Person {
         else {
             this.name = name.substring(0, 30);
         }
+        // Keep the name search of each gym the person is in up to date
+        NameIndex[] indexes = nameIndexes;
+        if (indexes != null) {
+            for (NameIndex index : indexes) {
+                index.rename(this);
+            }
+        }
+    }
 
+    /*
+     * Called by NameIndex when the person is added to an index
+     */
+    synchronized void addNameIndex(NameIndex index) {
+        NameIndex[] indexes = nameIndexes;
+        if (indexes == null) {
+            nameIndexes = new NameIndex[] {index};
+            return;
+        }
+        for (NameIndex existing : indexes) {
+            if (existing == index) {
+                return;
+            }
+        }
+        NameIndex[] added = Arrays.copyOf(indexes, indexes.length + 1);
+        added[indexes.length] = index;
+        nameIndexes = added;
+    }
+
+    /*
+     * Called by NameIndex when the person is removed from an index
+     * Any other index the person is in is left alone
+     */
+    synchronized void removeNameIndex(NameIndex index) {
+        NameIndex[] indexes = nameIndexes;
+        if (indexes == null) {
+            return;
+        }
+        NameIndex[] removed = new NameIndex[indexes.length];
+        int count = 0;
+        for (NameIndex existing : indexes) {
+            if (existing != index) {
+                removed[count++] = existing;
+            }
+        }
+        nameIndexes = count == 0 ? null : Arrays.copyOf(removed, count);
     }
 
     public void setAddress(String address) {
@@ -0,0 +1,144 @@
+/*
+ * Converts members and trainers to and from XML without using reflection
+ * Writes exactly what XStream's reflection converter wrote before it: each field
+ * that isn't null in the order it is declared (Person's fields, then Member's,
+ * then the subclass's), so files written before and after are the same
+ * The assessments are converted by XStream (see GymAPI.createXStream), in
+ * chronological order since they are stored in columns (see AssessmentMap)
+ */
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+public class PersonConverter implements Converter {
+
+    /*
+     * Only the exact classes are converted, any other subclass is left to reflection
+     * (Converter declares the parameter as a raw Class, so that warning is suppressed here only)
+     */
+    @SuppressWarnings("rawtypes")
+    public boolean canConvert(Class type) {
+        return type == Member.class || type == PremiumMember.class || type == StudentMember.class
+                || type == Trainer.class;
+    }
+
+    public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+        Person person = (Person) source;
+        writeField(writer, "email", person.getEmail());
+        writeField(writer, "name", person.getName());
+        writeField(writer, "address", person.getAddress());
+        writeField(writer, "gender", person.getGender());
+        if (person instanceof Member) {
+            Member member = (Member) person;
+            writeField(writer, "height", Float.toString(member.getHeight()));
+            writeField(writer, "startWeight", Float.toString(member.getStartWeight()));
+            writeField(writer, "chosenPackage", member.getChosenPackage());
+            writer.startNode("assessmentHashMap");
+            context.convertAnother(member.getAssessments());
+            writer.endNode();
+            if (member instanceof StudentMember) {
+                writeField(writer, "studentid", ((StudentMember) member).getStudentid());
+                writeField(writer, "collegeName", ((StudentMember) member).getCollegeName());
+            }
+        }
+        else {
+            writeField(writer, "speciality", ((Trainer) person).getSpeciality());
+        }
+    }
+
+    /*
+     * Writes an element holding the value, or nothing if the value is null
+     */
+    static void writeField(HierarchicalStreamWriter writer, String name, String value) {
+        if (value != null) {
+            writer.startNode(name);
+            writer.setValue(value);
+            writer.endNode();
+        }
+    }
+
+    public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        // Fields are read in any order, so collect them all before creating the person
+        String email = null;
+        String name = null;
+        String address = null;
+        String gender = null;
+        float height = 0.0f;
+        float startWeight = 0.0f;
+        String chosenPackage = null;
+        AssessmentMap assessments = null;
+        String studentid = null;
+        String collegeName = null;
+        String speciality = null;
+
+        while (reader.hasMoreChildren()) {
+            reader.moveDown();
+            String field = reader.getNodeName();
+            if (field.equals("email")) {
+                email = reader.getValue();
+            }
+            else if (field.equals("name")) {
+                name = reader.getValue();
+            }
+            else if (field.equals("address")) {
+                address = reader.getValue();
+            }
+            else if (field.equals("gender")) {
+                gender = reader.getValue();
+            }
+            else if (field.equals("height")) {
+                height = Float.parseFloat(reader.getValue());
+            }
+            else if (field.equals("startWeight")) {
+                startWeight = Float.parseFloat(reader.getValue());
+            }
+            else if (field.equals("chosenPackage")) {
+                chosenPackage = reader.getValue();
+            }
+            else if (field.equals("assessmentHashMap")) {
+                assessments = (AssessmentMap) context.convertAnother(null, AssessmentMap.class);
+            }
+            else if (field.equals("studentid")) {
+                studentid = reader.getValue();
+            }
+            else if (field.equals("collegeName")) {
+                collegeName = reader.getValue();
+            }
+            else if (field.equals("speciality")) {
+                speciality = reader.getValue();
+            }
+            // Ignore any field we don't know about
+            reader.moveUp();
+        }
+
+        // Report any assessments skipped because of their date now the member's email is known
+        AssessmentMapConverter.reportSkipped(context, email);
+
+        Class<?> type = context.getRequiredType();
+        Member member;
+        if (type == Trainer.class) {
+            return new Trainer(email, name, address, gender, speciality);
+        }
+        else if (type == StudentMember.class) {
+            member = new StudentMember(email, name, address, gender, height, startWeight, chosenPackage,
+                    studentid, collegeName);
+        }
+        else if (type == PremiumMember.class) {
+            member = new PremiumMember(email, name, address, gender, height, startWeight, chosenPackage);
+        }
+        else if (type == Member.class) {
+            member = new Member(email, name, address, gender, height, startWeight, chosenPackage);
+        }
+        else {
+            throw new ConversionException("Unknown person type: " + type.getName());
+        }
+        if (assessments != null) {
+            member.setAssessments(assessments);
+        }
+        return member;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Reads Person objects (members and trainers) one at a time from an
+ * XML file written by GymAPI's store method
+ * Uses a StAX pull parser so that only the person currently being read
+ * is held in memory, rather than a DOM tree of the whole file
+ */
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class PersonXmlReader {
+
+    // Shared factory, creating one is expensive and they are thread safe once configured
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private XMLStreamReader xml;
+    // The file being read, which closing the XMLStreamReader doesn't close
+    private Reader reader;
+    // The assessments of the member currently being read (null until one is read)
+    private AssessmentMap assessments;
+    // Each distinct comment read so far, so repeated comments are only kept once
+    private HashMap<String, String> comments;
+    // Dates of the current member's assessments that couldn't be parsed
+    private ArrayList<String> badDates;
+    // A line for each assessment skipped so far because its date couldn't be parsed
+    private ArrayList<String> skipped;
+
+    /*
+     * Constructor for PersonXmlReader
+     * Positions the reader on the list of persons inside the XStream object stream
+     * The Reader is closed by close (or straight away if it isn't a file of persons)
+     */
+    public PersonXmlReader(Reader reader) throws XMLStreamException, IOException {
+        this.reader = reader;
+        comments = new HashMap<String, String>();
+        badDates = new ArrayList<String>();
+        skipped = new ArrayList<String>();
+        boolean positioned = false;
+        try {
+            xml = FACTORY.createXMLStreamReader(reader);
+            // Move to the root element (<object-stream>)
+            nextStartElement();
+            // Move to the list element (<list>) that holds each person
+            if (!nextStartElement()) {
+                throw new XMLStreamException("Expected a list of persons");
+            }
+            positioned = true;
+        }
+        finally {
+            // Nobody else can close the file if this isn't a file of persons
+            if (!positioned) {
+                reader.close();
+            }
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // The files never contain a DTD, so don't allow one to be loaded
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /*
+     * Returns the next person in the file
+     * The actual type (PremiumMember, StudentMember, Member or Trainer) is
+     * determined by the element name that XStream wrote for the object
+     * Returns null when there are no more persons
+     */
+    public Person next() throws XMLStreamException {
+        if (!nextStartElement()) {
+            return null;
+        }
+        String type = xml.getLocalName();
+        checkNoReference();
+
+        // Fields are stored in the order XStream wrote them, so collect them all
+        // before creating the person (StudentMember's college comes after the assessments)
+        String email = null;
+        String name = null;
+        String address = null;
+        String gender = null;
+        float height = 0.0f;
+        float startWeight = 0.0f;
+        String chosenPackage = null;
+        String studentid = null;
+        String collegeName = null;
+        String speciality = null;
+        assessments = null;
+        badDates.clear();
+
+        while (nextStartElement()) {
+            String field = xml.getLocalName();
+            if (field.equals("email")) {
+                email = xml.getElementText();
+            }
+            else if (field.equals("name")) {
+                name = xml.getElementText();
+            }
+            else if (field.equals("address")) {
+                address = xml.getElementText();
+            }
+            else if (field.equals("gender")) {
+                gender = xml.getElementText();
+            }
+            else if (field.equals("height")) {
+                height = Float.parseFloat(xml.getElementText());
+            }
+            else if (field.equals("startWeight")) {
+                startWeight = Float.parseFloat(xml.getElementText());
+            }
+            else if (field.equals("chosenPackage")) {
+                chosenPackage = xml.getElementText();
+            }
+            else if (field.equals("studentid")) {
+                studentid = xml.getElementText();
+            }
+            else if (field.equals("collegeName")) {
+                collegeName = xml.getElementText();
+            }
+            else if (field.equals("speciality")) {
+                speciality = xml.getElementText();
+            }
+            else if (field.equals("assessmentHashMap")) {
+                readAssessments();
+            }
+            // Ignore any field we don't know about
+            else {
+                skipElement();
+            }
+        }
+
+        // The constructors can't take a null name or gender (or a student's college)
+        checkPresent(type, "name", name);
+        checkPresent(type, "gender", gender);
+        if (type.equals("StudentMember")) {
+            checkPresent(type, "collegeName", collegeName);
+        }
+
+        Person person;
+        if (type.equals("PremiumMember")) {
+            person = new PremiumMember(email, name, address, gender, height, startWeight, chosenPackage);
+        }
+        else if (type.equals("StudentMember")) {
+            person = new StudentMember(email, name, address, gender, height, startWeight, chosenPackage,
+                    studentid, collegeName);
+        }
+        else if (type.equals("Member")) {
+            person = new Member(email, name, address, gender, height, startWeight, chosenPackage);
+        }
+        else if (type.equals("Trainer")) {
+            person = new Trainer(email, name, address, gender, speciality);
+        }
+        else {
+            throw new XMLStreamException("Unknown person type: " + type, xml.getLocation());
+        }
+
+        // Give the member the assessments that were read for them
+        if (person instanceof Member && assessments != null) {
+            ((Member) person).setAssessments(assessments);
+        }
+        for (String date : badDates) {
+            skipped.add(skippedAssessment(email, date));
+        }
+        return person;
+    }
+
+    /*
+     * Returns a line for each assessment read so far that was skipped because its date
+     * couldn't be parsed, so one bad date in an old file doesn't stop the whole file loading
+     */
+    public List<String> skippedAssessments() {
+        return skipped;
+    }
+
+    /*
+     * Returns the line reported for an assessment skipped because of its date
+     * (also used by AssessmentMapConverter, so both ways of loading report the same)
+     */
+    static String skippedAssessment(String email, String date) {
+        return "Skipped the assessment of " + email + " dated '" + date + "'";
+    }
+
+    /*
+     * Reads each <entry> of a member's assessment hashMap
+     * Each entry holds a date <string> followed by an <Assessment>
+     */
+    private void readAssessments() throws XMLStreamException {
+        checkNoReference();
+        while (nextStartElement()) {
+            if (!xml.getLocalName().equals("entry")) {
+                skipElement();
+                continue;
+            }
+            String date = null;
+            Assessment assessment = null;
+            while (nextStartElement()) {
+                if (xml.getLocalName().equals("string")) {
+                    date = xml.getElementText();
+                }
+                else if (xml.getLocalName().equals("Assessment")) {
+                    assessment = readAssessment();
+                }
+                else {
+                    skipElement();
+                }
+            }
+            if (date != null && assessment != null) {
+                int day = AssessmentDate.tryParse(date);
+                if (day == AssessmentDate.INVALID) {
+                    badDates.add(date);
+                    continue;
+                }
+                if (assessments == null) {
+                    assessments = new AssessmentMap();
+                }
+                assessments.putValues(day, assessment.getWeight(), assessment.getThigh(),
+                        assessment.getWaist(), AssessmentMap.shared(comments, assessment.getComment()));
+            }
+        }
+    }
+
+    /*
+     * Reads the fields of a single <Assessment> element
+     */
+    private Assessment readAssessment() throws XMLStreamException {
+        checkNoReference();
+        float weight = 0.0f;
+        float thigh = 0.0f;
+        float waist = 0.0f;
+        String comment = null;
+        while (nextStartElement()) {
+            String field = xml.getLocalName();
+            if (field.equals("weight")) {
+                weight = Float.parseFloat(xml.getElementText());
+            }
+            else if (field.equals("thigh")) {
+                thigh = Float.parseFloat(xml.getElementText());
+            }
+            else if (field.equals("waist")) {
+                waist = Float.parseFloat(xml.getElementText());
+            }
+            else if (field.equals("comment")) {
+                comment = xml.getElementText();
+            }
+            else {
+                skipElement();
+            }
+        }
+        return new Assessment(weight, thigh, waist, comment);
+    }
+
+    /*
+     * Moves to the next child element of the current element
+     * Returns false (positioned on the end of the current element) if there are no more children
+     */
+    private boolean nextStartElement() throws XMLStreamException {
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Skips over the current element and all of its children
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /*
+     * Throws an XMLStreamException if a field the person can't be created without is missing
+     */
+    private void checkPresent(String type, String field, String value) throws XMLStreamException {
+        if (value == null) {
+            throw new XMLStreamException(type + " has no " + field, xml.getLocation());
+        }
+    }
+
+    /*
+     * XStream writes a reference attribute when the same object appears twice
+     * The model never shares objects, so treat this as a file we can't stream
+     */
+    private void checkNoReference() throws XMLStreamException {
+        if (xml.getAttributeValue(null, "reference") != null) {
+            throw new XMLStreamException("Object references are not supported", xml.getLocation());
+        }
+    }
+
+    /*
+     * Closes the parser and the Reader it was reading from
+     */
+    public void close() throws XMLStreamException, IOException {
+        try {
+            xml.close();
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
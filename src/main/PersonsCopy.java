@@ -0,0 +1,46 @@
+/*
+ * Keeps a copy of the gym at one point in time while it is copied a person at a time
+ * (see GymAPI.copyPersons): a person about to be changed before they have been copied is
+ * encoded first, and the copy takes those bytes instead of the changed person
+ * Persons added after the copy started are kept too if they change, though they aren't copied,
+ * as only the persons already copied are tracked
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+
+class PersonsCopy {
+    // By identity, as the same person can be in two gyms
+    private IdentityHashMap<Person, byte[]> before = new IdentityHashMap<Person, byte[]>();
+    private IdentityHashMap<Person, Boolean> copied = new IdentityHashMap<Person, Boolean>();
+
+    /*
+     * Called before the person changes, holding their stripe's write lock
+     * Encodes the person as they are unless they have been copied, or kept, already
+     */
+    void changing(Person person) throws IOException {
+        if (needsKeeping(person)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GymSnapshot.encodePerson(bytes, person);
+            keep(person, bytes.toByteArray());
+        }
+    }
+
+    private synchronized boolean needsKeeping(Person person) {
+        return !copied.containsKey(person) && !before.containsKey(person);
+    }
+
+    private synchronized void keep(Person person, byte[] bytes) {
+        before.put(person, bytes);
+    }
+
+    /*
+     * Called as the person is copied, holding their stripe's read lock
+     * Returns the bytes the person was kept as, or null if they haven't changed since the copy started
+     */
+    synchronized byte[] copying(Person person) {
+        copied.put(person, Boolean.TRUE);
+        return before.remove(person);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Checks the rows of a CSV roster of members and trainers (see GymAPI.importCsv)
+ * and creates the person each valid row describes
+ *
+ * The first line names the columns, in any order:
+ *     type         member, premium, student or trainer
+ *     email        required, must not already be registered
+ *     name         required, longer names are cut to 30 characters
+ *     address
+ *     gender       M or F, anything else is stored as Unspecified
+ *     height       members only, between 1m and 3m
+ *     weight       members only, starting weight between 35kg and 250kg
+ *     package      required for premium members (students get their college's package)
+ *     studentid    student members only
+ *     college      required for student members
+ *     speciality   trainers only
+ * Rows are checked in batches on the threads of the common fork-join pool
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class RosterImport {
+
+    public static final String[] COLUMNS = {"type", "email", "name", "address", "gender", "height", "weight",
+            "package", "studentid", "college", "speciality"};
+    // Rows checked together on one thread
+    private static final int BATCH_SIZE = 1024;
+
+    // Position of each of COLUMNS in a row, or -1 if the file doesn't have that column
+    private int[] positions;
+
+    /*
+     * Constructor for RosterImport
+     * Throws an IOException if the header line is missing a required column
+     */
+    public RosterImport(String header) throws IOException {
+        if (header == null) {
+            throw new IOException("The roster is empty");
+        }
+        positions = new int[COLUMNS.length];
+        Arrays.fill(positions, -1);
+        ArrayList<String> names = Csv.split(header);
+        for (int i = 0; i < names.size(); i++) {
+            int column = Arrays.asList(COLUMNS).indexOf(names.get(i).trim().toLowerCase(Locale.ROOT));
+            if (column >= 0) {
+                positions[column] = i;
+            }
+        }
+        for (String required : new String[] {"type", "email", "name"}) {
+            if (positions[Arrays.asList(COLUMNS).indexOf(required)] < 0) {
+                throw new IOException("The roster has no " + required + " column");
+            }
+        }
+    }
+
+    /*
+     * A line of the roster, and either the person it describes or why it was rejected
+     */
+    public static class Row {
+        private int lineNumber;
+        private String line;
+        private Person person;
+        private String error;
+
+        Row(int lineNumber, String line, Person person, String error) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.person = person;
+            this.error = error;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        public Person getPerson() {
+            return person;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    /*
+     * Checks each line, returning a row for each one in the same order
+     * Lines are split into batches that are checked in parallel
+     */
+    public Row[] check(final List<String> lines, final int firstLineNumber) {
+        final Row[] rows = new Row[lines.size()];
+        List<Callable<Void>> batches = new ArrayList<Callable<Void>>();
+        for (int start = 0; start < lines.size(); start += BATCH_SIZE) {
+            final int from = start;
+            final int to = Math.min(lines.size(), start + BATCH_SIZE);
+            batches.add(new Callable<Void>() {
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        rows[i] = check(lines.get(i), firstLineNumber + i);
+                    }
+                    return null;
+                }
+            });
+        }
+        if (batches.size() == 1) {
+            // Not worth handing a single batch to another thread
+            for (int i = 0; i < lines.size(); i++) {
+                rows[i] = check(lines.get(i), firstLineNumber + i);
+            }
+            return rows;
+        }
+        for (Future<Void> batch : ForkJoinPool.commonPool().invokeAll(batches)) {
+            try {
+                batch.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while checking the roster", e);
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException("Could not check the roster", e.getCause());
+            }
+        }
+        return rows;
+    }
+
+    /*
+     * Checks one line, creating the person it describes if it is valid
+     * A blank line gives a row with neither a person nor an error
+     */
+    public Row check(String line, int lineNumber) {
+        if (line.trim().isEmpty()) {
+            return new Row(lineNumber, line, null, null);
+        }
+        try {
+            return new Row(lineNumber, line, createPerson(Csv.split(line)), null);
+        }
+        catch (IllegalArgumentException e) {
+            return new Row(lineNumber, line, null, e.getMessage());
+        }
+    }
+
+    private Person createPerson(ArrayList<String> fields) {
+        String type = field(fields, "type").toLowerCase(Locale.ROOT);
+        String email = field(fields, "email");
+        String name = field(fields, "name");
+        String address = field(fields, "address");
+        String gender = field(fields, "gender");
+        if (email.isEmpty()) {
+            throw new IllegalArgumentException("Email is missing");
+        }
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Name is missing");
+        }
+
+        if (type.equals("trainer")) {
+            return new Trainer(email, name, address, gender, field(fields, "speciality"));
+        }
+        if (!type.equals("member") && !type.equals("premium") && !type.equals("student")) {
+            throw new IllegalArgumentException("Unknown type: " + type);
+        }
+        // The same ranges Member's setters accept, checked here so a row isn't stored with a height of 0
+        float height = number(fields, "height");
+        if (!(height >= 1.0f && height <= 3.0f)) {
+            throw new IllegalArgumentException("Height must be between 1m and 3m");
+        }
+        float weight = number(fields, "weight");
+        if (!(weight >= 35.0f && weight <= 250.0f)) {
+            throw new IllegalArgumentException("Weight must be between 35kg and 250kg");
+        }
+        String chosenPackage = field(fields, "package");
+        if (type.equals("student")) {
+            String collegeName = field(fields, "college");
+            if (collegeName.isEmpty()) {
+                throw new IllegalArgumentException("College is missing");
+            }
+            // StudentMember picks the package from the college
+            return new StudentMember(email, name, address, gender, height, weight, chosenPackage,
+                    field(fields, "studentid"), collegeName);
+        }
+        if (type.equals("premium")) {
+            if (chosenPackage.isEmpty()) {
+                throw new IllegalArgumentException("Package is missing");
+            }
+            return new PremiumMember(email, name, address, gender, height, weight, chosenPackage);
+        }
+        return new Member(email, name, address, gender, height, weight, chosenPackage);
+    }
+
+    /*
+     * Returns the trimmed value of the column in the row, or an empty string if there is none
+     */
+    private String field(ArrayList<String> fields, String column) {
+        int position = positions[Arrays.asList(COLUMNS).indexOf(column)];
+        if (position < 0 || position >= fields.size()) {
+            return "";
+        }
+        return fields.get(position).trim();
+    }
+
+    private float number(ArrayList<String> fields, String column) {
+        String value = field(fields, column);
+        try {
+            return Float.parseFloat(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The " + column + " is not a number: " + value);
+        }
+    }
+}
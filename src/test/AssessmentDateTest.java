@@ -0,0 +1,65 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Tests for AssessmentDate class")
+public class AssessmentDateTest {
+
+    @Nested
+    @DisplayName("parse method test")
+    class Parse {
+
+        @DisplayName("Valid dates")
+        @ParameterizedTest(
+                name = "When date is {0}; epoch day should be {1} ")
+        @CsvSource({
+                "00/01/01, 10957",
+                "18/05/16, 17667",
+                "20/02/29, 18321",
+                "2018-5-16, 17667",
+                "18/5/6, 17657"
+        })
+        public void valid(String date, int epochDay) {
+            assertEquals(epochDay, AssessmentDate.parse(date), "Incorrect epoch day");
+            assertEquals(epochDay, AssessmentDate.tryParse(date), "Incorrect epoch day");
+        }
+
+        @DisplayName("Invalid dates")
+        @ParameterizedTest(name = "When date is {0}")
+        @ValueSource(strings = {"dklfadsjla", "18/02/29", "18/13/01", "18/00/10", "18/01/32", "18/01/", "1999/01/01"})
+        public void invalid(String date) {
+            assertThrows(IllegalArgumentException.class, () -> AssessmentDate.parse(date));
+            assertFalse(AssessmentDate.isValid(date), date + " should not be valid");
+            assertEquals(AssessmentDate.INVALID, AssessmentDate.tryParse(date));
+        }
+
+        @DisplayName("Dates sort in the same order as their epoch days")
+        @Test
+        public void ordering() {
+            assertTrue(AssessmentDate.parse("17/12/31") < AssessmentDate.parse("18/01/01"));
+            assertTrue(AssessmentDate.parse("18/01/31") < AssessmentDate.parse("18/02/01"));
+        }
+    }
+
+    @Nested
+    @DisplayName("normalise method test")
+    class Normalise {
+
+        @DisplayName("Dates in other formats")
+        @ParameterizedTest(
+                name = "When date is {0}; should become {1} ")
+        @CsvSource({
+                "18/05/16, 18/05/16",
+                "2018-05-16, 18/05/16",
+                "18/5/6, 18/05/06"
+        })
+        public void normalise(String date, String expected) {
+            assertEquals(expected, AssessmentDate.normalise(date));
+        }
+    }
+}
@@ -3,8 +3,31 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
-
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import javax.xml.stream.XMLStreamException;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -248,6 +271,44 @@ public class GymAPITest {
         }
     }
 
+    @Nested
+    @DisplayName("isEmailRegistered method test")
+    class EmailRegistered {
+
+        @BeforeEach
+        public void setUp() {
+            gymAPI.addMember(member1);
+            gymAPI.addTrainer(trainer1);
+        }
+
+        @DisplayName("When the email belongs to a member or a trainer")
+        @Test
+        public void registered() {
+            assertTrue(gymAPI.isEmailRegistered("email1"), "Member email is registered");
+            assertTrue(gymAPI.isEmailRegistered("emailt1"), "Trainer email is registered");
+        }
+
+        @DisplayName("When the email differs only by case")
+        @Test
+        public void mixedCase() {
+            assertTrue(gymAPI.isEmailRegistered("EMAIL1"), "Email case should be ignored");
+            assertEquals("name1", gymAPI.searchMembersByEmail("Email1").getName(), "Should have found match");
+        }
+
+        @DisplayName("When the email is not registered")
+        @Test
+        public void notRegistered() {
+            assertFalse(gymAPI.isEmailRegistered("email2"), "Email is not registered");
+        }
+
+        @DisplayName("When a trainer is added with a member's email")
+        @Test
+        public void duplicate() {
+            assertThrows(IllegalArgumentException.class,
+                    () -> gymAPI.addTrainer(new Trainer("EMAIL1", "namet9", "address9", "M", "s1")));
+        }
+    }
+
     @Nested
     @DisplayName("searchMemberByName method test")
     class SearchMemberName {
@@ -287,6 +348,28 @@ public class GymAPITest {
                 ArrayList<String> result = gymAPI.searchMembersByName("name4");
                 assertEquals(0, result.size(), "Should have found nomatchs");
             }
+
+            @DisplayName("When a member is renamed they are found by their new name only")
+            @Test
+            public void renamed() {
+                member1.setName("Mary Murphy");
+                assertEquals("[Mary Murphy]", gymAPI.searchMembersByName("murph").toString());
+                assertEquals("[name2, name3]", gymAPI.searchMembersByName("name").toString());
+                // Renaming back moves the member to the trigrams of the old name again
+                member1.setName("name1");
+                assertEquals(0, gymAPI.searchMembersByName("murph").size());
+                assertEquals("[name1]", gymAPI.searchMembersByName("name1").toString());
+            }
+
+            @DisplayName("When a member is in two gyms a rename is seen by both")
+            @Test
+            public void twoGyms() {
+                GymAPI other = new GymAPI();
+                other.addMember(member1);
+                member1.setName("Mary Murphy");
+                assertEquals("[Mary Murphy]", gymAPI.searchMembersByName("murph").toString());
+                assertEquals("[Mary Murphy]", other.searchMembersByName("murph").toString());
+            }
         }
 
         @Nested
@@ -302,6 +385,49 @@ public class GymAPITest {
         }
     }
 
+    @Nested
+    @DisplayName("NameIndex class test")
+    class NameIndexes {
+
+        @DisplayName("Should find a name by any part of it, ignoring case")
+        @Test
+        public void search() {
+            NameIndex index = new NameIndex();
+            index.add(member1);
+            index.add(member2);
+            member2.setName("Anne Smith");
+            assertEquals(1, index.search("SMI").size());
+            assertEquals(1, index.search("name").size());
+            assertEquals(2, index.search("").size());
+            assertEquals(0, index.search("name2").size());
+        }
+
+        @DisplayName("Should forget every person when cleared, and no longer follow their renames")
+        @Test
+        public void clear() {
+            NameIndex index = new NameIndex();
+            index.add(member1);
+            index.clear();
+            member1.setName("Anne Smith");
+            assertEquals(0, index.search("").size());
+            assertEquals(0, index.search("smi").size());
+        }
+
+        @DisplayName("Should keep following renames when another index the person is in is cleared")
+        @Test
+        public void clearOther() {
+            NameIndex index = new NameIndex();
+            NameIndex other = new NameIndex();
+            index.add(member1);
+            other.add(member1);
+            other.clear();
+            member1.setName("Anne Smith");
+            assertEquals(1, index.search("smi").size());
+            assertEquals(0, index.search("name1").size());
+            assertEquals(0, other.search("smi").size());
+        }
+    }
+
     @Nested
     @DisplayName("searchTrainerByEmail method test")
     class SearchTrainerEmail {
@@ -458,6 +584,25 @@ public class GymAPITest {
                 ArrayList<Member> result = gymAPI.listMembersWithIdealWeight();
                 assertEquals(0, result.size(), "Array should be empty");
             }
+
+            @DisplayName("When the scan is split between threads the order should be kept")
+            @Test
+            public void parallel() {
+                for (int i = 0; i < 5000; i++) {
+                    Member member = new Member("emailp" + i, "namep" + i, "address", "M",
+                            2.0f, 90.0f, "Package 1");
+                    gymAPI.addMember(member);
+                    // Every third member is at their ideal weight
+                    member.getAssessments().put("18/01/01",
+                            new Assessment(i % 3 == 0 ? 93.2f : 98.5f, 0.0f, 0.0f, "comment"));
+                }
+                gymAPI.setParallelScanThreshold(Integer.MAX_VALUE);
+                ArrayList<Member> sequential = gymAPI.listMembersWithIdealWeight();
+                gymAPI.setParallelScanThreshold(0);
+                ArrayList<Member> parallel = gymAPI.listMembersWithIdealWeight();
+                assertEquals(1667, sequential.size());
+                assertEquals(sequential, parallel);
+            }
         }
 
         @Nested
@@ -473,6 +618,86 @@ public class GymAPITest {
         }
     }
 
+    @Nested
+    @DisplayName("statistics method test")
+    class Statistics {
+
+        @DisplayName("Should group the members by package, college and gender")
+        @Test
+        public void groups() {
+            StudentMember student = new StudentMember("emails", "names", "address", "M", 2.0f, 80.0f, "WIT",
+                    "s1", "WIT");
+            gymAPI.addMember(member1);
+            gymAPI.addMember(member2);
+            gymAPI.addMember(member3);
+            gymAPI.addMember(student);
+            // member1 is 1.5m and goes from 100kg (SEVERELY OBESE) to 90kg, losing 4 from their waist
+            gymAPI.addAssessment(member1, "18/01/01", new Assessment(100.0f, 50.0f, 70.0f, "comment1"));
+            gymAPI.addAssessment(member1, "18/01/08", new Assessment(95.0f, 50.0f, 68.0f, "comment2"));
+            gymAPI.addAssessment(member1, "18/01/15", new Assessment(90.0f, 50.0f, 66.0f, "comment3"));
+            // member2 is 1.4m, 40kg is NORMAL, and one assessment isn't a change
+            gymAPI.addAssessment(member2, "18/01/01", new Assessment(40.0f, 50.0f, 70.0f, "comment1"));
+            // The student is 2m and goes from 80kg to 84kg (NORMAL)
+            gymAPI.addAssessment(student, "18/01/01", new Assessment(80.0f, 50.0f, 80.0f, "comment1"));
+            gymAPI.addAssessment(student, "18/01/08", new Assessment(84.0f, 50.0f, 81.0f, "comment2"));
+
+            GymStats stats = gymAPI.statistics();
+            GymStats.Group package1 = stats.getByPackage().get("Package 1");
+            assertEquals(3, package1.getMembers());
+            assertEquals(1, package1.getCategoryCount(BMICategory.SEVERELY_OBESE));
+            assertEquals(1, package1.getCategoryCount(BMICategory.NORMAL));
+            assertEquals(1, package1.getMembersWithChanges());
+            assertEquals(-10.0, package1.getAverageWeightChange(), 0.0001);
+            assertEquals(-4.0, package1.getAverageWaistChange(), 0.0001);
+
+            assertEquals("[WIT]", stats.getByCollege().keySet().toString());
+            assertEquals(1, stats.getByCollege().get("WIT").getCategoryCount(BMICategory.NORMAL));
+            assertEquals("[F, M]", stats.getByGender().keySet().toString());
+            GymStats.Group male = stats.getByGender().get("M");
+            assertEquals(2, male.getMembers());
+            assertEquals(4.0, male.getAverageWeightChange(), 0.0001);
+            assertEquals("[Package 1, WIT]", stats.getByPackage().keySet().toString());
+            assertTrue(stats.toString().contains("  F: 2 members, average weight change -10.0 kg, average waist change -4.0\n"));
+        }
+
+        @DisplayName("When the members are split between threads the statistics should be the same")
+        @Test
+        public void parallel() {
+            for (int i = 0; i < 5000; i++) {
+                Member member = new Member("emailp" + i, "namep" + i, "address", i % 2 == 0 ? "M" : "F",
+                        1.5f + (i % 50) / 100.0f, 90.0f, "Package " + (i % 3 + 1));
+                gymAPI.addMember(member);
+                if (i % 7 != 0) {
+                    member.getAssessments().put("18/01/01", new Assessment(60.0f + i % 40, 0.0f, 80.0f, "comment"));
+                    member.getAssessments().put("18/01/08", new Assessment(60.0f + i % 41, 0.0f, 79.5f, "comment"));
+                }
+            }
+            gymAPI.setParallelScanThreshold(Integer.MAX_VALUE);
+            GymStats sequential = gymAPI.statistics();
+            gymAPI.setParallelScanThreshold(0);
+            GymStats parallel = gymAPI.statistics();
+            assertEquals(sequential.getByPackage().keySet(), parallel.getByPackage().keySet());
+            for (String name : sequential.getByPackage().keySet()) {
+                GymStats.Group expected = sequential.getByPackage().get(name);
+                GymStats.Group actual = parallel.getByPackage().get(name);
+                assertEquals(expected.getMembers(), actual.getMembers());
+                for (BMICategory category : BMICategory.values()) {
+                    assertEquals(expected.getCategoryCount(category), actual.getCategoryCount(category));
+                }
+                assertEquals(expected.getAverageWeightChange(), actual.getAverageWeightChange(), 1e-9);
+            }
+            assertEquals(5000, sequential.getByGender().get("M").getMembers() + sequential.getByGender().get("F").getMembers());
+        }
+
+        @DisplayName("When there are no members (Boundary)")
+        @Test
+        public void noMembers() {
+            assertTrue(gymAPI.statistics().getByPackage().isEmpty());
+            assertEquals("By package\n  No members\nBy college\n  No members\nBy gender\n  No members\n",
+                    gymAPI.statistics().toString());
+        }
+    }
+
     @Nested
     @DisplayName("listMembersBySpecificBMICategory method test")
     class ListMembersBySpecificBMICategory {
@@ -541,6 +766,41 @@ public class GymAPITest {
                         gymAPI.listMembersBySpecificBMICategory("Foo");
                 assertEquals(0, result.size());
             }
+
+            @DisplayName("When a member's latest assessment moves them to another category")
+            @Test
+            public void changed() {
+                member1.getAssessments().put("18/02/01",
+                        new Assessment(80.0f, 0.0f, 0.0f, "comment3"));
+                ArrayList<Member> result =
+                        gymAPI.listMembersBySpecificBMICategory("OBESE");
+                assertEquals(1, result.size());
+                assertEquals("name3", result.get(0).getName());
+                assertEquals(1, gymAPI.numberOfMembersInBMICategory("NORMAL"));
+                assertEquals(1, gymAPI.numberOfMembersInBMICategory("UNDERWEIGHT"));
+            }
+
+            @DisplayName("When a member in two gyms moves to another category, both gyms follow")
+            @Test
+            public void twoGyms() {
+                GymAPI other = new GymAPI();
+                other.addMember(member1);
+                gymAPI.addAssessment(member1, "18/02/01", new Assessment(200.0f, 0.0f, 0.0f, "comment3"));
+                assertEquals(2, gymAPI.numberOfMembersInBMICategory("SEVERELY OBESE"));
+                assertEquals(1, other.numberOfMembersInBMICategory("SEVERELY OBESE"));
+                assertEquals("name1", other.listMembersBySpecificBMICategory("OBESE").get(0).getName());
+            }
+
+            @DisplayName("When another index a member is in is cleared, the gym still follows them")
+            @Test
+            public void clearOther() {
+                BMIIndex other = new BMIIndex();
+                other.add(member1);
+                other.clear();
+                gymAPI.addAssessment(member1, "18/02/01", new Assessment(80.0f, 0.0f, 0.0f, "comment3"));
+                assertEquals(1, gymAPI.numberOfMembersInBMICategory("NORMAL"));
+                assertEquals(0, other.countInCategory("NORMAL"));
+            }
         }
 
         @Nested
@@ -598,6 +858,14 @@ public class GymAPITest {
                         && members[0].contains("84 inches"));
 
             }
+
+            @DisplayName("Should write the same string to a Writer")
+            @Test
+            public void streamed() throws IOException {
+                StringWriter writer = new StringWriter();
+                gymAPI.listMemberDetailsImperialAndMetric(writer);
+                assertEquals(gymAPI.listMemberDetailsImperialAndMetric(), writer.toString());
+            }
         }
 
         @Nested
@@ -612,4 +880,1146 @@ public class GymAPITest {
             }
         }
     }
-}
\ No newline at end of file
+
+    @Nested
+    @DisplayName("assessmentProgressByWeight method test")
+    class AssessmentProgressByWeight {
+
+        @BeforeEach
+        public void setUp() {
+            gymAPI.addMember(member1);
+            member1.getAssessments().put("18/01/05",
+                    new Assessment(90.0f, 0.0f, 0.0f, "comment2"));
+            member1.getAssessments().put("18/01/01",
+                    new Assessment(100.0f, 0.0f, 0.0f, "comment1"));
+            member1.getAssessments().put("18/01/09",
+                    new Assessment(95.5f, 0.0f, 0.0f, "comment3"));
+            member1.getAssessments().put("18/01/12",
+                    new Assessment(95.5f, 0.0f, 0.0f, "comment4"));
+        }
+
+        @DisplayName("Should list the assessments from oldest to latest with arrows")
+        @Test
+        public void arrows() {
+            assertEquals("18/01/01: weight - 100.0\n"
+                    + "18/01/05: weight - 90.0 \u2193\n"
+                    + "18/01/09: weight - 95.5 \u2191\n"
+                    + "18/01/12: weight - 95.5 \u2192\n", gymAPI.assessmentProgressByWeight(member1));
+        }
+
+        @DisplayName("Should write the same string to a Writer")
+        @Test
+        public void streamed() throws IOException {
+            StringWriter writer = new StringWriter();
+            gymAPI.assessmentProgressByWeight(member1, writer);
+            assertEquals(gymAPI.assessmentProgressByWeight(member1), writer.toString());
+        }
+    }
+
+    @Nested
+    @DisplayName("Concurrent access tests")
+    class Concurrent {
+
+        @DisplayName("getMembers should return a read only list")
+        @Test
+        public void readOnly() {
+            gymAPI.addMember(member1);
+            List<Member> members = gymAPI.getMembers();
+            assertThrows(UnsupportedOperationException.class, () -> members.add(member2));
+            gymAPI.addMember(member2);
+            assertEquals(1, members.size(), "Copy should not change when members are added");
+        }
+
+        @DisplayName("When members and assessments are added while other threads search and list")
+        @Test
+        public void addWhileReading() throws Exception {
+            int writers = 4;
+            int membersPerWriter = 200;
+            ExecutorService executor = Executors.newFixedThreadPool(writers + 2);
+            AtomicBoolean writing = new AtomicBoolean(true);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int w = 0; w < writers; w++) {
+                final int writer = w;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < membersPerWriter; i++) {
+                        Member member = new Member("email" + writer + "-" + i, "name" + writer + "-" + i,
+                                "address", "F", 1.6f, 60.0f, "Package 1");
+                        gymAPI.addMember(member);
+                        gymAPI.addAssessment(member, "18/01/01", new Assessment(60.0f, 0.0f, 0.0f, "comment"));
+                        gymAPI.addAssessment(member, "18/02/01", new Assessment(85.0f, 0.0f, 0.0f, "comment"));
+                    }
+                    return null;
+                }));
+            }
+            for (int r = 0; r < 2; r++) {
+                futures.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        gymAPI.listMembersWithIdealWeight();
+                        gymAPI.listMembersBySpecificBMICategory("OBESE");
+                        gymAPI.searchMembersByName("name1-");
+                        gymAPI.listMemberDetailsImperialAndMetric();
+                    }
+                    return null;
+                }));
+            }
+            for (int w = 0; w < writers; w++) {
+                futures.get(w).get(30, TimeUnit.SECONDS);
+            }
+            writing.set(false);
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+
+            assertEquals(writers * membersPerWriter, gymAPI.numberOfMembers());
+            assertEquals(membersPerWriter, gymAPI.searchMembersByName("name1-").size());
+            // Every member's latest assessment (85kg at 1.6m) is moderately obese
+            assertEquals(writers * membersPerWriter, gymAPI.numberOfMembersInBMICategory("MODERATELY OBESE"));
+            assertEquals(0, gymAPI.listMembersWithIdealWeight().size());
+        }
+    }
+
+    @Nested
+    @DisplayName("storeSegments method test")
+    class StoreSegments {
+
+        @TempDir
+        File directory;
+
+        @BeforeEach
+        public void setUp() throws IOException {
+            for (int i = 0; i < 100; i++) {
+                Member member = new Member("email" + i, "name" + i, "address", "F", 1.6f, 60.0f, "Package 1");
+                gymAPI.addMember(member);
+                gymAPI.addAssessment(member, "18/01/01", new Assessment(60.0f + i, 0.0f, 0.0f, "comment" + i));
+            }
+            gymAPI.addTrainer(trainer1);
+            gymAPI.openSegments(directory.getPath());
+        }
+
+        @DisplayName("Should only rewrite the segment of the member that changed")
+        @Test
+        public void onlyChanged() throws IOException {
+            assertTrue(gymAPI.storeSegments() > 1);
+            assertEquals(0, gymAPI.storeSegments(), "Nothing changed since the last store");
+            gymAPI.editAssessmentComment(gymAPI.searchMembersByEmail("email42"), "18/01/01", "edited");
+            assertEquals(1, gymAPI.storeSegments());
+        }
+
+        @DisplayName("Should load the same members and trainers in the same order")
+        @Test
+        public void roundTrip() throws IOException {
+            gymAPI.storeSegments();
+            gymAPI.editAssessmentComment(gymAPI.searchMembersByEmail("email42"), "18/01/01", "edited");
+            Member added = new Member("email100", "name100", "address", "M", 1.8f, 80.0f, "Package 2");
+            gymAPI.addMember(added);
+            gymAPI.storeSegments();
+
+            GymAPI loaded = new GymAPI();
+            loaded.openSegments(directory.getPath());
+            assertEquals(101, loaded.numberOfMembers());
+            assertEquals(1, loaded.numberOfTrainerss());
+            for (int i = 0; i <= 100; i++) {
+                assertEquals("email" + i, loaded.getMembers().get(i).getEmail());
+            }
+            assertEquals("edited", loaded.searchMembersByEmail("email42").latestAssessment().getComment());
+            assertEquals(102.0f, loaded.searchMembersByEmail("email42").latestAssessment().getWeight());
+            assertEquals("namet1", loaded.searchTrainersByEmail("emailt1").getName());
+        }
+    }
+
+    @Nested
+    @DisplayName("openJournal method test")
+    class Journal {
+
+        @TempDir
+        File directory;
+
+        @BeforeEach
+        public void setUp() throws Exception {
+            gymAPI.addMember(member1);
+            gymAPI.openJournal(file("gym.dat"), file("gym.journal"));
+        }
+
+        private String file(String name) {
+            return new File(directory, name).getPath();
+        }
+
+        private GymAPI reopen() throws Exception {
+            gymAPI.closeJournal();
+            GymAPI reopened = new GymAPI();
+            reopened.openJournal(file("gym.dat"), file("gym.journal"));
+            return reopened;
+        }
+
+        private void makeChanges() {
+            gymAPI.addMember(new StudentMember("email2", "name2", "address2", "M", 1.8f, 80.0f, "WIT",
+                    "s1234", "WIT"));
+            gymAPI.addTrainer(trainer1);
+            gymAPI.addAssessment(member1, "18/01/05", new Assessment(90.0f, 50.0f, 70.0f, "comment1"));
+            gymAPI.addAssessment(member1, "18/01/01", new Assessment(100.0f, 51.0f, 71.0f, null));
+            gymAPI.editAssessmentComment(member1, "18/01/01", "edited");
+            member1.setName("renamed");
+            member1.setHeight(1.8f);
+            gymAPI.updatePerson(member1);
+            trainer1.setSpeciality("s2");
+            gymAPI.updatePerson(trainer1);
+        }
+
+        private void assertChanges(GymAPI reopened) {
+            assertEquals(2, reopened.numberOfMembers());
+            assertEquals(1, reopened.numberOfTrainerss());
+            Member member = reopened.searchMembersByEmail("email1");
+            assertEquals("renamed", member.getName());
+            assertEquals(1.8f, member.getHeight());
+            assertEquals("[renamed]", reopened.searchMembersByName("rena").toString());
+            assertEquals("[18/01/01, 18/01/05]", member.sortedAssessmentDates().toString());
+            assertEquals("edited", member.getAssessments().get("18/01/01").getComment());
+            assertEquals(90.0f, member.latestAssessment().getWeight());
+            assertEquals("WIT", reopened.searchMembersByEmail("email2").getChosenPackage());
+            assertEquals("s2", reopened.searchTrainersByEmail("emailt1").getSpeciality());
+        }
+
+        @DisplayName("Should replay every change made since the snapshot")
+        @Test
+        public void replay() throws Exception {
+            makeChanges();
+            assertTrue(new File(file("gym.journal")).length() > 0);
+            assertChanges(reopen());
+        }
+
+        @DisplayName("Should journal changes made straight to a member's assessments")
+        @Test
+        public void direct() throws Exception {
+            Map<String, Assessment> assessments = member1.getAssessments();
+            assessments.put("18/01/01", new Assessment(100.0f, 51.0f, 71.0f, "comment1"));
+            assessments.put("18/01/05", new Assessment(90.0f, 50.0f, 70.0f, "comment2"));
+            assessments.put("18/01/09", null);
+            assessments.get("18/01/05").setWeight(91.0f);
+            assessments.get("18/01/05").setComment("edited");
+            assessments.remove("18/01/01");
+            assertEquals(7, gymAPI.changeCount());
+
+            Member member = reopen().searchMembersByEmail("email1");
+            assertEquals("[18/01/05, 18/01/09]", member.sortedAssessmentDates().toString());
+            assertEquals(91.0f, member.getAssessments().get("18/01/05").getWeight());
+            assertEquals("edited", member.getAssessments().get("18/01/05").getComment());
+            assertTrue(member.getAssessments().containsKey("18/01/09"));
+            assertNull(member.getAssessments().get("18/01/09"));
+        }
+
+        @DisplayName("Should journal clearing a member's assessments")
+        @Test
+        public void directClear() throws Exception {
+            gymAPI.addAssessment(member1, "18/01/01", new Assessment(100.0f, 51.0f, 71.0f, "comment1"));
+            member1.getAssessments().clear();
+            gymAPI.addAssessment(member1, "18/01/05", new Assessment(90.0f, 50.0f, 70.0f, "comment2"));
+            assertEquals("[18/01/05]", reopen().searchMembersByEmail("email1").sortedAssessmentDates().toString());
+        }
+
+        @DisplayName("Should only journal the details when a person is updated")
+        @Test
+        public void update() throws Exception {
+            for (int day = 1; day <= 28; day++) {
+                gymAPI.addAssessment(member1, String.format("18/02/%02d", day),
+                        new Assessment(90.0f, 50.0f, 70.0f, "a long comment on the member's progress"));
+            }
+            long before = new File(file("gym.journal")).length();
+            member1.setAddress("address2");
+            gymAPI.updatePerson(member1);
+            assertTrue(new File(file("gym.journal")).length() - before < 100, "Assessments were journaled again");
+            GymAPI reopened = reopen();
+            assertEquals("address2", reopened.searchMembersByEmail("email1").getAddress());
+            assertEquals(28, reopened.searchMembersByEmail("email1").getAssessments().size());
+        }
+
+        @DisplayName("Should drop a record torn by a crash and carry on after the last whole one")
+        @Test
+        public void torn() throws Exception {
+            makeChanges();
+            gymAPI.closeJournal();
+            long length = new File(file("gym.journal")).length();
+            // A record whose body was cut off part way
+            FileOutputStream out = new FileOutputStream(file("gym.journal"), true);
+            out.write(new byte[] {0, 0, 0, 40, GymJournal.ADD_ASSESSMENT, 1, 2, 3});
+            out.close();
+
+            GymAPI reopened = new GymAPI();
+            reopened.openJournal(file("gym.dat"), file("gym.journal"));
+            assertEquals(length, new File(file("gym.journal")).length());
+            assertChanges(reopened);
+            Member member = reopened.searchMembersByEmail("email1");
+            reopened.addAssessment(member, "18/01/12", new Assessment(80.0f, 50.0f, 70.0f, "after"));
+            reopened.closeJournal();
+
+            GymAPI again = new GymAPI();
+            again.openJournal(file("gym.dat"), file("gym.journal"));
+            assertEquals("after", again.searchMembersByEmail("email1").latestAssessment().getComment());
+        }
+
+        @DisplayName("Should not mistake a record of an unknown type for a torn one")
+        @Test
+        public void unknownType() throws Exception {
+            makeChanges();
+            gymAPI.closeJournal();
+            long length = new File(file("gym.journal")).length();
+            byte[] body = {99};
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file("gym.journal"), true));
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeInt((int) crc.getValue());
+            out.close();
+
+            IOException e = assertThrows(IOException.class,
+                    () -> new GymAPI().openJournal(file("gym.dat"), file("gym.journal")));
+            assertFalse(e instanceof EOFException);
+            assertTrue(e.getMessage().contains("99"));
+            assertEquals(length + 9, new File(file("gym.journal")).length(), "The journal should be left as it was");
+        }
+
+        @DisplayName("Should skip and report a journaled assessment whose date can't be read")
+        @Test
+        public void badDate() throws Exception {
+            makeChanges();
+            gymAPI.closeJournal();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(GymJournal.ADD_ASSESSMENT);
+            GymSnapshot.writeString(record, "email1");
+            GymSnapshot.writeString(record, "18/13/45");
+            record.writeFloat(80.0f);
+            record.writeFloat(50.0f);
+            record.writeFloat(70.0f);
+            GymSnapshot.writeString(record, "bad");
+            byte[] body = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file("gym.journal"), true));
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeInt((int) crc.getValue());
+            out.close();
+
+            GymAPI reopened = reopen();
+            assertChanges(reopened);
+            assertEquals("[Skipped the assessment of email1 dated '18/13/45']", reopened.skippedAssessments().toString());
+        }
+
+        @DisplayName("Should keep every change made before and after the journal is compacted")
+        @Test
+        public void compaction() throws Exception {
+            gymAPI.setJournalCompactionThreshold(200);
+            makeChanges();
+            for (int day = 1; day <= 28; day++) {
+                gymAPI.addAssessment(gymAPI.searchMembersByEmail("email2"), String.format("18/02/%02d", day),
+                        new Assessment(80.0f - day, 50.0f, 70.0f, "comment" + day));
+            }
+            assertTrue(new File(file("gym.journal")).length() <= 200 + 100, "The journal wasn't compacted");
+            GymAPI reopened = reopen();
+            assertChanges(reopened);
+            Member member = reopened.searchMembersByEmail("email2");
+            assertEquals(28, member.getAssessments().size());
+            assertEquals("comment28", member.latestAssessment().getComment());
+        }
+
+        @DisplayName("Should not add a person whose email is registered, or journal them")
+        @Test
+        public void duplicate() throws Exception {
+            long length = new File(file("gym.journal")).length();
+            assertThrows(IllegalArgumentException.class,
+                    () -> gymAPI.addTrainer(new Trainer("EMAIL1", "name", "address", "M", "s1")));
+            assertEquals(length, new File(file("gym.journal")).length());
+            assertEquals(0, gymAPI.numberOfTrainerss());
+        }
+    }
+
+    @Nested
+    @DisplayName("storeSnapshot and loadSnapshot method test")
+    class Snapshot {
+
+        @TempDir
+        File directory;
+
+        @BeforeEach
+        public void setUp() {
+            gymAPI.addMember(member1);
+            gymAPI.addMember(new StudentMember("email2", "name2", "address2", "M", 1.8f, 80.0f, "WIT",
+                    "s1234", "WIT"));
+            gymAPI.addMember(new PremiumMember("email3", "name3", "address3", "F", 1.7f, 70.0f, "Package 2"));
+            gymAPI.addTrainer(trainer1);
+            gymAPI.addAssessment(member1, "18/01/05", new Assessment(90.0f, 50.0f, 70.0f, null));
+            gymAPI.addAssessment(member1, "18/01/01", new Assessment(100.0f, 51.0f, 71.0f, "comment1"));
+            gymAPI.addAssessment(member1, "18/01/12", new Assessment(60.0f, 52.0f, 72.0f, "comment1"));
+        }
+
+        private String file(String name) {
+            return new File(directory, name).getPath();
+        }
+
+        private void assertSameGym(GymAPI loaded) {
+            assertEquals(gymAPI.numberOfMembers(), loaded.numberOfMembers());
+            assertEquals(gymAPI.numberOfTrainerss(), loaded.numberOfTrainerss());
+            for (int i = 0; i < gymAPI.numberOfMembers(); i++) {
+                Member member = gymAPI.getMembers().get(i);
+                Member loadedMember = loaded.getMembers().get(i);
+                assertEquals(member.getClass(), loadedMember.getClass());
+                assertEquals(member.toString(), loadedMember.toString());
+                assertEquals(member.getAssessments().toString(), loadedMember.getAssessments().toString());
+            }
+            for (int i = 0; i < gymAPI.numberOfTrainerss(); i++) {
+                assertEquals(gymAPI.getTrainers().get(i).toString(), loaded.getTrainers().get(i).toString());
+            }
+        }
+
+        @DisplayName("Should load the same members, trainers and assessments that were stored")
+        @Test
+        public void roundTrip() throws Exception {
+            gymAPI.storeSnapshot(file("gym.dat"));
+            GymAPI loaded = new GymAPI();
+            loaded.loadSnapshot(file("gym.dat"));
+            assertSameGym(loaded);
+            GymAPI lazy = new GymAPI();
+            lazy.loadSnapshot(file("gym.dat"), true);
+            assertSameGym(lazy);
+        }
+
+        @DisplayName("Should still load a version 1 snapshot (dates stored as strings)")
+        @Test
+        public void version1() throws Exception {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file("gym.dat")));
+            try {
+                out.writeInt(GymSnapshot.MAGIC);
+                out.writeShort(1);
+                out.writeInt(gymAPI.numberOfMembers() + gymAPI.numberOfTrainerss());
+                for (Person person : GymAPI.personsList(gymAPI.getMembers(), gymAPI.getTrainers())) {
+                    GymSnapshot.writePerson(out, person, 1);
+                }
+            }
+            finally {
+                out.close();
+            }
+            GymAPI loaded = new GymAPI();
+            loaded.loadSnapshot(file("gym.dat"));
+            assertSameGym(loaded);
+            GymAPI lazy = new GymAPI();
+            lazy.loadSnapshot(file("gym.dat"), true);
+            assertEquals("comment1", lazy.searchMembersByEmail("email1").latestAssessment().getComment());
+            assertSameGym(lazy);
+        }
+
+        @DisplayName("Should skip and report a version 1 assessment whose date can't be read, and load the rest")
+        @Test
+        public void version1BadDate() throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(GymSnapshot.MAGIC);
+            out.writeShort(1);
+            out.writeInt(gymAPI.numberOfMembers() + gymAPI.numberOfTrainerss());
+            for (Person person : GymAPI.personsList(gymAPI.getMembers(), gymAPI.getTrainers())) {
+                GymSnapshot.writePerson(out, person, 1);
+            }
+            // Version 1 stored dates as strings, which weren't checked when they were written
+            String snapshot = new String(bytes.toByteArray(), "ISO-8859-1");
+            Files.write(new File(file("gym.dat")).toPath(), snapshot.replace("18/01/05", "18/13/45").getBytes("ISO-8859-1"));
+            String report = "[Skipped the assessment of email1 dated '18/13/45']";
+
+            GymAPI loaded = new GymAPI();
+            loaded.loadSnapshot(file("gym.dat"));
+            assertEquals("[18/01/01, 18/01/12]", loaded.searchMembersByEmail("email1").sortedAssessmentDates().toString());
+            assertEquals(3, loaded.numberOfMembers());
+            assertEquals(report, loaded.skippedAssessments().toString());
+            GymAPI lazy = new GymAPI();
+            lazy.loadSnapshot(file("gym.dat"), true);
+            assertEquals("[18/01/01, 18/01/12]", lazy.searchMembersByEmail("email1").sortedAssessmentDates().toString());
+            assertEquals(report, lazy.skippedAssessments().toString());
+        }
+
+        @DisplayName("Should convert the members and trainers XML files into the same gym")
+        @Test
+        public void convertXml() throws Exception {
+            gymAPI.store(file("members.xml"), file("trainers.xml"));
+            GymSnapshot.convertXml(file("members.xml"), file("trainers.xml"), file("gym.dat"));
+            GymAPI loaded = new GymAPI();
+            loaded.loadSnapshot(file("gym.dat"));
+            assertSameGym(loaded);
+        }
+
+        @DisplayName("Should not load a file that isn't a snapshot")
+        @Test
+        public void notSnapshot() throws Exception {
+            gymAPI.store(file("persons.xml"));
+            IOException e = assertThrows(IOException.class, () -> new GymAPI().loadSnapshot(file("persons.xml")));
+            assertTrue(e.getMessage().contains("is not a gym snapshot"));
+        }
+
+        @DisplayName("Should throw an IOException rather than run out of memory for a damaged string length")
+        @Test
+        public void damagedLength() throws Exception {
+            for (int length : new int[] {Integer.MAX_VALUE, -5}) {
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(file("gym.dat")));
+                try {
+                    out.writeInt(GymSnapshot.MAGIC);
+                    out.writeShort(GymSnapshot.VERSION);
+                    out.writeLong(1);
+                    out.writeInt(1);
+                    out.writeByte(GymSnapshot.TRAINER);
+                    // The email's length, with nowhere near that many bytes after it
+                    GymSnapshot.writeVarInt(out, length);
+                    out.write(new byte[100]);
+                }
+                finally {
+                    out.close();
+                }
+                assertThrows(IOException.class, () -> new GymAPI().loadSnapshot(file("gym.dat")));
+                assertThrows(IOException.class, () -> new GymAPI().loadSnapshot(file("gym.dat"), true));
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("loadSnapshot method test (lazy assessments)")
+    class LoadSnapshotLazily {
+
+        @TempDir
+        File directory;
+
+        GymAPI loaded;
+
+        @BeforeEach
+        public void setUp() throws Exception {
+            gymAPI.addMember(member1);
+            gymAPI.addMember(new PremiumMember("email2", "name2", "address2", "M", 1.8f, 80.0f, "Package 2"));
+            gymAPI.addTrainer(trainer1);
+            gymAPI.addAssessment(member1, "18/01/05", new Assessment(90.0f, 50.0f, 70.0f, "comment2"));
+            gymAPI.addAssessment(member1, "18/01/12", new Assessment(60.0f, 50.0f, 70.0f, "comment3"));
+            gymAPI.addAssessment(member1, "18/01/01", new Assessment(100.0f, 50.0f, 70.0f, "comment1"));
+            gymAPI.storeSnapshot(file("gym.dat"));
+            loaded = new GymAPI();
+            loaded.loadSnapshot(file("gym.dat"), true);
+        }
+
+        private String file(String name) {
+            return new File(directory, name).getPath();
+        }
+
+        @DisplayName("Should only read the latest assessment until the rest are needed")
+        @Test
+        public void latestOnly() {
+            Member member = loaded.searchMembersByEmail("email1");
+            assertFalse(member.assessmentsLoaded());
+            assertEquals("comment3", member.latestAssessment().getComment());
+            // 60kg at 1.5m
+            assertEquals(1, loaded.numberOfMembersInBMICategory("OVERWEIGHT"));
+            assertFalse(member.assessmentsLoaded());
+
+            // A change to the latest assessment before the rest are read shouldn't be lost
+            Assessment latest = member.latestAssessment();
+            latest.setComment("edited");
+            assertEquals("[18/01/01, 18/01/05, 18/01/12]", member.sortedAssessmentDates().toString());
+            assertTrue(member.assessmentsLoaded());
+            assertEquals("edited", member.getAssessments().get("18/01/12").getComment());
+            // nor one made through it afterwards
+            latest.setComment("edited again");
+            assertEquals("edited again", member.latestAssessment().getComment());
+        }
+
+        @DisplayName("A change to the latest assessment should be stored before the rest are read")
+        @Test
+        public void storeChangedLatest() throws Exception {
+            Member member = loaded.searchMembersByEmail("email1");
+            member.latestAssessment().setComment("edited");
+            member.latestAssessment().setWeight(61.0f);
+            loaded.storeSnapshot(file("copy.dat"));
+            assertFalse(member.assessmentsLoaded());
+
+            GymAPI copy = new GymAPI();
+            copy.loadSnapshot(file("copy.dat"));
+            Member copied = copy.searchMembersByEmail("email1");
+            assertEquals("edited", copied.latestAssessment().getComment());
+            assertEquals(61.0f, copied.latestAssessment().getWeight());
+            assertEquals("comment2", copied.getAssessments().get("18/01/05").getComment());
+            assertEquals(3, copied.getAssessments().size());
+        }
+
+        @DisplayName("Exporting the assessments should not keep them in memory")
+        @Test
+        public void export() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            assertEquals(3, loaded.exportAssessments(Channels.newChannel(bytes), new GymExport(GymExport.Format.CSV)));
+            assertTrue(bytes.toString("UTF-8").contains("email1,18/01/05,90.0,50.0,70.0,comment2\n"));
+            assertFalse(loaded.searchMembersByEmail("email1").assessmentsLoaded());
+        }
+
+        @DisplayName("Should write the same files as a gym that was loaded eagerly")
+        @Test
+        public void storeUnloaded() throws Exception {
+            loaded.storeSnapshot(file("copy.dat"));
+            byte[] snapshot = Files.readAllBytes(new File(file("gym.dat")).toPath());
+            byte[] copy = Files.readAllBytes(new File(file("copy.dat")).toPath());
+            // Each snapshot written gets a new generation (the 8 bytes after the magic and version)
+            assertNotEquals(GymSnapshot.generation(file("gym.dat")), GymSnapshot.generation(file("copy.dat")));
+            assertArrayEquals(Arrays.copyOfRange(snapshot, 0, 6), Arrays.copyOfRange(copy, 0, 6));
+            assertArrayEquals(Arrays.copyOfRange(snapshot, 14, snapshot.length), Arrays.copyOfRange(copy, 14, copy.length));
+            assertFalse(loaded.searchMembersByEmail("email1").assessmentsLoaded());
+
+            gymAPI.store(file("members.xml"), file("trainers.xml"));
+            loaded.store(file("loaded-members.xml"), file("loaded-trainers.xml"));
+            assertArrayEquals(Files.readAllBytes(new File(file("members.xml")).toPath()),
+                    Files.readAllBytes(new File(file("loaded-members.xml")).toPath()));
+        }
+    }
+
+    @Nested
+    @DisplayName("archiveAssessments method test")
+    class ArchiveAssessments {
+
+        @TempDir
+        File directory;
+
+        @BeforeEach
+        public void setUp() {
+            gymAPI.addMember(member1);
+            gymAPI.addMember(member2);
+            gymAPI.addAssessment(member1, "18/01/05", new Assessment(90.0f, 50.0f, 70.0f, null));
+            gymAPI.addAssessment(member1, "18/01/12", new Assessment(60.0f, 51.0f, 69.0f, "comment3"));
+            gymAPI.addAssessment(member1, "18/01/01", new Assessment(100.0f, 52.0f, 71.0f, "comment1"));
+        }
+
+        private String file(String name) {
+            return new File(directory, name).getPath();
+        }
+
+        private boolean archived(Member member) {
+            return ((AssessmentMap) member.getAssessments()).isArchived();
+        }
+
+        @DisplayName("Should read the same assessments from the archive")
+        @Test
+        public void sameAssessments() throws IOException {
+            String progress = gymAPI.assessmentProgressByWeight(member1) + gymAPI.assessmentProgressByWaist(member1);
+            Assessment held = member1.getAssessments().get("18/01/12");
+            // member2 has no assessments to archive
+            assertEquals(1, gymAPI.archiveAssessments(file("gym.archive")));
+            assertTrue(archived(member1));
+
+            assertEquals(progress, gymAPI.assessmentProgressByWeight(member1) + gymAPI.assessmentProgressByWaist(member1));
+            assertEquals("[18/01/01, 18/01/05, 18/01/12]", member1.getAssessments().keySet().toString());
+            assertNull(member1.getAssessments().get("18/01/05").getComment());
+            assertEquals("comment3", member1.latestAssessment().getComment());
+            assertEquals(51.0f, held.getThigh());
+            assertEquals(1, gymAPI.numberOfMembersInBMICategory("OVERWEIGHT"));
+            assertTrue(archived(member1));
+        }
+
+        @DisplayName("Should copy a member's assessments back into memory when they change")
+        @Test
+        public void changes() throws Exception {
+            Assessment held = member1.getAssessments().get("18/01/12");
+            gymAPI.archiveAssessments(file("gym.archive"));
+            gymAPI.addAssessment(member1, "18/01/19", new Assessment(58.0f, 50.0f, 68.0f, "comment4"));
+            assertFalse(archived(member1));
+            held.setComment("edited");
+            assertEquals("[18/01/01, 18/01/05, 18/01/12, 18/01/19]", member1.sortedAssessmentDates().toString());
+            assertEquals("edited", member1.getAssessments().get("18/01/12").getComment());
+
+            // Archiving again replaces the archive file
+            gymAPI.archiveAssessments(file("gym.archive"));
+            assertTrue(archived(member1));
+            gymAPI.storeSnapshot(file("gym.dat"));
+            GymAPI loaded = new GymAPI();
+            loaded.loadSnapshot(file("gym.dat"));
+            assertEquals(gymAPI.assessmentProgressByWeight(member1),
+                    loaded.assessmentProgressByWeight(loaded.searchMembersByEmail("email1")));
+            assertEquals("edited", loaded.searchMembersByEmail("email1").getAssessments().get("18/01/12").getComment());
+        }
+
+        @DisplayName("Should archive members loaded lazily without loading their assessments")
+        @Test
+        public void lazy() throws Exception {
+            gymAPI.storeSnapshot(file("gym.dat"));
+            GymAPI loaded = new GymAPI();
+            loaded.loadSnapshot(file("gym.dat"), true);
+            Member member = loaded.searchMembersByEmail("email1");
+            Assessment latest = member.latestAssessment();
+            assertEquals(1, loaded.archiveAssessments(file("gym.archive")));
+            assertTrue(member.assessmentsLoaded());
+            assertTrue(archived(member));
+            assertEquals(gymAPI.assessmentProgressByWaist(member1), loaded.assessmentProgressByWaist(member));
+
+            // The latest assessment read before archiving is still the member's
+            latest.setComment("edited");
+            assertEquals("edited", member.getAssessments().get("18/01/12").getComment());
+        }
+
+        private GymAPI reopen() throws Exception {
+            gymAPI.closeJournal();
+            GymAPI reopened = new GymAPI();
+            reopened.openJournal(file("gym.dat"), file("gym.journal"), true);
+            return reopened;
+        }
+
+        @DisplayName("Should do nothing when opening if the assessments were never archived")
+        @Test
+        public void openNone() throws Exception {
+            gymAPI.openJournal(file("gym.dat"), file("gym.journal"));
+            GymAPI reopened = reopen();
+            assertEquals(0, reopened.openArchive(file("gym.archive")));
+            assertFalse(archived(reopened.searchMembersByEmail("email1")));
+            assertNull(AssessmentArchive.newestFile(file("gym.archive")));
+        }
+
+        @DisplayName("Should reuse the archive when opening from the same snapshot")
+        @Test
+        public void openReuses() throws Exception {
+            gymAPI.openJournal(file("gym.dat"), file("gym.journal"));
+            gymAPI.archiveAssessments(file("gym.archive"));
+            File written = AssessmentArchive.newestFile(file("gym.archive"));
+            long modified = written.lastModified();
+
+            GymAPI reopened = reopen();
+            assertEquals(1, reopened.openArchive(file("gym.archive")));
+            // Mapped again rather than written again
+            assertEquals(written, AssessmentArchive.newestFile(file("gym.archive")));
+            assertEquals(modified, written.lastModified());
+            Member member = reopened.searchMembersByEmail("email1");
+            assertTrue(archived(member));
+            assertEquals(gymAPI.assessmentProgressByWeight(member1), reopened.assessmentProgressByWeight(member));
+            assertEquals("comment3", member.latestAssessment().getComment());
+            reopened.closeJournal();
+        }
+
+        @DisplayName("Should keep the members changed by the journal since archiving in memory")
+        @Test
+        public void openJournalChanged() throws Exception {
+            gymAPI.openJournal(file("gym.dat"), file("gym.journal"));
+            gymAPI.archiveAssessments(file("gym.archive"));
+            gymAPI.editAssessmentComment(member1, "18/01/05", "comment2");
+            gymAPI.addAssessment(member2, "18/01/05", new Assessment(80.0f, 50.0f, 70.0f, null));
+
+            GymAPI reopened = reopen();
+            // Neither member is archived: member1 changed and member2 wasn't in the archive
+            assertEquals(0, reopened.openArchive(file("gym.archive")));
+            Member member = reopened.searchMembersByEmail("email1");
+            assertFalse(archived(member));
+            assertEquals("comment2", member.getAssessments().get("18/01/05").getComment());
+            assertEquals(3, member.getAssessments().size());
+            assertFalse(archived(reopened.searchMembersByEmail("email2")));
+            assertEquals(1, reopened.searchMembersByEmail("email2").getAssessments().size());
+            reopened.closeJournal();
+        }
+
+        @DisplayName("Should write a new archive when the snapshot was written again with the same length and time")
+        @Test
+        public void openSnapshotRewritten() throws Exception {
+            gymAPI.openJournal(file("gym.dat"), file("gym.journal"));
+            gymAPI.archiveAssessments(file("gym.archive"));
+            File old = AssessmentArchive.newestFile(file("gym.archive"));
+            File snapshot = new File(file("gym.dat"));
+            long length = snapshot.length();
+            long modified = snapshot.lastModified();
+            // Same length, but a different comment on member1's latest assessment
+            gymAPI.editAssessmentComment(member1, "18/01/12", "comment9");
+            gymAPI.compactJournal();
+            assertEquals(length, snapshot.length());
+            assertTrue(snapshot.setLastModified(modified));
+
+            GymAPI reopened = reopen();
+            assertEquals(1, reopened.openArchive(file("gym.archive")));
+            assertNotEquals(old, AssessmentArchive.newestFile(file("gym.archive")));
+            assertEquals("comment9", reopened.searchMembersByEmail("email1").latestAssessment().getComment());
+            reopened.closeJournal();
+        }
+
+        @DisplayName("Should write a new archive when opening from a different snapshot")
+        @Test
+        public void openSnapshotChanged() throws Exception {
+            gymAPI.openJournal(file("gym.dat"), file("gym.journal"));
+            gymAPI.archiveAssessments(file("gym.archive"));
+            File old = AssessmentArchive.newestFile(file("gym.archive"));
+            gymAPI.addAssessment(member2, "18/01/05", new Assessment(80.0f, 50.0f, 70.0f, null));
+            gymAPI.compactJournal();
+
+            GymAPI reopened = reopen();
+            assertEquals(2, reopened.openArchive(file("gym.archive")));
+            File written = AssessmentArchive.newestFile(file("gym.archive"));
+            assertNotEquals(old, written);
+            // The old archive isn't mapped any more, so it was deleted (Windows may leave it for later)
+            assertFalse(old.exists());
+            assertTrue(archived(reopened.searchMembersByEmail("email2")));
+            reopened.closeJournal();
+        }
+    }
+
+    @Nested
+    @DisplayName("store and load method test (persons file)")
+    class StorePersons {
+
+        @TempDir
+        File directory;
+
+        @BeforeEach
+        public void setUp() {
+            gymAPI.addMember(member1);
+            gymAPI.addTrainer(trainer1);
+            gymAPI.addMember(new StudentMember("email2", "name2", "address2", "M", 1.8f, 80.0f, "WIT",
+                    "s1234", "WIT"));
+            gymAPI.addMember(new PremiumMember("email3", "name3", "address3", "F", 1.7f, 70.0f, "Package 2"));
+            gymAPI.addTrainer(trainer2);
+            gymAPI.addAssessment(member1, "18/01/01", new Assessment(100.0f, 50.0f, 70.0f, "comment1"));
+        }
+
+        private String file(String name) {
+            return new File(directory, name).getPath();
+        }
+
+        @DisplayName("Should load each person into the right list in the same order")
+        @Test
+        public void roundTrip() throws Exception {
+            gymAPI.store(file("persons.xml"));
+            GymAPI loaded = new GymAPI();
+            loaded.load(file("persons.xml"));
+            assertEquals(3, loaded.numberOfMembers());
+            assertEquals(2, loaded.numberOfTrainerss());
+            assertEquals(Member.class, loaded.getMembers().get(0).getClass());
+            assertEquals(StudentMember.class, loaded.getMembers().get(1).getClass());
+            assertEquals(PremiumMember.class, loaded.getMembers().get(2).getClass());
+            assertEquals("emailt2", loaded.getTrainers().get(1).getEmail());
+            assertEquals("comment1", loaded.searchMembersByEmail("email1").latestAssessment().getComment());
+        }
+
+        @DisplayName("Should write the same XML the original reflection converter wrote, assessments in date order")
+        @Test
+        public void golden() throws Exception {
+            GymAPI gym = new GymAPI();
+            gym.addMember(member1);
+            gym.addMember(new StudentMember("email2", "name2", "address2", "M", 1.8f, 80.0f, "WIT",
+                    "s1234", "WIT"));
+            gym.addTrainer(trainer1);
+            // Added out of order, and with no comment, which is left out
+            gym.addAssessment(member1, "18/01/08", new Assessment(98.5f, 49.0f, 69.0f, null));
+            gym.addAssessment(member1, "18/01/01", new Assessment(100.0f, 50.0f, 70.0f, "comment1"));
+            gym.store(file("persons.xml"));
+            String expected =
+                "<object-stream>\n" +
+                "  <list>\n" +
+                "    <Member>\n" +
+                "      <email>email1</email>\n" +
+                "      <name>name1</name>\n" +
+                "      <address>address1</address>\n" +
+                "      <gender>F</gender>\n" +
+                "      <height>1.5</height>\n" +
+                "      <startWeight>100.0</startWeight>\n" +
+                "      <chosenPackage>Package 1</chosenPackage>\n" +
+                "      <assessmentHashMap>\n" +
+                "        <entry>\n" +
+                "          <string>18/01/01</string>\n" +
+                "          <Assessment>\n" +
+                "            <weight>100.0</weight>\n" +
+                "            <thigh>50.0</thigh>\n" +
+                "            <waist>70.0</waist>\n" +
+                "            <comment>comment1</comment>\n" +
+                "          </Assessment>\n" +
+                "        </entry>\n" +
+                "        <entry>\n" +
+                "          <string>18/01/08</string>\n" +
+                "          <Assessment>\n" +
+                "            <weight>98.5</weight>\n" +
+                "            <thigh>49.0</thigh>\n" +
+                "            <waist>69.0</waist>\n" +
+                "          </Assessment>\n" +
+                "        </entry>\n" +
+                "      </assessmentHashMap>\n" +
+                "    </Member>\n" +
+                "    <StudentMember>\n" +
+                "      <email>email2</email>\n" +
+                "      <name>name2</name>\n" +
+                "      <address>address2</address>\n" +
+                "      <gender>M</gender>\n" +
+                "      <height>1.8</height>\n" +
+                "      <startWeight>80.0</startWeight>\n" +
+                "      <chosenPackage>WIT</chosenPackage>\n" +
+                "      <assessmentHashMap/>\n" +
+                "      <studentid>s1234</studentid>\n" +
+                "      <collegeName>WIT</collegeName>\n" +
+                "    </StudentMember>\n" +
+                "    <Trainer>\n" +
+                "      <email>emailt1</email>\n" +
+                "      <name>namet1</name>\n" +
+                "      <address>address3</address>\n" +
+                "      <gender>M</gender>\n" +
+                "      <speciality>s1</speciality>\n" +
+                "    </Trainer>\n" +
+                "  </list>\n" +
+                "</object-stream>";
+            assertEquals(expected, new String(Files.readAllBytes(new File(file("persons.xml")).toPath()), "UTF-8"));
+        }
+
+        @DisplayName("Should still load the separate members and trainers files")
+        @Test
+        public void legacyFiles() throws Exception {
+            gymAPI.store(file("members.xml"), file("trainers.xml"));
+            GymAPI loaded = new GymAPI();
+            loaded.load(file("members.xml"), file("trainers.xml"));
+            assertEquals(3, loaded.numberOfMembers());
+            assertEquals(2, loaded.numberOfTrainerss());
+            assertEquals("s1234", ((StudentMember) loaded.searchMembersByEmail("email2")).getStudentid());
+        }
+
+        @DisplayName("Streaming the members and trainers files should read the same persons as XStream")
+        @Test
+        public void streaming() throws Exception {
+            gymAPI.addAssessment(member1, "18/01/08", new Assessment(98.0f, 49.0f, 69.0f, null));
+            gymAPI.store(file("members.xml"), file("trainers.xml"));
+            GymAPI loaded = new GymAPI();
+            loaded.load(file("members.xml"), file("trainers.xml"));
+
+            List<Person> streamed = readStreaming(file("members.xml"));
+            streamed.addAll(readStreaming(file("trainers.xml")));
+            List<Person> expected = new ArrayList<Person>(loaded.getMembers());
+            expected.addAll(loaded.getTrainers());
+            assertEquals(expected.size(), streamed.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getClass(), streamed.get(i).getClass());
+                assertEquals(expected.get(i).toString(), streamed.get(i).toString());
+                if (expected.get(i) instanceof Member) {
+                    assertEquals(((Member) expected.get(i)).getAssessments().toString(),
+                            ((Member) streamed.get(i)).getAssessments().toString());
+                }
+            }
+        }
+
+        @DisplayName("Should skip and report an assessment whose date can't be read, and load the rest")
+        @Test
+        public void badDate() throws Exception {
+            gymAPI.addAssessment(member1, "18/01/08", new Assessment(98.0f, 49.0f, 69.0f, "comment2"));
+            gymAPI.store(file("members.xml"), file("trainers.xml"));
+            Path members = new File(file("members.xml")).toPath();
+            String xml = new String(Files.readAllBytes(members), "UTF-8");
+            Files.write(members, xml.replace("18/01/01", "18/13/45").getBytes("UTF-8"));
+            Files.copy(members, new File(file("persons.xml")).toPath());
+            String report = "[Skipped the assessment of email1 dated '18/13/45']";
+
+            GymAPI loaded = new GymAPI();
+            loaded.load(file("members.xml"), file("trainers.xml"));
+            assertEquals(3, loaded.numberOfMembers());
+            assertEquals("[18/01/08]", loaded.searchMembersByEmail("email1").sortedAssessmentDates().toString());
+            assertEquals(report, loaded.skippedAssessments().toString());
+
+            GymAPI streamed = new GymAPI();
+            streamed.load(file("persons.xml"));
+            assertEquals(3, streamed.numberOfMembers());
+            assertEquals("[18/01/08]", streamed.searchMembersByEmail("email1").sortedAssessmentDates().toString());
+            assertEquals(report, streamed.skippedAssessments().toString());
+        }
+
+        @DisplayName("Streaming a person with no name should fail with a parse error")
+        @Test
+        public void missingName() throws Exception {
+            File members = new File(file("members.xml"));
+            Files.write(members.toPath(), ("<object-stream><list><Member><email>email1</email>"
+                    + "<gender>F</gender></Member></list></object-stream>").getBytes("UTF-8"));
+            XMLStreamException e = assertThrows(XMLStreamException.class, () -> readStreaming(members.getPath()));
+            assertTrue(e.getMessage().contains("Member has no name"));
+        }
+
+        private List<Person> readStreaming(String fileName) throws Exception {
+            List<Person> persons = new ArrayList<Person>();
+            PersonXmlReader in = new PersonXmlReader(new FileReader(fileName));
+            try {
+                Person person;
+                while ((person = in.next()) != null) {
+                    persons.add(person);
+                }
+            }
+            finally {
+                in.close();
+            }
+            return persons;
+        }
+    }
+
+    @Nested
+    @DisplayName("importCsv method test")
+    class ImportCsv {
+
+        @BeforeEach
+        public void setUp() {
+            gymAPI.addMember(member1);
+        }
+
+        @DisplayName("Should add each valid row and report the others")
+        @Test
+        public void validAndInvalidRows() throws IOException {
+            String csv = "type,email,name,address,gender,height,weight,package,studentid,college,speciality\n"
+                    + "member,email2,name2,\"1 Main St, Waterford\",F,1.6,60,Package 1,,,\n"
+                    + "premium,email3,name3,address3,M,1.8,80,Package 2,,,\n"
+                    + "\n"
+                    + "student,email4,name4,address4,X,1.7,70,,s1234,wit,\n"
+                    + "trainer,emailt1,namet1,address5,M,,,,,,Boxing\n"
+                    + "member,email5,name5,address6,F,0.5,60,Package 1,,,\n"
+                    + "coach,email6,name6,address7,F,1.6,60,Package 1,,,\n"
+                    + "member,EMAIL1,name7,address8,F,1.6,60,Package 1,,,\n"
+                    + "member,email8,name8,address9,F,1.6,heavy,Package 1,,,\n"
+                    + "member,email2,name9,address10,F,1.6,60,Package 1,,,\n";
+            StringWriter errors = new StringWriter();
+            assertEquals(4, gymAPI.importCsv(new java.io.StringReader(csv), errors));
+
+            assertEquals(4, gymAPI.numberOfMembers());
+            assertEquals(1, gymAPI.numberOfTrainerss());
+            assertEquals("1 Main St, Waterford", gymAPI.searchMembersByEmail("email2").getAddress());
+            assertEquals(PremiumMember.class, gymAPI.searchMembersByEmail("email3").getClass());
+            StudentMember student = (StudentMember) gymAPI.searchMembersByEmail("email4");
+            assertEquals("WIT", student.getChosenPackage());
+            assertEquals("Unspecified", student.getGender());
+            assertEquals("Boxing", gymAPI.searchTrainersByEmail("emailt1").getSpeciality());
+            assertEquals(1, gymAPI.searchMembersByName("name3").size());
+
+            String[] report = errors.toString().split("\n");
+            assertEquals(5, report.length);
+            assertTrue(report[0].startsWith("Line 7: Height"));
+            assertTrue(report[1].startsWith("Line 8: Unknown type"));
+            assertTrue(report[2].startsWith("Line 10: The weight is not a number"));
+            assertTrue(report[3].startsWith("Line 9: Email is already registered"));
+            assertTrue(report[4].startsWith("Line 11: Email is already registered"));
+        }
+
+        @DisplayName("Should not import a file without the required columns")
+        @Test
+        public void missingColumn() {
+            assertThrows(IOException.class, () -> gymAPI.importCsv(
+                    new java.io.StringReader("type,name\nmember,name2\n"), new StringWriter()));
+            assertEquals(1, gymAPI.numberOfMembers());
+        }
+
+        @DisplayName("Should check rows in more than one batch in order")
+        @Test
+        public void manyRows() throws IOException {
+            StringBuilder csv = new StringBuilder("email,name,type,height,weight,package\n");
+            for (int i = 0; i < 5000; i++) {
+                csv.append("bulk").append(i).append(",\"name").append(i).append("\",member,1.7,")
+                        .append(i % 2 == 0 ? "70" : "20").append(",Package 3\n");
+            }
+            StringWriter errors = new StringWriter();
+            assertEquals(2500, gymAPI.importCsv(new java.io.StringReader(csv.toString()), errors));
+            assertEquals(2501, gymAPI.numberOfMembers());
+            assertEquals("bulk4998", gymAPI.getMembers().get(2500).getEmail());
+            assertTrue(errors.toString().startsWith("Line 3: Weight"));
+        }
+
+        @DisplayName("Should add nobody if the snapshot holding the imported persons can't be written")
+        @Test
+        public void snapshotFails(@TempDir File directory) throws Exception {
+            String snapshot = new File(directory, "gym.dat").getPath();
+            String journal = new File(directory, "gym.journal").getPath();
+            gymAPI.openJournal(snapshot, journal);
+            // The snapshot is written to gym.dat.tmp first, which can't be opened as a file
+            assertTrue(new File(snapshot + ".tmp").mkdir());
+            String csv = "type,email,name,address,gender,height,weight,package,studentid,college,speciality\n"
+                    + "member,email2,name2,address2,F,1.6,60,Package 1,,,\n"
+                    + "trainer,emailt1,namet1,address3,M,,,,,,Boxing\n";
+            long changeCount = gymAPI.changeCount();
+            assertThrows(IOException.class, () -> gymAPI.importCsv(new java.io.StringReader(csv), new StringWriter()));
+            assertEquals(1, gymAPI.numberOfMembers());
+            assertEquals(0, gymAPI.numberOfTrainerss());
+            assertNull(gymAPI.searchMembersByEmail("email2"));
+            assertTrue(gymAPI.searchMembersByName("name2").isEmpty());
+            assertEquals(changeCount, gymAPI.changeCount());
+
+            assertTrue(new File(snapshot + ".tmp").delete());
+            assertEquals(2, gymAPI.importCsv(new java.io.StringReader(csv), new StringWriter()));
+            gymAPI.closeJournal();
+            GymAPI reopened = new GymAPI();
+            reopened.openJournal(snapshot, journal);
+            assertEquals(2, reopened.numberOfMembers());
+            assertEquals("Boxing", reopened.searchTrainersByEmail("emailt1").getSpeciality());
+        }
+    }
+
+    @Nested
+    @DisplayName("exportMembers and exportAssessments method test")
+    class Export {
+
+        ByteArrayOutputStream bytes;
+
+        @BeforeEach
+        public void setUp() {
+            bytes = new ByteArrayOutputStream();
+            gymAPI.addMember(member1);
+            gymAPI.addMember(new StudentMember("email2", "name, 2", "address2", "M", 1.8f, 80.0f, "WIT",
+                    "s1234", "WIT"));
+            gymAPI.addMember(new PremiumMember("email3", "name3", "\"Main\" St", "F", 1.7f, 70.0f, "Package 2"));
+            gymAPI.addTrainer(trainer1);
+            // 100kg at 1.5m is severely obese, 60kg at 1.8m is underweight
+            gymAPI.addAssessment(member1, "18/01/01", new Assessment(100.0f, 50.0f, 70.0f, "comment1"));
+            gymAPI.addAssessment(member1, "18/02/01", new Assessment(95.0f, 50.0f, 70.0f, "line 1\nline 2"));
+            gymAPI.addAssessment(gymAPI.getMembers().get(1), "18/01/15", new Assessment(60.0f, 40.0f, 60.0f, null));
+        }
+
+        private String exported() throws IOException {
+            return bytes.toString("UTF-8");
+        }
+
+        @DisplayName("Exported members should import into an empty gym as the same members")
+        @Test
+        public void membersRoundTrip() throws IOException {
+            assertEquals(3, gymAPI.exportMembers(Channels.newChannel(bytes), new GymExport(GymExport.Format.CSV)));
+            GymAPI imported = new GymAPI();
+            StringWriter errors = new StringWriter();
+            assertEquals(3, imported.importCsv(new java.io.StringReader(exported()), errors));
+            assertEquals("", errors.toString());
+            assertEquals("name, 2", imported.searchMembersByEmail("email2").getName());
+            assertEquals("\"Main\" St", imported.searchMembersByEmail("email3").getAddress());
+            assertEquals("s1234", ((StudentMember) imported.searchMembersByEmail("email2")).getStudentid());
+            assertEquals(PremiumMember.class, imported.searchMembersByEmail("email3").getClass());
+            assertTrue(exported().contains(",SEVERELY OBESE\n"));
+        }
+
+        @DisplayName("Should only export the rows that pass every filter")
+        @Test
+        public void filters() throws IOException {
+            GymExport export = new GymExport(GymExport.Format.CSV);
+            export.setBMICategory("obese");
+            export.setDateRange("18/01/15", null);
+            assertEquals(1, gymAPI.exportAssessments(Channels.newChannel(bytes), export));
+            assertEquals("email,date,weight,thigh,waist,comment\nemail1,18/02/01,95.0,50.0,70.0,\"line 1\nline 2\"\n",
+                    exported());
+
+            export = new GymExport(GymExport.Format.CSV);
+            export.setPackage("wit");
+            assertEquals(1, gymAPI.exportMembers(Channels.newChannel(new ByteArrayOutputStream()), export));
+            export.setDateRange("18/01/01", "18/01/14");
+            assertEquals(0, gymAPI.exportMembers(Channels.newChannel(new ByteArrayOutputStream()), export));
+            assertThrows(IllegalArgumentException.class,
+                    () -> new GymExport(GymExport.Format.CSV).setDateRange("18/02/30", null));
+        }
+
+        @DisplayName("JSON Lines should write one object per row with strings escaped")
+        @Test
+        public void jsonLines() throws IOException {
+            assertEquals(3, gymAPI.exportAssessments(Channels.newChannel(bytes),
+                    new GymExport(GymExport.Format.JSON_LINES)));
+            String[] lines = exported().split("\n");
+            assertEquals(3, lines.length);
+            assertEquals("{\"email\":\"email1\",\"date\":\"18/02/01\",\"weight\":95.0,\"thigh\":50.0,"
+                    + "\"waist\":70.0,\"comment\":\"line 1\\nline 2\"}", lines[1]);
+            assertTrue(lines[2].endsWith("\"comment\":null}"));
+        }
+
+        @DisplayName("Should export more members than fit in one chunk or one buffer")
+        @Test
+        public void manyMembers() throws IOException {
+            for (int i = 0; i < 3000; i++) {
+                Member member = new Member("bulk" + i, "name" + i, "address", "F", 1.6f, 60.0f, "Package 3");
+                gymAPI.addMember(member);
+                gymAPI.addAssessment(member, "18/03/01", new Assessment(60.0f, 40.0f, 60.0f, "comment " + i));
+            }
+            assertEquals(3003, gymAPI.exportAssessments(Channels.newChannel(bytes),
+                    new GymExport(GymExport.Format.CSV)));
+            String[] lines = exported().split("\n");
+            assertEquals(3005, lines.length);
+            assertEquals("bulk2999,18/03/01,60.0,40.0,60.0,comment 2999", lines[3004]);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Tests for GymAutosave class")
+public class GymAutosaveTest {
+    GymAPI gymAPI;
+    GymAutosave autosave;
+    Member member1;
+
+    @TempDir
+    File directory;
+
+    @BeforeEach
+    public void setUp() {
+        gymAPI = new GymAPI();
+        member1 = new Member("email1", "name1", "address1", "F",
+                1.5f, 100.0f, "Package 1");
+        gymAPI.addMember(member1);
+        gymAPI.addMember(new PremiumMember("email2", "name2", "address2", "M",
+                1.8f, 80.0f, "Package 2"));
+        gymAPI.addTrainer(new Trainer("emailt1", "namet1", "address3", "M", "s1"));
+        gymAPI.addAssessment(member1, "18/01/01", new Assessment(100.0f, 60.0f, 80.0f, "comment1"));
+        autosave = new GymAutosave(gymAPI, file("persons.xml"));
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        autosave.stop();
+    }
+
+    private String file(String name) {
+        return new File(directory, name).getPath();
+    }
+
+    @DisplayName("A save should write the same file as GymAPI's store")
+    @Test
+    public void sameAsStore() throws Exception {
+        autosave.save();
+        gymAPI.store(file("stored-persons.xml"));
+        assertArrayEquals(Files.readAllBytes(new File(file("stored-persons.xml")).toPath()),
+                Files.readAllBytes(new File(file("persons.xml")).toPath()));
+        assertEquals(0, autosave.getUnsavedChanges());
+        assertTrue(autosave.getLastSaveTime() > 0);
+    }
+
+    @DisplayName("The copy a save writes should hold every person, apart from the gym's")
+    @Test
+    public void copy() throws Exception {
+        ArrayList<Member> members = new ArrayList<Member>();
+        ArrayList<Trainer> trainers = new ArrayList<Trainer>();
+        assertEquals(gymAPI.changeCount(), gymAPI.copyPersons(members, trainers));
+        assertEquals(gymAPI.getMembers().toString(), members.toString());
+        assertEquals(PremiumMember.class, members.get(1).getClass());
+        assertEquals(1, trainers.size());
+        assertNotSame(member1, members.get(0));
+        members.get(0).getAssessments().get("18/01/01").setComment("edited");
+        assertEquals("comment1", member1.latestAssessment().getComment());
+    }
+
+    @DisplayName("The copy should have the gym at one point in time while several members are changed")
+    @Test
+    public void copyWhileChanging() throws Exception {
+        // Enough members between the two being changed that the copy takes a while to get from one to the other
+        for (int i = 0; i < 2000; i++) {
+            gymAPI.addMember(new Member("emailx" + i, "namex" + i, "address", "F", 1.6f, 60.0f, "Package 1"));
+        }
+        Member last = new Member("email3", "name3", "address3", "M", 1.7f, 70.0f, "Package 1");
+        gymAPI.addMember(last);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        // Each round adds an assessment to member1 and then the same one to the last member,
+        // so at any point in time member1 has the same number or one more
+        int start = AssessmentDate.tryParse("18/01/01");
+        Thread changer = new Thread(() -> {
+            try {
+                for (int day = 1; !stop.get() && day < 10000; day++) {
+                    Assessment assessment = new Assessment(80.0f, 60.0f, 80.0f, "round" + day);
+                    gymAPI.addAssessment(member1, AssessmentDate.shared(start + day), assessment);
+                    gymAPI.addAssessment(last, AssessmentDate.shared(start + day), assessment);
+                }
+            }
+            catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        changer.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                ArrayList<Member> members = new ArrayList<Member>();
+                ArrayList<Trainer> trainers = new ArrayList<Trainer>();
+                gymAPI.copyPersons(members, trainers);
+                int first = members.get(0).getAssessments().size() - 1;
+                int lastCount = members.get(members.size() - 1).getAssessments().size();
+                assertEquals("email3", members.get(members.size() - 1).getEmail());
+                assertTrue(first == lastCount || first == lastCount + 1,
+                        "member1 had " + first + " of the rounds and the last member " + lastCount);
+            }
+        }
+        finally {
+            stop.set(true);
+            changer.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @DisplayName("Enough changes should start a save in the background")
+    @Test
+    public void afterChanges() throws Exception {
+        autosave.start(3600, 3);
+        gymAPI.addAssessment(member1, "18/02/01", new Assessment(95.0f, 60.0f, 80.0f, "comment2"));
+        gymAPI.addAssessment(member1, "18/03/01", new Assessment(90.0f, 60.0f, 80.0f, "comment3"));
+        assertEquals(0, autosave.getLastSaveTime(), "Not enough changes to save yet");
+        gymAPI.editAssessmentComment(member1, "18/03/01", "edited");
+        long waitUntil = System.currentTimeMillis() + 10000;
+        while (autosave.getLastSaveTime() == 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertNull(autosave.getLastSaveError());
+        assertEquals(0, autosave.getUnsavedChanges());
+
+        GymAPI loaded = new GymAPI();
+        loaded.load(file("persons.xml"));
+        assertEquals("edited", loaded.searchMembersByEmail("email1").latestAssessment().getComment());
+        assertEquals(1, loaded.numberOfTrainerss());
+    }
+}
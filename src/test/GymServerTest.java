@@ -0,0 +1,155 @@
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Tests for GymServer class")
+public class GymServerTest {
+    GymAPI gymAPI;
+    GymServer gymServer;
+    Member member1;
+    // Status and body of the last request
+    int status;
+    String body;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        gymAPI = new GymAPI();
+        member1 = new Member("email1", "name1", "address1", "F",
+                1.5f, 100.0f, "Package 1");
+        gymAPI.addMember(member1);
+        gymAPI.addTrainer(new Trainer("emailt1", "namet1", "address3", "M", "s1"));
+        gymAPI.addAssessment(member1, "18/01/01", new Assessment(100.0f, 0.0f, 0.0f, "comment \"1\""));
+        gymServer = new GymServer(gymAPI, 0, 2);
+        gymServer.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        gymServer.stop();
+    }
+
+    private void request(String method, String path, String form) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://localhost:" + gymServer.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (form != null) {
+            connection.setDoOutput(true);
+            OutputStream out = connection.getOutputStream();
+            out.write(form.getBytes(StandardCharsets.UTF_8));
+            out.close();
+        }
+        status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int read;
+        while ((read = in.read()) >= 0) {
+            bytes.write(read);
+        }
+        in.close();
+        body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Nested
+    @DisplayName("GET requests")
+    class Get {
+
+        @DisplayName("When the member's email is registered")
+        @Test
+        public void member() throws IOException {
+            request("GET", "/members?email=EMAIL1", null);
+            assertEquals(200, status);
+            assertTrue(body.contains("\"name\":\"name1\""), body);
+            assertTrue(body.contains("\"comment\":\"comment \\\"1\\\"\""), "Quotes should be escaped: " + body);
+        }
+
+        @DisplayName("When the email is not registered")
+        @Test
+        public void missing() throws IOException {
+            request("GET", "/members?email=email9", null);
+            assertEquals(404, status);
+            request("GET", "/trainers?email=email1", null);
+            assertEquals(404, status);
+        }
+
+        @DisplayName("When searching by name and listing a BMI category")
+        @Test
+        public void lists() throws IOException {
+            request("GET", "/trainers/search?name=namet", null);
+            assertEquals("[\"namet1\"]", body);
+            request("GET", "/members/bmi?category=obese", null);
+            assertTrue(body.startsWith("[{") && body.contains("\"email\":\"email1\""), body);
+        }
+
+        @DisplayName("The progress report should match GymAPI's")
+        @Test
+        public void progress() throws IOException {
+            request("GET", "/members/progress?email=email1&by=waist", null);
+            assertEquals(200, status);
+            assertEquals(gymAPI.assessmentProgressByWaist(member1), body);
+        }
+
+        @DisplayName("Should stream the export, and reject an invalid filter before starting")
+        @Test
+        public void export() throws IOException {
+            request("GET", "/members/export?rows=assessments&format=jsonl&from=18/01/01", null);
+            assertEquals(200, status);
+            assertEquals("{\"email\":\"email1\",\"date\":\"18/01/01\",\"weight\":100.0,\"thigh\":0.0,"
+                    + "\"waist\":0.0,\"comment\":\"comment \\\"1\\\"\"}\n", body);
+            request("GET", "/members/export?category=normal", null);
+            assertEquals(GymExport.MEMBER_COLUMNS.length, body.split(",").length, "Only the header: " + body);
+            request("GET", "/members/export?from=18/13/01", null);
+            assertEquals(400, status);
+        }
+    }
+
+    @Nested
+    @DisplayName("POST /members/assessments")
+    class PostAssessment {
+
+        @DisplayName("When the assessment is valid it is added to the member")
+        @Test
+        public void added() throws IOException {
+            request("POST", "/members/assessments",
+                    "email=email1&date=2018-2-1&weight=90&thigh=50&waist=80&comment=well+done");
+            assertEquals(201, status);
+            assertEquals("well done", member1.latestAssessment().getComment());
+            assertEquals(90.0f, member1.getAssessments().get("18/02/01").getWeight());
+        }
+
+        @DisplayName("When the date or a number is invalid")
+        @Test
+        public void invalid() throws IOException {
+            request("POST", "/members/assessments", "email=email1&date=18/02/30&weight=90&thigh=50&waist=80");
+            assertEquals(400, status);
+            request("POST", "/members/assessments", "email=email1&date=18/02/01&weight=heavy&thigh=50&waist=80");
+            assertEquals(400, status);
+            request("POST", "/members/assessments", "email=email1&date=18/02/01&weight=NaN&thigh=50&waist=80");
+            assertEquals(400, status);
+            request("POST", "/members/assessments", "email=email1&date=18/02/01&weight=90&thigh=Infinity&waist=80");
+            assertEquals(400, status);
+            request("POST", "/members/assessments", "email=email1&date=18/02/01&weight=90&thigh=50&waist=1e40");
+            assertEquals(400, status);
+            assertEquals(1, member1.getAssessments().size());
+        }
+
+        @DisplayName("When GET is used instead of POST")
+        @Test
+        public void wrongMethod() throws IOException {
+            request("GET", "/members/assessments?email=email1", null);
+            assertEquals(405, status);
+        }
+    }
+}
@@ -5,6 +5,10 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 @DisplayName("Tests for GymUtility class")
@@ -140,6 +144,118 @@ public class GymUtilityTest {
             }
         }
     }
+
+    @Nested
+    @DisplayName("calculateBMI method test (arrays)")
+    class BMIBatch {
+
+        @DisplayName("Should give exactly the same results as the single member methods")
+        @Test
+        public void sameAsSingle() {
+            Random random = new Random(42);
+            int length = 10003;
+            float[] heights = new float[length];
+            float[] weights = new float[length];
+            for (int i = 0; i < length; i++) {
+                heights[i] = 1.0f + random.nextFloat() * 2.0f;
+                weights[i] = 35.0f + random.nextFloat() * 215.0f;
+            }
+            // BMIs exactly on each category boundary, and weights an assessment can have but a member can't
+            float[][] special = {{1.0f, 16.0f}, {1.0f, 18.5f}, {1.0f, 25.0f}, {1.0f, 30.0f}, {1.0f, 35.0f},
+                    {2.0f, 0.0f}, {2.0f, -1.0f}, {2.0f, Float.NaN}, {2.0f, Float.POSITIVE_INFINITY}};
+            for (int i = 0; i < special.length; i++) {
+                heights[i] = special[i][0];
+                weights[i] = special[i][1];
+            }
+
+            double[] bmi = new double[length];
+            byte[] categories = new byte[length];
+            GymUtility.calculateBMI(heights, weights, bmi, categories);
+            for (int i = 0; i < length; i++) {
+                member1.setHeight(heights[i]);
+                assessment1.setWeight(weights[i]);
+                double expected = GymUtility.calculateBMI(member1, assessment1);
+                assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(bmi[i]), "BMI " + i);
+                assertEquals(GymUtility.bmiCategory(expected).ordinal(), categories[i], "Category " + i);
+            }
+        }
+
+        @DisplayName("Should not accept arrays of different lengths")
+        @Test
+        public void lengths() {
+            assertThrows(IllegalArgumentException.class,
+                    () -> GymUtility.calculateBMI(new float[2], new float[2], new double[2], new byte[1]));
+        }
+    }
+
+    @Nested
+    @DisplayName("bmiCategory method test")
+    class BMICategoryEnum {
+
+        @DisplayName("Should be the category named by determineBMICategory")
+        @ParameterizedTest(
+                name = "When BMI value is {0} ")
+        @CsvSource({"14", "16", "18.49", "18.5", "24.99", "25", "30", "34.99", "35", "37", "NaN"})
+        public void sameAsName(double v) {
+            assertEquals(GymUtility.determineBMICategory(v), GymUtility.bmiCategory(v).getLabel());
+        }
+    }
+
+    @Nested
+    @DisplayName("getIdealBodyWeight method test")
+    class IdealWeight {
+
+        @DisplayName("Should follow the member's height and gender")
+        @Test
+        public void follows() {
+            assertEquals(GymUtility.idealBodyWeight("F", 1.5f), member1.getIdealBodyWeight());
+            member1.setHeight(2.0f);
+            assertEquals(GymUtility.idealBodyWeight("F", 2.0f), member1.getIdealBodyWeight());
+            member1.setGender("m");
+            assertEquals(GymUtility.idealBodyWeight("M", 2.0f), member1.getIdealBodyWeight());
+            assertEquals(93.2f, member1.getIdealBodyWeight(), 0.2f);
+        }
+    }
+
+    @Nested
+    @DisplayName("round method test")
+    class Round {
+
+        @DisplayName("Should round halves up")
+        @ParameterizedTest(
+                name = "When {0} is rounded to {1} places it should be {2} ")
+        @CsvSource({
+                "1.25, 1, 1.3",
+                "-1.25, 1, -1.3",
+                "1.45, 1, 1.4",
+                "2.675, 2, 2.67",
+                "0.5, 0, 1.0",
+                "-0.04, 1, 0.0",
+                "1.7999999, 1, 1.8"
+        })
+        public void halves(double value, int places, double expected) {
+            assertEquals(expected, GymUtility.round(value, places));
+        }
+
+        @DisplayName("Should give exactly the same result as BigDecimal")
+        @Test
+        public void sameAsBigDecimal() {
+            Random random = new Random(42);
+            for (int i = 0; i < 100000; i++) {
+                int places = random.nextInt(8);
+                // Mostly values close to a half at that many places, where rounding is hardest
+                double value = (random.nextInt(2000000) - 1000000 + 0.5) / Math.pow(10, places)
+                        + (random.nextInt(3) - 1) * Math.ulp(1.0);
+                if (i % 3 == 0) {
+                    value = random.nextDouble() * 1000 - 500;
+                }
+                double expected = new BigDecimal(value).setScale(places, RoundingMode.HALF_UP)
+                        .doubleValue();
+                assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(GymUtility.round(value, places)),
+                        value + " to " + places + " places");
+            }
+        }
+    }
 }
 
 
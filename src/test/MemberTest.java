@@ -3,6 +3,12 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -313,6 +319,16 @@ public class MemberTest {
                 Assessment result = member1.latestAssessment();
                 assertTrue(result.getComment() == "comment3", "Incorrect assessment returned");
             }
+
+            @DisplayName("Should return the latest one when added out of order")
+            @Test
+            public void outOfOrder() {
+                member1.getAssessments().put("17/12/31",
+                        new Assessment(0.0f, 0.0f, 0.0f, "comment0"));
+                Assessment result = member1.latestAssessment();
+                assertEquals("comment3", result.getComment(), "Incorrect assessment returned");
+                assertEquals("17/12/31", member1.chronologicalAssessmentDates().get(0), "Earliest date not first");
+            }
         }
         @Nested
         @DisplayName("Given their are no assessments for the member")
@@ -326,7 +342,107 @@ public class MemberTest {
             }
         }
     }
-}
 
+    @Nested
+    @DisplayName("getAssessments method tests")
+    class Assessments {
+
+        @DisplayName("An assessment got from the member should be a view of the member's assessments")
+        @Test
+        public void view() {
+            Assessment added = new Assessment(80.0f, 50.0f, 70.0f, "comment1");
+            member1.getAssessments().put("18/01/05", added);
+            Assessment view = member1.getAssessments().get("18/01/05");
+            member1.getAssessments().put("18/01/01", new Assessment(82.0f, 51.0f, 71.0f, "comment0"));
+            // Still the same assessment after one was inserted before it
+            view.setComment("edited");
+            assertEquals("edited", member1.getAssessments().get("18/01/05").getComment());
+            member1.latestAssessment().setWeight(79.0f);
+            assertEquals(79.0f, view.getWeight());
+            assertEquals(82.0f, member1.getAssessments().get("2018-1-1").getWeight());
+        }
+
+        @DisplayName("An assessment put in the member's assessments should only have its values copied")
+        @Test
+        public void copied() {
+            Assessment added = new Assessment(80.0f, 50.0f, 70.0f, "comment1");
+            member1.getAssessments().put("18/01/05", added);
+            added.setComment("edited");
+            assertEquals("comment1", member1.getAssessments().get("18/01/05").getComment());
+            member1.getAssessments().put("18/01/05", new Assessment(90.0f, 60.0f, 75.0f, "replaced"));
+            assertEquals(80.0f, added.getWeight());
+            assertEquals("edited", added.getComment());
+        }
 
+        @DisplayName("Should behave like a map in chronological order")
+        @Test
+        public void map() {
+            Map<String, Assessment> assessments = member1.getAssessments();
+            assessments.put("18/01/09", new Assessment(80.0f, 50.0f, 70.0f, "comment3"));
+            assessments.put("18/01/01", new Assessment(82.0f, 51.0f, 71.0f, "comment1"));
+            assessments.put("18/01/05", new Assessment(81.0f, 51.0f, 71.0f, "comment2"));
+            assertEquals("[18/01/01, 18/01/05, 18/01/09]", assessments.keySet().toString());
+            assertNull(assessments.get("18/02/30"));
+            assertFalse(assessments.containsKey(null));
+
+            Assessment replaced = assessments.put("18/01/05", new Assessment(1.0f, 2.0f, 3.0f, "replaced"));
+            assertEquals("comment2", replaced.getComment());
+            Assessment removed = assessments.remove("18/01/01");
+            assertEquals(82.0f, removed.getWeight());
+            assertEquals(2, assessments.size());
+
+            Iterator<Map.Entry<String, Assessment>> iterator = assessments.entrySet().iterator();
+            iterator.next();
+            iterator.remove();
+            assertEquals("comment3", iterator.next().getValue().getComment());
+            assertFalse(iterator.hasNext());
+            assertEquals(1, assessments.size());
+            assertEquals("comment3", member1.latestAssessment().getComment());
+        }
 
+        @DisplayName("A view of a removed or replaced assessment should keep its values, not read another one")
+        @Test
+        public void removed() {
+            member1.getAssessments().put("18/01/01", new Assessment(82.0f, 51.0f, 71.0f, "comment1"));
+            Assessment view = member1.getAssessments().get("18/01/01");
+            member1.getAssessments().remove("18/01/01");
+            member1.getAssessments().put("18/01/01", new Assessment(80.0f, 50.0f, 70.0f, "comment2"));
+            assertEquals("comment1", view.getComment());
+            assertEquals(82.0f, view.getWeight());
+            // It is no longer a view, so changing it doesn't change the new assessment
+            view.setComment("edited");
+            assertEquals("comment2", member1.getAssessments().get("18/01/01").getComment());
+
+            Assessment replaced = member1.getAssessments().get("18/01/01");
+            member1.getAssessments().put("18/01/01", new Assessment(79.0f, 50.0f, 70.0f, "comment3"));
+            assertEquals("comment2", replaced.getComment());
+        }
+        @DisplayName("A change a listener refuses (eg because it can't be journaled) should not be made")
+        @Test
+        public void refused() {
+            member1.getAssessments().put("18/01/01", new Assessment(82.0f, 51.0f, 71.0f, "comment1"));
+            final List<String> told = new ArrayList<String>();
+            member1.addAssessmentListener(new AssessmentListener() {
+                public void assessmentChanging(Member member, String date, Assessment assessment, boolean removed) {
+                    told.add(date + (removed ? " removed" : " " + assessment.getComment()));
+                    throw new UncheckedIOException(new IOException("Journal is closed"));
+                }
+
+                public void assessmentChanged(Member member) {
+                    told.add("changed");
+                }
+            });
+            Assessment view = member1.getAssessments().get("2018-1-1");
+            assertThrows(UncheckedIOException.class, () -> view.setComment("edited"));
+            assertThrows(UncheckedIOException.class,
+                    () -> member1.getAssessments().put("18/01/05", new Assessment(80.0f, 50.0f, 70.0f, "comment2")));
+            assertThrows(UncheckedIOException.class, () -> member1.getAssessments().remove("18/01/01"));
+            assertThrows(UncheckedIOException.class, () -> member1.getAssessments().clear());
+
+            assertEquals("[18/01/01 edited, 18/01/05 comment2, 18/01/01 removed, null removed]", told.toString());
+            assertEquals("comment1", view.getComment());
+            assertEquals("[18/01/01]", member1.getAssessments().keySet().toString());
+            assertEquals("comment1", member1.latestAssessment().getComment());
+        }
+    }
+}